@@ -0,0 +1,331 @@
+package com.sk89q.mntfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.sk89q.svfs.SimpleVFS;
+import com.sk89q.svfs.VolumeContainer;
+
+/**
+ * Copies whole directory trees into the volumes of a {@link VolumeContainer}
+ * and back, many trees at a time, such as to move a server's computers from
+ * a directory each to an image each, or to back the images up as plain
+ * files.
+ * 
+ * <p>Each tree is copied by one thread, and the trees are spread over a
+ * fixed pool of threads. Files are read whole before they are written, so
+ * that the blocks of each file are reserved at once and end up in one
+ * contiguous run if there is one.</p>
+ * 
+ * <p>Volumes that are imported into must not exist yet. They are written
+ * without a journal, as there is nothing to recover: a volume that fails to
+ * import is deleted, and one left behind by a crash has to be deleted before
+ * it is imported again. Volumes are closed once they have been copied, so
+ * they must not be in use while they are copied.</p>
+ * 
+ * @author sk89q
+ */
+public class BulkTransfer {
+    
+    private static final Logger logger = Logger.getLogger(BulkTransfer.class.getCanonicalName());
+    private static final int PROGRESS_INTERVAL = 1000;
+    
+    private final VolumeContainer volumes;
+    private final int threads;
+    
+    /**
+     * Create a new bulk transfer.
+     * @param volumes container of the volumes to copy into or out of
+     * @param threads number of trees to copy at once
+     */
+    public BulkTransfer(VolumeContainer volumes, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.volumes = volumes;
+        this.threads = threads;
+    }
+    
+    private static com.sk89q.svfs.Path map(Path path) {
+        return new com.sk89q.svfs.Path(path.parts());
+    }
+    
+    /**
+     * Copy directory trees into new volumes. A tree that fails to copy does
+     * not stop the others, and is listed in the report instead.
+     * @param sources trees to copy, by the name of the volume to copy each into
+     * @return report
+     * @throws IOException if interrupted
+     */
+    public Report importTrees(Map<String, ? extends Mount> sources) throws IOException {
+        return run(sources, true);
+    }
+    
+    /**
+     * Copy volumes out into directory trees. A volume that fails to copy
+     * does not stop the others, and is listed in the report instead.
+     * @param targets trees to copy into, by the name of the volume to copy
+     *        into each
+     * @return report
+     * @throws IOException if interrupted
+     */
+    public Report exportTrees(Map<String, ? extends Mount> targets) throws IOException {
+        return run(targets, false);
+    }
+    
+    private Report run(Map<String, ? extends Mount> mounts, final boolean importing) throws IOException {
+        final Report report = new Report();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Bulk transfer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        try {
+            for (Map.Entry<String, ? extends Mount> entry : mounts.entrySet()) {
+                final String name = entry.getKey();
+                final Mount mount = entry.getValue();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (importing) {
+                                importTree(name, mount, report);
+                            } else {
+                                exportTree(name, mount, report);
+                            }
+                            report.treeDone(name, null);
+                        } catch (IOException e) {
+                            report.treeDone(name, e);
+                        } catch (RuntimeException e) {
+                            report.treeDone(name, e);
+                        }
+                    }
+                });
+            }
+            
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while copying");
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        report.finish();
+        logger.info((importing ? "Imported " : "Exported ") + report);
+        return report;
+    }
+    
+    /**
+     * Copy a directory tree into a new volume.
+     * @param name name of the volume
+     * @param source tree to copy
+     * @param report report to count the copied entries in
+     * @throws IOException on I/O error, or if the volume already exists
+     */
+    private void importTree(String name, Mount source, Report report) throws IOException {
+        File file = volumes.getImageFile(name);
+        if (file.exists()) {
+            throw new IOException("Volume " + name + " already exists");
+        }
+        
+        boolean done = false;
+        try {
+            SimpleVFS vfs = volumes.getVolume(name);
+            vfs.setJournalFile(null); // Nothing to recover if the copy fails
+            importDirectory(source, Path.root(), vfs, report);
+            done = true;
+        } finally {
+            volumes.closeVolume(name);
+            if (!done) {
+                file.delete();
+            }
+        }
+    }
+    
+    private void importDirectory(Mount source, Path dir, SimpleVFS vfs, Report report) throws IOException {
+        for (Path path : source.list(dir)) {
+            if (source.isDirectory(path)) {
+                vfs.mkdir(map(path));
+                report.directories.incrementAndGet();
+                importDirectory(source, path, vfs, report);
+            } else {
+                InputStream in = source.getInputStream(path);
+                ByteArrayOutputStream data;
+                try {
+                    // Files of the directory trees know how much is left
+                    data = new ByteArrayOutputStream(Math.max(32, in.available()));
+                    byte[] buf = new byte[8192];
+                    int n;
+                    while ((n = in.read(buf)) != -1) {
+                        data.write(buf, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+                
+                vfs.write(map(path), data);
+                report.files.incrementAndGet();
+                report.bytes.addAndGet(data.size());
+            }
+        }
+    }
+    
+    /**
+     * Copy a volume out into a directory tree.
+     * @param name name of the volume
+     * @param target tree to copy into
+     * @param report report to count the copied entries in
+     * @throws IOException on I/O error, or if the volume does not exist
+     */
+    private void exportTree(String name, Mount target, Report report) throws IOException {
+        if (!volumes.getImageFile(name).exists()) {
+            throw new FileNotFoundException("Volume " + name + " does not exist");
+        }
+        
+        try {
+            exportDirectory(volumes.getVolume(name), Path.root(), target, report);
+        } finally {
+            volumes.closeVolume(name);
+        }
+    }
+    
+    private void exportDirectory(SimpleVFS vfs, Path dir, Mount target, Report report) throws IOException {
+        for (String name : vfs.list(map(dir))) {
+            Path path = dir.combine(name);
+            if (vfs.isDirectory(map(path))) {
+                target.mkdirs(path);
+                report.directories.incrementAndGet();
+                exportDirectory(vfs, path, target, report);
+            } else {
+                byte[] data = vfs.read(map(path));
+                OutputStream out = target.getOutputStream(path, false);
+                try {
+                    out.write(data);
+                } finally {
+                    out.close();
+                }
+                
+                report.files.incrementAndGet();
+                report.bytes.addAndGet(data.length);
+            }
+        }
+    }
+    
+    /**
+     * What was copied by a bulk transfer, and how fast. Progress is logged
+     * every {@link #PROGRESS_INTERVAL} trees while the transfer runs.
+     */
+    public static class Report {
+        private final long start = System.nanoTime();
+        private final AtomicLong trees = new AtomicLong();
+        private final AtomicLong files = new AtomicLong();
+        private final AtomicLong directories = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final Map<String, Exception> failures = new ConcurrentHashMap<String, Exception>();
+        private volatile long elapsed = -1;
+        
+        private Report() {
+        }
+        
+        private void treeDone(String name, Exception error) {
+            if (error != null) {
+                failures.put(name, error);
+            }
+            if (trees.incrementAndGet() % PROGRESS_INTERVAL == 0) {
+                logger.info("Copied " + this);
+            }
+        }
+        
+        private void finish() {
+            elapsed = System.nanoTime() - start;
+        }
+        
+        /**
+         * Get the number of trees that were copied, including those that
+         * failed.
+         * @return number of trees
+         */
+        public long getTrees() {
+            return trees.get();
+        }
+        
+        /**
+         * Get the trees that failed to copy, which may be partly copied
+         * if they were exported.
+         * @return unmodifiable map of errors, by volume name
+         */
+        public Map<String, Exception> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+        
+        public long getFiles() {
+            return files.get();
+        }
+        
+        public long getDirectories() {
+            return directories.get();
+        }
+        
+        /**
+         * Get the number of bytes of file contents that were copied.
+         * @return number of bytes
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+        
+        /**
+         * Get the time taken so far, or in total once the transfer is done.
+         * @return time in milliseconds
+         */
+        public long getElapsedMillis() {
+            return (elapsed != -1 ? elapsed : System.nanoTime() - start) / 1000000;
+        }
+        
+        /**
+         * Get the number of bytes of file contents copied per second.
+         * @return bytes per second
+         */
+        public double getBytesPerSecond() {
+            return bytes.get() * 1000.0 / Math.max(1, getElapsedMillis());
+        }
+        
+        /**
+         * Get the number of files copied per second.
+         * @return files per second
+         */
+        public double getFilesPerSecond() {
+            return files.get() * 1000.0 / Math.max(1, getElapsedMillis());
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d trees (%d failed), %d files and %d directories, "
+                    + "%.1f MB in %.1f s (%.1f MB/s, %.0f files/s)",
+                    trees.get(), failures.size(), files.get(), directories.get(),
+                    bytes.get() / 1048576.0, getElapsedMillis() / 1000.0,
+                    getBytesPerSecond() / 1048576.0, getFilesPerSecond());
+        }
+    }
+
+}
@@ -0,0 +1,275 @@
+package com.sk89q.mntfs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.sk89q.svfs.SimpleVFS;
+
+/**
+ * A mount backed by a {@link SimpleVFS} image, so that a whole drive is
+ * stored in one file instead of a file per file.
+ *
+ * @author sk89q
+ */
+public class SimpleVFSMount implements Mount {
+
+    private final ResourceSupervisor supervisor;
+    private final SimpleVFS vfs;
+
+    /**
+     * Create a new mount that can be written to and read from.
+     * @param supervisor object to supervise access with
+     * @param vfs file system to store the files in
+     */
+    public SimpleVFSMount(ResourceSupervisor supervisor, SimpleVFS vfs) {
+        this.supervisor = supervisor;
+        this.vfs = vfs;
+    }
+
+    /**
+     * Get the resource supervisor.
+     * @return the supervisor
+     */
+    public ResourceSupervisor getSupervisor() {
+        return supervisor;
+    }
+
+    /**
+     * Get the file system that the files are stored in.
+     * @return file system
+     */
+    public SimpleVFS getFilesystem() {
+        return vfs;
+    }
+
+    private static com.sk89q.svfs.Path map(Path path) {
+        return new com.sk89q.svfs.Path(path.parts());
+    }
+
+    @Override
+    public boolean isWritable(Path path) {
+        return true;
+    }
+
+    @Override
+    public Path[] list(Path path) throws IOException {
+        ResourceLock lock = supervisor.allocate();
+        
+        try {
+            if (!vfs.isDirectory(map(path))) {
+                throw new FileNotFoundException("A directory on the path did not exist");
+            }
+            
+            List<String> names = vfs.list(map(path));
+            Path[] paths = new Path[names.size()];
+            
+            for (int i = 0; i < paths.length; i++) {
+                paths[i] = path.combine(names.get(i));
+            }
+            
+            return paths;
+        } finally {
+            lock.release();
+        }
+    }
+
+    @Override
+    public boolean exists(Path path) throws IOException {
+        ResourceLock lock = supervisor.allocate();
+        
+        try {
+            return vfs.exists(map(path));
+        } finally {
+            lock.release();
+        }
+    }
+
+    @Override
+    public boolean isDirectory(Path path) throws IOException {
+        ResourceLock lock = supervisor.allocate();
+        
+        try {
+            return vfs.isDirectory(map(path));
+        } finally {
+            lock.release();
+        }
+    }
+
+    @Override
+    public long getSize(Path path) throws IOException {
+        ResourceLock lock = supervisor.allocate();
+        
+        try {
+            return vfs.getSize(map(path));
+        } finally {
+            lock.release();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream(Path path) throws IOException {
+        ResourceLock lock = supervisor.allocate();
+        
+        try {
+            return new SupervisedInputStream(lock, vfs.getInputStream(map(path)));
+        } catch (IOException e) {
+            lock.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream(Path path, boolean append) throws IOException {
+        ResourceLock lock = supervisor.allocate();
+        
+        try {
+            long written = 0;
+            if (append && vfs.exists(map(path)) && !vfs.isDirectory(map(path))) {
+                written = vfs.getSize(map(path));
+            }
+            
+            OutputStream out = vfs.getOutputStream(map(path), append);
+            return new SupervisedOutputStream(lock, out, supervisor.getMaxFileSize(), written);
+        } catch (IOException e) {
+            lock.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void mkdirs(Path path) throws IOException {
+        ResourceLock lock = supervisor.allocate();
+        
+        try {
+            String[] parts = path.parts();
+            for (int i = 1; i <= parts.length; i++) {
+                String[] dirParts = new String[i];
+                System.arraycopy(parts, 0, dirParts, 0, i);
+                vfs.mkdir(new com.sk89q.svfs.Path(dirParts));
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        ResourceLock lock = supervisor.allocate();
+        
+        try {
+            vfs.delete(map(path));
+        } finally {
+            lock.release();
+        }
+    }
+
+    @Override
+    public void move(Path from, Path to) throws IOException {
+        ResourceLock lock = supervisor.allocate();
+        
+        try {
+            vfs.move(map(from), map(to));
+        } finally {
+            lock.release();
+        }
+    }
+
+    @Override
+    public void copy(Path from, Path to) throws IOException {
+        ResourceLock lock = supervisor.allocate();
+        
+        try {
+            vfs.copy(map(from), map(to));
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Holds a resource for as long as a file is being read.
+     */
+    private static class SupervisedInputStream extends InputStream {
+        private final ResourceLock pointer;
+        private final InputStream in;
+        
+        private SupervisedInputStream(ResourceLock pointer, InputStream in) {
+            this.pointer = pointer;
+            this.in = in;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, len);
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            return in.skip(n);
+        }
+        
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                pointer.release();
+            }
+        }
+    }
+
+    /**
+     * Holds a resource for as long as a file is being written, and keeps
+     * the file within the maximum file size of the supervisor.
+     */
+    private static class SupervisedOutputStream extends OutputStream {
+        private final ResourceLock pointer;
+        private final OutputStream out;
+        private final int maxFileSize;
+        private long written;
+        
+        private SupervisedOutputStream(ResourceLock pointer, OutputStream out,
+                int maxFileSize, long written) {
+            this.pointer = pointer;
+            this.out = out;
+            this.maxFileSize = maxFileSize;
+            this.written = written;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (written + len > maxFileSize) {
+                throw new IOException("File too big, can't write more bytes");
+            }
+            written += len;
+            out.write(b, off, len);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } finally {
+                pointer.release();
+            }
+        }
+    }
+
+}
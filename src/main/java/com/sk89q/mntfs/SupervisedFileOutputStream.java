@@ -33,6 +33,20 @@ public class SupervisedFileOutputStream extends OutputStream {
         }
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (written + len > maxFileSize) {
+            throw new IOException("File too big, can't write more bytes");
+        }
+        written += len;
+        try {
+            out.write(b, off, len);
+        } catch (IOException e) {
+            pointer.release();
+            throw e;
+        }
+    }
+
     @Override
     public void close() throws IOException {
         try {
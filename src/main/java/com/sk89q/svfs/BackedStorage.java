@@ -0,0 +1,180 @@
+package com.sk89q.svfs;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * Storage of a clone, which reads the blocks that it still borrows from
+ * the image that it was cloned from, and everything else from its own image.
+ * 
+ * <p>Writes always go to the clone's own image. Blocks are only written once
+ * they have been allocated, and a borrowed block is given back as soon as
+ * the clone frees it, so a block that is written is never borrowed.</p>
+ * 
+ * <p>The borrowed blocks are kept as a bitmap in the same layout as the
+ * free space map, and the parts of it that changed are remembered so that
+ * only those have to be written back.</p>
+ * 
+ * @author sk89q
+ */
+class BackedStorage implements GatheringStorage {
+    
+    private final Storage storage;
+    private final Storage parent;
+    private final BitSet borrowed;
+    private final BitSet dirty = new BitSet();
+    private final int blockSize;
+    
+    /**
+     * Create a storage for a clone.
+     * @param storage storage of the clone's own image
+     * @param parent storage of the image that the clone borrows blocks from
+     * @param borrowed blocks that are borrowed
+     * @param blockSize block size of both images
+     */
+    BackedStorage(Storage storage, Storage parent, BitSet borrowed, int blockSize) {
+        this.storage = storage;
+        this.parent = parent;
+        this.borrowed = borrowed;
+        this.blockSize = blockSize;
+    }
+    
+    /**
+     * Read a bitmap of borrowed blocks, with bit (i % 8) of byte (i / 8)
+     * for block i.
+     * @param map the map
+     * @return borrowed blocks
+     */
+    static BitSet readMap(byte[] map) {
+        BitSet borrowed = new BitSet(map.length * 8);
+        for (int i = 0; i < map.length * 8; i++) {
+            if ((map[i >> 3] & (1 << (i & 7))) != 0) {
+                borrowed.set(i);
+            }
+        }
+        return borrowed;
+    }
+    
+    /**
+     * Returns whether a block is read from the parent image.
+     * @param block block number
+     * @return true if borrowed
+     */
+    synchronized boolean isBorrowed(int block) {
+        return borrowed.get(block);
+    }
+    
+    /**
+     * Stop borrowing a block, which the clone has freed.
+     * @param block block number
+     */
+    synchronized void giveBack(int block) {
+        if (borrowed.get(block)) {
+            borrowed.clear(block);
+            dirty.set(block / (blockSize * 8));
+        }
+    }
+    
+    /**
+     * Get the number of blocks that are still borrowed.
+     * @return number of blocks
+     */
+    synchronized int getBorrowedCount() {
+        return borrowed.cardinality();
+    }
+    
+    /**
+     * Serialize part of the bitmap of borrowed blocks.
+     * @param off offset in the map, in bytes
+     * @param len number of bytes
+     * @return the part of the map
+     */
+    synchronized byte[] toByteArray(int off, int len) {
+        byte[] map = new byte[len];
+        for (int i = borrowed.nextSetBit(off * 8); i != -1 && i < (off + len) * 8; i = borrowed.nextSetBit(i + 1)) {
+            map[(i >> 3) - off] |= 1 << (i & 7);
+        }
+        return map;
+    }
+    
+    /**
+     * Find the next block of the bitmap that has changed since the last
+     * call to {@link #clearDirty()}.
+     * @param from first block of the map to look at
+     * @return index of the block in the map, or -1 if none has changed
+     */
+    synchronized int nextDirty(int from) {
+        return dirty.nextSetBit(from);
+    }
+    
+    /**
+     * Forget which blocks of the bitmap have changed.
+     */
+    synchronized void clearDirty() {
+        dirty.clear();
+    }
+    
+    @Override
+    public void read(long position, byte[] buf, int off, int len) throws IOException {
+        while (len > 0) {
+            long rel = position - SimpleVFS.HEADER_SIZE;
+            if (rel < 0) {
+                int n = (int) Math.min(len, -rel);
+                storage.read(position, buf, off, n);
+                position += n;
+                off += n;
+                len -= n;
+                continue;
+            }
+            
+            // Read as many blocks from the same image as possible at once
+            int block = (int) (rel / blockSize);
+            boolean fromParent = isBorrowed(block);
+            long n = blockSize - rel % blockSize;
+            while (n < len && isBorrowed(++block) == fromParent) {
+                n += blockSize;
+            }
+            
+            int chunk = (int) Math.min(n, len);
+            (fromParent ? parent : storage).read(position, buf, off, chunk);
+            position += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+    
+    @Override
+    public void write(long position, byte[] buf, int off, int len) throws IOException {
+        storage.write(position, buf, off, len);
+    }
+    
+    @Override
+    public void write(WriteBatch batch) throws IOException {
+        batch.writeTo(storage);
+    }
+    
+    @Override
+    public long length() throws IOException {
+        return storage.length();
+    }
+    
+    @Override
+    public void truncate(long length) throws IOException {
+        storage.truncate(length);
+    }
+    
+    @Override
+    public void flush() throws IOException {
+        storage.flush();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            parent.close();
+        } finally {
+            storage.close();
+        }
+    }
+
+}
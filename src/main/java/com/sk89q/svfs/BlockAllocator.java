@@ -0,0 +1,374 @@
+package com.sk89q.svfs;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of which blocks of a {@link SimpleVFS} are in use. The map is
+ * held as 64-bit words so that full stretches can be skipped a word at a time
+ * and free runs can be found with {@link Long#numberOfTrailingZeros(long)}.
+ * 
+ * <p>A set bit means that the block is used. Block 0 holds the free space map
+ * itself and is always marked used. Bits past the number of blocks that fit
+ * in the file system are also kept set so they are never handed out.</p>
+ * 
+ * <p>Words that changed are remembered, so that only the parts of a large
+ * map that changed have to be written back.</p>
+ * 
+ * <p>A block that is referenced more than once, because its contents were
+ * deduplicated, also has a count of its extra references. Freeing such a
+ * block only drops a reference until the last one is gone. The counts are
+ * not serialized, as they are rebuilt from the index.</p>
+ * 
+ * @author sk89q
+ */
+class BlockAllocator {
+    
+    private final long[] words;
+    private final int blockCount;
+    private final int mapBytes;
+    private int freeCount;
+    private int hint = 0; // All words before this one are full
+    private final Map<Integer, Integer> shares = new HashMap<Integer, Integer>();
+    private final BitSet dirty = new BitSet();
+    
+    /**
+     * Create an allocator from a serialized free space map.
+     * @param map the map, with bit (i % 8) of byte (i / 8) for block i
+     * @param blockCount number of blocks that fit in the file system
+     */
+    BlockAllocator(byte[] map, int blockCount) {
+        this.blockCount = Math.min(blockCount, map.length * 8);
+        this.mapBytes = map.length;
+        this.words = new long[(map.length * 8 + 63) / 64];
+        
+        for (int i = 0; i < map.length; i++) {
+            words[i >> 3] |= (map[i] & 0xFFL) << ((i & 7) * 8);
+        }
+        
+        // Anything past the end is permanently taken
+        for (int i = this.blockCount; i < words.length * 64; i++) {
+            words[i >> 6] |= 1L << (i & 63);
+        }
+        
+        words[0] |= 1L;
+        
+        int used = 0;
+        for (long word : words) {
+            used += Long.bitCount(word);
+        }
+        freeCount = words.length * 64 - used;
+    }
+    
+    /**
+     * Get the number of blocks managed.
+     * @return number of blocks
+     */
+    int getBlockCount() {
+        return blockCount;
+    }
+    
+    /**
+     * Get the number of blocks that are free.
+     * @return number of free blocks
+     */
+    int getFreeCount() {
+        return freeCount;
+    }
+    
+    /**
+     * Returns whether a block is in use.
+     * @param block block number
+     * @return true if used
+     */
+    boolean isUsed(int block) {
+        return (words[block >> 6] & (1L << (block & 63))) != 0;
+    }
+    
+    /**
+     * Mark a block as used.
+     * @param block block number
+     */
+    void markUsed(int block) {
+        if (!isUsed(block)) {
+            words[block >> 6] |= 1L << (block & 63);
+            dirty.set(block >> 6);
+            freeCount--;
+        }
+    }
+    
+    /**
+     * Returns whether a block has more than one reference.
+     * @param block block number
+     * @return true if shared
+     */
+    boolean isShared(int block) {
+        return shares.containsKey(block);
+    }
+    
+    /**
+     * Get the highest numbered block that is used.
+     * @return block number
+     */
+    int getLastUsed() {
+        for (int i = (blockCount - 1) >> 6; i >= 0; i--) {
+            long word = words[i];
+            int valid = blockCount - (i << 6);
+            if (valid < 64) {
+                word &= (1L << valid) - 1;
+            }
+            if (word != 0) {
+                return (i << 6) + 63 - Long.numberOfLeadingZeros(word);
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Add a reference to a block that is already used.
+     * @param block block number
+     */
+    void share(int block) {
+        if (!isUsed(block)) {
+            throw new IllegalArgumentException("Can't share free block " + block);
+        }
+        Integer count = shares.get(block);
+        shares.put(block, count != null ? count + 1 : 1);
+    }
+    
+    /**
+     * Free a block, or drop one reference to it if it is shared.
+     * @param block block number
+     * @return true if the block is now free
+     */
+    boolean free(int block) {
+        if (block < 1 || block >= blockCount) {
+            throw new IllegalArgumentException("Invalid block number " + block);
+        }
+        
+        Integer count = shares.get(block);
+        if (count != null) {
+            if (count > 1) {
+                shares.put(block, count - 1);
+            } else {
+                shares.remove(block);
+            }
+            return false;
+        }
+        
+        if (isUsed(block)) {
+            words[block >> 6] &= ~(1L << (block & 63));
+            dirty.set(block >> 6);
+            freeCount++;
+            hint = Math.min(hint, block >> 6);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Allocate a single block.
+     * @return block number
+     * @throws IOException thrown if there is no free block
+     */
+    int allocate() throws IOException {
+        return allocate(1)[0];
+    }
+    
+    /**
+     * Allocate the given number of blocks. One contiguous run is used if
+     * there is one large enough, otherwise the first free blocks are taken
+     * in order, which keeps whatever runs exist together.
+     * @param count number of blocks
+     * @return block numbers, in order
+     * @throws IOException thrown if there are not enough free blocks
+     */
+    int[] allocate(int count) throws IOException {
+        if (count > freeCount) {
+            throw new IOException("Out of space");
+        }
+        
+        int[] blocks = new int[count];
+        if (count == 0) {
+            return blocks;
+        }
+        
+        int start = findRun(count);
+        if (start != -1) {
+            for (int i = 0; i < count; i++) {
+                blocks[i] = start + i;
+                markUsed(start + i);
+            }
+        } else {
+            int n = 0;
+            for (int i = hint; i < words.length && n < count; i++) {
+                long free = ~words[i];
+                while (free != 0 && n < count) {
+                    int bit = Long.numberOfTrailingZeros(free);
+                    free &= free - 1;
+                    blocks[n] = (i << 6) + bit;
+                    markUsed(blocks[n]);
+                    n++;
+                }
+            }
+        }
+        
+        while (hint < words.length && words[hint] == -1L) {
+            hint++;
+        }
+        
+        return blocks;
+    }
+    
+    /**
+     * Allocate one contiguous run of blocks, but only if the first run that
+     * is long enough starts before the given block.
+     * @param count number of blocks
+     * @param before block that the run has to start before
+     * @return block numbers, or null if there is no such run
+     */
+    int[] allocateRun(int count, int before) {
+        int start = findRun(count);
+        if (start == -1 || start >= before) {
+            return null;
+        }
+        
+        int[] blocks = new int[count];
+        for (int i = 0; i < count; i++) {
+            blocks[i] = start + i;
+            markUsed(start + i);
+        }
+        
+        while (hint < words.length && words[hint] == -1L) {
+            hint++;
+        }
+        
+        return blocks;
+    }
+    
+    /**
+     * Find the first run of free blocks of at least the given length.
+     * @param count length of the run
+     * @return first block of the run, or -1 if there is no such run
+     */
+    private int findRun(int count) {
+        int runStart = -1;
+        int runLen = 0;
+        
+        for (int i = hint; i < words.length; i++) {
+            long free = ~words[i];
+            
+            if (free == 0) {
+                runLen = 0;
+                continue;
+            }
+            
+            if (free == -1L) {
+                if (runLen == 0) {
+                    runStart = i << 6;
+                }
+                runLen += 64;
+                if (runLen >= count) {
+                    return runStart;
+                }
+                continue;
+            }
+            
+            int bit = 0;
+            while (bit < 64) {
+                long rest = free >>> bit;
+                if (rest == 0) {
+                    runLen = 0;
+                    break;
+                }
+                
+                int skip = Long.numberOfTrailingZeros(rest);
+                if (skip > 0) {
+                    runLen = 0;
+                    bit += skip;
+                }
+                
+                int len = Long.numberOfTrailingZeros(~(free >>> bit));
+                if (runLen == 0) {
+                    runStart = (i << 6) + bit;
+                }
+                runLen += len;
+                if (runLen >= count) {
+                    return runStart;
+                }
+                
+                bit += len;
+                if (bit < 64) {
+                    runLen = 0;
+                }
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Serialize the map in the same layout that it was read from.
+     * @return the map
+     */
+    byte[] toByteArray() {
+        return toByteArray(0, mapBytes);
+    }
+    
+    /**
+     * Serialize part of the map in the same layout that it was read from.
+     * @param off offset in the map, in bytes
+     * @param len number of bytes
+     * @return the part of the map
+     */
+    byte[] toByteArray(int off, int len) {
+        byte[] map = new byte[len];
+        for (int i = 0; i < len; i++) {
+            int b = off + i;
+            map[i] = (byte) (words[b >> 3] >>> ((b & 7) * 8));
+        }
+        for (long i = Math.max(blockCount, (long) off * 8); i < (long) (off + len) * 8; i++) {
+            map[(int) (i >> 3) - off] &= ~(1 << (i & 7));
+        }
+        return map;
+    }
+
+    /**
+     * Mark every part of the map that differs from a serialized map as
+     * changed, so that writing out the changed parts over the serialized
+     * map brings it up to date.
+     * @param map the map, in the layout of {@link #toByteArray()}
+     */
+    void markChanged(byte[] map) {
+        byte[] current = toByteArray();
+        for (int i = 0; i < current.length; i++) {
+            if (i >= map.length || current[i] != map[i]) {
+                dirty.set(i >> 3);
+            }
+        }
+    }
+
+    /**
+     * Find the next part of the map that has changed since the last call
+     * to {@link #clearDirty()}, if the map is split into parts of the given
+     * size.
+     * @param from first part to look at
+     * @param partBytes size of each part in bytes, a multiple of 8
+     * @return index of the part, or -1 if no later part has changed
+     */
+    int nextDirty(int from, int partBytes) {
+        int wordsPerPart = partBytes / 8;
+        int word = dirty.nextSetBit(from * wordsPerPart);
+        return word == -1 ? -1 : word / wordsPerPart;
+    }
+    
+    /**
+     * Forget which words have changed.
+     */
+    void clearDirty() {
+        dirty.clear();
+    }
+
+}
@@ -0,0 +1,472 @@
+package com.sk89q.svfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A least recently used cache of blocks, bounded by the number of bytes held,
+ * that can be shared by any number of {@link CachedStorage}s. Blocks are
+ * keyed by their storage and block number.
+ * 
+ * <p>Writes are held in the cache until the block is evicted, its storage
+ * is flushed or closed, or the flush timer (if started) comes around. Blocks
+ * are written back while the cache is not locked, so that a slow write to
+ * one image does not hold up the others. An evicted block is still read
+ * from the cache until it has been written back, and writes to it wait
+ * for the write back, so that no thread can load stale data in the
+ * meantime.</p>
+ * 
+ * @author sk89q
+ */
+public class BlockCache {
+    
+    private static final Logger logger = Logger.getLogger(BlockCache.class.getCanonicalName());
+    
+    private final long capacity;
+    private final Map<Key, CachedBlock> blocks = new LinkedHashMap<Key, CachedBlock>(16, 0.75f, true);
+    private final Map<CachedStorage, Set<CachedBlock>> dirty = new HashMap<CachedStorage, Set<CachedBlock>>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final Map<Key, CachedBlock> writing = new HashMap<Key, CachedBlock>();
+    private long size = 0;
+    private long stamp = 0;
+    private Timer timer;
+    
+    /**
+     * Create a new cache.
+     * @param capacity maximum number of bytes of block data to hold
+     */
+    public BlockCache(long capacity) {
+        this.capacity = capacity;
+    }
+    
+    /**
+     * Get the maximum number of bytes of block data held.
+     * @return capacity in bytes
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Get the number of bytes of block data currently held.
+     * @return size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    /**
+     * Get the number of block lookups that were served from the cache.
+     * @return number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+    
+    /**
+     * Get the number of block lookups that had to go to the storage.
+     * @return number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    /**
+     * Get the number of blocks that were dropped to stay under capacity.
+     * @return number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+    
+    /**
+     * Start writing back dirty blocks of all storages periodically.
+     * @param period time between flushes, in milliseconds
+     */
+    public synchronized void startFlushTimer(long period) {
+        stopFlushTimer();
+        timer = new Timer("SimpleVFS block cache flusher", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    flushAll();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to write back cached blocks", e);
+                }
+            }
+        }, period, period);
+    }
+    
+    /**
+     * Stop the flush timer, if it was started.
+     */
+    public synchronized void stopFlushTimer() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+    
+    /**
+     * Get a stamp to pass to {@link #insertLoaded(CachedStorage, long, byte[], long)}
+     * for a block that is about to be loaded. Take it before the lookup
+     * that misses.
+     * @return stamp
+     */
+    synchronized long getStamp() {
+        return stamp;
+    }
+    
+    /**
+     * Copy data out of a cached block, or out of an evicted block that is
+     * still being written back.
+     * @param owner storage of the block
+     * @param block block number
+     * @param blockOff offset in the block
+     * @param buf buffer to copy to
+     * @param off offset in the buffer
+     * @param len number of bytes
+     * @return false if the block is not cached
+     */
+    synchronized boolean read(CachedStorage owner, long block, int blockOff, byte[] buf, int off, int len) {
+        Key key = new Key(owner, block);
+        CachedBlock cached = blocks.get(key);
+        if (cached == null) {
+            cached = writing.get(key);
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        System.arraycopy(cached.data, blockOff, buf, off, len);
+        return true;
+    }
+    
+    /**
+     * Copy data into a cached block and mark it dirty. If the block was
+     * evicted and is still being written back, this waits for the write
+     * back, so that the block is loaded again with what was written.
+     * @param owner storage of the block
+     * @param block block number
+     * @param blockOff offset in the block
+     * @param buf buffer to copy from
+     * @param off offset in the buffer
+     * @param len number of bytes
+     * @return false if the block is not cached
+     * @throws InterruptedIOException thrown if interrupted while waiting
+     */
+    synchronized boolean write(CachedStorage owner, long block, int blockOff, byte[] buf, int off, int len)
+            throws InterruptedIOException {
+        Key key = new Key(owner, block);
+        awaitWriteBack(key);
+        CachedBlock cached = blocks.get(key);
+        if (cached == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        System.arraycopy(buf, off, cached.data, blockOff, len);
+        markDirty(cached);
+        return true;
+    }
+    
+    /**
+     * Add a block that was loaded from the storage, evicting other blocks
+     * as necessary. Nothing is added if the block was written to since the
+     * stamp was taken, as the loaded data may be older than what was
+     * written.
+     * @param owner storage of the block
+     * @param block block number
+     * @param data contents of the block
+     * @param loadStamp stamp from {@link #getStamp()}
+     * @throws IOException thrown if an evicted block could not be written back
+     */
+    void insertLoaded(CachedStorage owner, long block, byte[] data, long loadStamp) throws IOException {
+        List<CachedBlock> evicted;
+        synchronized (this) {
+            Key key = new Key(owner, block);
+            if (loadStamp != stamp || blocks.containsKey(key) || writing.containsKey(key)) {
+                return;
+            }
+            add(new CachedBlock(key, data));
+            evicted = evict();
+        }
+        writeBack(evicted);
+    }
+    
+    /**
+     * Add a block that is being written, evicting other blocks as necessary.
+     * If the block has been cached since it was loaded, only the written
+     * range is copied into the cached block.
+     * @param owner storage of the block
+     * @param block block number
+     * @param data contents of the block, with the written range filled in
+     * @param dirtyOff start of the written range in the block
+     * @param dirtyLen length of the written range
+     * @throws IOException thrown if an evicted block could not be written back
+     */
+    void insertWritten(CachedStorage owner, long block, byte[] data, int dirtyOff, int dirtyLen) throws IOException {
+        List<CachedBlock> evicted;
+        synchronized (this) {
+            Key key = new Key(owner, block);
+            awaitWriteBack(key);
+            CachedBlock cached = blocks.get(key);
+            if (cached != null) {
+                System.arraycopy(data, dirtyOff, cached.data, dirtyOff, dirtyLen);
+                markDirty(cached);
+                return;
+            }
+            cached = new CachedBlock(key, data);
+            add(cached);
+            markDirty(cached);
+            evicted = evict();
+        }
+        writeBack(evicted);
+    }
+    
+    private void add(CachedBlock cached) {
+        blocks.put(cached.key, cached);
+        size += cached.data.length;
+    }
+    
+    /**
+     * Evict the least recently used blocks until the cache is within its
+     * capacity again. Dirty blocks are kept readable until they have been
+     * written back, which the caller has to do once it has let go of the
+     * cache.
+     * @return evicted blocks that have to be written back
+     */
+    private List<CachedBlock> evict() {
+        List<CachedBlock> evicted = null;
+        Iterator<CachedBlock> it = blocks.values().iterator();
+        while (size > capacity && it.hasNext()) {
+            CachedBlock cached = it.next();
+            it.remove();
+            size -= cached.data.length;
+            evictions.incrementAndGet();
+            if (cached.dirty) {
+                if (evicted == null) {
+                    evicted = new ArrayList<CachedBlock>();
+                }
+                writing.put(cached.key, cached);
+                evicted.add(cached);
+            }
+        }
+        return evicted;
+    }
+    
+    /**
+     * Write back blocks that were evicted. A block that can't be written
+     * back is put back in the cache, still dirty, unless the block was
+     * cached again in the meantime.
+     * @param evicted evicted blocks, or null
+     * @throws IOException thrown on write error
+     */
+    private void writeBack(List<CachedBlock> evicted) throws IOException {
+        if (evicted == null) {
+            return;
+        }
+        
+        IOException error = null;
+        for (CachedBlock cached : evicted) {
+            boolean written = false;
+            try {
+                writeBack(cached);
+                written = true;
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                synchronized (this) {
+                    writing.remove(cached.key);
+                    if (!written && !blocks.containsKey(cached.key)) {
+                        add(cached);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+    
+    /**
+     * Wait until a block is no longer being written back after having been
+     * evicted. Must be called while locked.
+     * @param key key of the block
+     * @throws InterruptedIOException thrown if interrupted
+     */
+    private void awaitWriteBack(Key key) throws InterruptedIOException {
+        while (writing.containsKey(key)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for a block to be written back");
+            }
+        }
+    }
+    
+    /**
+     * Write back all dirty blocks of the given storage. The blocks are
+     * written while the cache is not locked, so other storages can be used
+     * in the meantime.
+     * @param owner storage
+     * @throws IOException thrown on write error
+     */
+    void flush(CachedStorage owner) throws IOException {
+        List<CachedBlock> pending;
+        synchronized (this) {
+            Set<CachedBlock> set = dirty.get(owner);
+            if (set == null) {
+                return;
+            }
+            pending = new ArrayList<CachedBlock>(set);
+        }
+        for (CachedBlock cached : pending) {
+            writeBack(cached);
+        }
+    }
+    
+    /**
+     * Write back all dirty blocks.
+     * @throws IOException thrown on write error
+     */
+    public void flushAll() throws IOException {
+        List<CachedStorage> owners;
+        synchronized (this) {
+            owners = new ArrayList<CachedStorage>(dirty.keySet());
+        }
+        for (CachedStorage owner : owners) {
+            flush(owner);
+        }
+    }
+    
+    /**
+     * Write back all dirty blocks of the given storage and drop all of its
+     * blocks from the cache. The storage must not be used in the meantime.
+     * @param owner storage
+     * @throws IOException thrown on write error
+     */
+    void invalidate(CachedStorage owner) throws IOException {
+        flush(owner);
+        
+        synchronized (this) {
+            Iterator<CachedBlock> it = blocks.values().iterator();
+            while (it.hasNext()) {
+                CachedBlock cached = it.next();
+                if (cached.key.owner == owner) {
+                    it.remove();
+                    size -= cached.data.length;
+                }
+            }
+            
+            for (Key key : new ArrayList<Key>(writing.keySet())) {
+                if (key.owner == owner) {
+                    awaitWriteBack(key);
+                }
+            }
+        }
+    }
+    
+    private void markDirty(CachedBlock cached) {
+        stamp++;
+        if (!cached.dirty) {
+            cached.dirty = true;
+            Set<CachedBlock> pending = dirty.get(cached.key.owner);
+            if (pending == null) {
+                pending = new LinkedHashSet<CachedBlock>();
+                dirty.put(cached.key.owner, pending);
+            }
+            pending.add(cached);
+        }
+    }
+    
+    /**
+     * Write back one block, if it is dirty. The data is copied while the
+     * cache is locked and written while it is not. Write backs of the same
+     * block are done one at a time, so an older copy can't be written over
+     * a newer one.
+     * @param cached block
+     * @throws IOException thrown on write error
+     */
+    private void writeBack(CachedBlock cached) throws IOException {
+        synchronized (cached) {
+            byte[] data;
+            synchronized (this) {
+                if (!cached.dirty) {
+                    return;
+                }
+                data = cached.data.clone();
+                cached.dirty = false;
+                
+                Set<CachedBlock> pending = dirty.get(cached.key.owner);
+                if (pending != null) {
+                    pending.remove(cached);
+                    if (pending.isEmpty()) {
+                        dirty.remove(cached.key.owner);
+                    }
+                }
+            }
+            
+            try {
+                cached.key.owner.writeBack(cached.key.block, data);
+            } catch (IOException e) {
+                synchronized (this) {
+                    markDirty(cached);
+                }
+                throw e;
+            }
+        }
+    }
+    
+    private static class Key {
+        private final CachedStorage owner;
+        private final long block;
+        
+        private Key(CachedStorage owner, long block) {
+            this.owner = owner;
+            this.block = block;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(owner) * 31 + (int) (block ^ (block >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return owner == other.owner && block == other.block;
+        }
+    }
+    
+    private static class CachedBlock {
+        private final Key key;
+        private final byte[] data;
+        private boolean dirty = false;
+        
+        private CachedBlock(Key key, byte[] data) {
+            this.key = key;
+            this.data = data;
+        }
+    }
+
+}
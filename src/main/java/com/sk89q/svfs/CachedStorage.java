@@ -0,0 +1,182 @@
+package com.sk89q.svfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Storage that goes through a shared {@link BlockCache} before reaching
+ * another storage. The storage is split into fixed size blocks, and whole
+ * blocks are loaded and written back at a time. Blocks start after the
+ * image header, so that each block of the image is one block of the cache,
+ * and the header itself is read and written directly.
+ * 
+ * <p>Reads and writes are not serialized. Writes to the same block from
+ * different threads have to be ordered by the caller, as {@link SimpleVFS}
+ * already does.</p>
+ * 
+ * @author sk89q
+ */
+public class CachedStorage implements Storage {
+    
+    private final BlockCache cache;
+    private final Storage storage;
+    private final int blockSize;
+    private volatile long length;
+    
+    /**
+     * Create a cached storage for an image with the default block size of
+     * {@link SimpleVFS#DEFAULT_BLOCK_SIZE}.
+     * @param cache cache to use
+     * @param storage storage to cache
+     * @throws IOException thrown if the length of the storage cannot be read
+     */
+    public CachedStorage(BlockCache cache, Storage storage) throws IOException {
+        this(cache, storage, SimpleVFS.DEFAULT_BLOCK_SIZE);
+    }
+    
+    /**
+     * Create a cached storage for an image.
+     * @param cache cache to use
+     * @param storage storage to cache
+     * @param blockSize block size of the image, in bytes
+     * @throws IOException thrown if the length of the storage cannot be read
+     */
+    public CachedStorage(BlockCache cache, Storage storage, int blockSize) throws IOException {
+        this.cache = cache;
+        this.storage = storage;
+        this.blockSize = blockSize;
+        this.length = storage.length();
+    }
+    
+    /**
+     * Read a block from the underlying storage.
+     * @param block block number
+     * @return the block's data, zero filled past the end of the storage
+     * @throws IOException on I/O error
+     */
+    private byte[] load(long block) throws IOException {
+        byte[] data = new byte[blockSize];
+        long start = SimpleVFS.HEADER_SIZE + block * blockSize;
+        long available = storage.length() - start;
+        if (available > 0) {
+            storage.read(start, data, 0, (int) Math.min(blockSize, available));
+        }
+        return data;
+    }
+    
+    /**
+     * Write a block back to the underlying storage. Called by the cache.
+     * @param block block number
+     * @param data the block's data
+     * @throws IOException on I/O error
+     */
+    void writeBack(long block, byte[] data) throws IOException {
+        long start = SimpleVFS.HEADER_SIZE + block * blockSize;
+        int len = (int) Math.min(blockSize, length - start);
+        if (len > 0) {
+            storage.write(start, data, 0, len);
+        }
+    }
+
+    @Override
+    public void read(long position, byte[] buf, int off, int len) throws IOException {
+        if (position + len > length) {
+            throw new EOFException("Read past the end of the storage");
+        }
+        
+        if (position < SimpleVFS.HEADER_SIZE) {
+            int n = (int) Math.min(len, SimpleVFS.HEADER_SIZE - position);
+            storage.read(position, buf, off, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+        
+        while (len > 0) {
+            long rel = position - SimpleVFS.HEADER_SIZE;
+            long block = rel / blockSize;
+            int blockOff = (int) (rel % blockSize);
+            int n = Math.min(len, blockSize - blockOff);
+            
+            long stamp = cache.getStamp();
+            if (!cache.read(this, block, blockOff, buf, off, n)) {
+                byte[] data = load(block);
+                cache.insertLoaded(this, block, data, stamp);
+                System.arraycopy(data, blockOff, buf, off, n);
+            }
+            
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] buf, int off, int len) throws IOException {
+        synchronized (this) {
+            length = Math.max(length, position + len);
+        }
+        
+        if (position < SimpleVFS.HEADER_SIZE) {
+            int n = (int) Math.min(len, SimpleVFS.HEADER_SIZE - position);
+            storage.write(position, buf, off, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+        
+        while (len > 0) {
+            long rel = position - SimpleVFS.HEADER_SIZE;
+            long block = rel / blockSize;
+            int blockOff = (int) (rel % blockSize);
+            int n = Math.min(len, blockSize - blockOff);
+            
+            if (!cache.write(this, block, blockOff, buf, off, n)) {
+                // Whole blocks being replaced don't have to be read first
+                byte[] data = n == blockSize ? new byte[blockSize] : load(block);
+                System.arraycopy(buf, off, data, blockOff, n);
+                cache.insertWritten(this, block, data, blockOff, n);
+            }
+            
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public long length() throws IOException {
+        return length;
+    }
+
+    /**
+     * Drops every block of this storage from the cache, writing back the
+     * dirty ones, before truncating the underlying storage.
+     * @param length length in bytes
+     * @throws IOException on I/O error
+     */
+    @Override
+    public synchronized void truncate(long length) throws IOException {
+        if (length < this.length) {
+            cache.invalidate(this);
+            this.length = length;
+            storage.truncate(length);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        cache.flush(this);
+        storage.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            cache.invalidate(this);
+        } finally {
+            storage.close();
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.sk89q.svfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Positional reads and writes on a {@link FileChannel} that go through a
+ * direct buffer kept by each thread.
+ * 
+ * <p>A channel can only transfer to and from a direct buffer, so reads and
+ * writes with a heap buffer are copied through a temporary direct buffer
+ * anyway. Doing it here keeps the direct memory down to one buffer per
+ * thread, no larger than the transfers that it made, and lets the writes
+ * of a {@link WriteBatch} that follow on from each other be gathered into
+ * one buffer and written in one call. {@link FileChannel} has no
+ * positional gathering write, and using its shared position would mean
+ * locking out every other thread.</p>
+ * 
+ * <p>Small transfers, such as of index records, are made straight from
+ * the caller's array.</p>
+ * 
+ * @author sk89q
+ */
+final class ChannelIO {
+    
+    /**
+     * The largest size of each thread's buffer, and so the largest transfer
+     * made at once.
+     */
+    static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_HEAP_TRANSFER = 16 * 1024;
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>();
+    
+    private ChannelIO() {
+    }
+    
+    /**
+     * Get the direct buffer of the current thread, growing it first if it
+     * is smaller than the given size and than {@link #BUFFER_SIZE}.
+     * @param size number of bytes to be transferred
+     * @return cleared buffer
+     */
+    private static ByteBuffer buffer(long size) {
+        int wanted = (int) Math.min(Math.max(size, MAX_HEAP_TRANSFER), BUFFER_SIZE);
+        ByteBuffer buf = buffers.get();
+        if (buf == null || buf.capacity() < wanted) {
+            buf = ByteBuffer.allocateDirect(Math.min(Integer.highestOneBit(wanted - 1) * 2, BUFFER_SIZE));
+            buffers.set(buf);
+        }
+        buf.clear();
+        return buf;
+    }
+    
+    /**
+     * Read exactly the given number of bytes at the given position.
+     * @param channel channel
+     * @param position position in the file
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param len number of bytes
+     * @throws IOException on read error, or if the file ends early
+     */
+    static void read(FileChannel channel, long position, byte[] b, int off, int len) throws IOException {
+        if (len <= MAX_HEAP_TRANSFER) {
+            ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+            while (dst.hasRemaining()) {
+                if (channel.read(dst, position + dst.position() - off) < 0) {
+                    throw new EOFException("Read past the end of the file");
+                }
+            }
+            return;
+        }
+        
+        ByteBuffer buf = buffer(len);
+        while (len > 0) {
+            buf.clear();
+            buf.limit(Math.min(len, buf.capacity()));
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position()) < 0) {
+                    throw new EOFException("Read past the end of the file");
+                }
+            }
+            buf.flip();
+            int n = buf.remaining();
+            buf.get(b, off, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+    
+    /**
+     * Write the given bytes at the given position.
+     * @param channel channel
+     * @param position position in the file
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param len number of bytes
+     * @throws IOException on write error
+     */
+    static void write(FileChannel channel, long position, byte[] b, int off, int len) throws IOException {
+        if (len <= MAX_HEAP_TRANSFER) {
+            ByteBuffer src = ByteBuffer.wrap(b, off, len);
+            while (src.hasRemaining()) {
+                channel.write(src, position + src.position() - off);
+            }
+            return;
+        }
+        
+        ByteBuffer buf = buffer(len);
+        while (len > 0) {
+            int n = Math.min(len, buf.capacity());
+            buf.put(b, off, n);
+            flush(channel, buf, position);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+    
+    /**
+     * Make every write of a batch. Runs of writes that each start where the
+     * last one ended are gathered into one buffer and written at once.
+     * Writes are never reordered, so later writes still win where they
+     * overlap earlier ones.
+     * @param channel channel
+     * @param batch writes
+     * @throws IOException on write error
+     */
+    static void write(FileChannel channel, WriteBatch batch) throws IOException {
+        if (batch.size() == 1) {
+            write(channel, batch.getPosition(0), batch.getBuffer(0), batch.getOffset(0), batch.getLength(0));
+            return;
+        }
+        
+        long total = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            total += batch.getLength(i);
+        }
+        
+        ByteBuffer buf = buffer(total);
+        long start = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            long position = batch.getPosition(i);
+            byte[] b = batch.getBuffer(i);
+            int off = batch.getOffset(i);
+            int len = batch.getLength(i);
+            
+            if (buf.position() > 0 && position != start + buf.position()) {
+                flush(channel, buf, start);
+            }
+            
+            while (len > 0) {
+                if (buf.position() == 0) {
+                    start = position;
+                }
+                int n = Math.min(len, buf.remaining());
+                buf.put(b, off, n);
+                position += n;
+                off += n;
+                len -= n;
+                if (!buf.hasRemaining()) {
+                    flush(channel, buf, start);
+                }
+            }
+        }
+        
+        if (buf.position() > 0) {
+            flush(channel, buf, start);
+        }
+    }
+    
+    private static void flush(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf, position + buf.position());
+        }
+        buf.clear();
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.sk89q.svfs;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds blocks of a {@link SimpleVFS} by their contents, so that a block
+ * with the same contents as one that is already stored can be shared
+ * instead of being written again. Only a 64-bit hash of each block is kept,
+ * so a candidate has to be compared byte for byte before it is shared.
+ */
+final class ContentIndex {
+    
+    private final Map<Long, Integer> blocks = new HashMap<Long, Integer>();
+    private final Map<Integer, Long> hashes = new HashMap<Integer, Long>();
+    
+    /**
+     * Find a block that may have contents with the given hash.
+     * @param hash hash from {@link #hash(byte[], int, int)}
+     * @return block number, or -1 if there is none
+     */
+    int find(long hash) {
+        Integer block = blocks.get(hash);
+        return block != null ? block : -1;
+    }
+    
+    /**
+     * Remember the hash of a block's contents. If another block already
+     * has the same hash, that one is kept.
+     * @param hash hash from {@link #hash(byte[], int, int)}
+     * @param block block number
+     */
+    void add(long hash, int block) {
+        if (!blocks.containsKey(hash)) {
+            blocks.put(hash, block);
+            hashes.put(block, hash);
+        }
+    }
+    
+    /**
+     * Forget a block, because it has been freed.
+     * @param block block number
+     */
+    void remove(int block) {
+        Long hash = hashes.remove(block);
+        if (hash != null) {
+            blocks.remove(hash);
+        }
+    }
+    
+    /**
+     * Hash the contents of a block with 64-bit FNV-1a, starting from the
+     * length so that a partly filled block does not match a full one.
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param len number of bytes
+     * @return hash
+     */
+    static long hash(byte[] b, int off, int len) {
+        long h = 0xcbf29ce484222325L ^ len;
+        for (int i = off; i < off + len; i++) {
+            h ^= b[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+}
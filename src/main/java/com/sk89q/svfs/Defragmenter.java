@@ -0,0 +1,163 @@
+package com.sk89q.svfs;
+
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Defragments a {@link SimpleVFS} while it is in use, a little at a time.
+ * 
+ * <p>Each pass goes over the files that existed when it started. A file is
+ * copied into the first contiguous run of free blocks that fits it, if it
+ * is fragmented or if that run comes before where it is stored now, and is
+ * then switched over like any other write. As runs are taken from the
+ * start of the image, files move towards the front and the free space
+ * towards the end. At the end of a pass that moved anything, or that
+ * found the index at the end of the image, the index is rewritten in new
+ * blocks and the image is truncated after the last used block.</p>
+ * 
+ * <p>The lock of the file system is only held to pick the blocks and to
+ * switch the file over, never while data is copied, and each call to
+ * {@link #step(long)} stops after the file that runs past its time
+ * slice.</p>
+ * 
+ * @author sk89q
+ */
+public class Defragmenter {
+    
+    private static final Logger logger = Logger.getLogger(Defragmenter.class.getCanonicalName());
+    
+    private final SimpleVFS vfs;
+    private int[] files;
+    private int position = 0;
+    private int passes = 0;
+    private int filesMoved = 0;
+    private long blocksMoved = 0;
+    private long passBlocksMoved = 0;
+    private Timer timer;
+    
+    /**
+     * Create a defragmenter for the given file system.
+     * @param vfs file system
+     */
+    public Defragmenter(SimpleVFS vfs) {
+        this.vfs = vfs;
+    }
+    
+    /**
+     * Do some defragmenting. A new pass is started if none is under way.
+     * @param sliceMillis time to spend, in milliseconds
+     * @return true if the current pass has more work left
+     * @throws IOException on I/O error
+     */
+    public synchronized boolean step(long sliceMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sliceMillis);
+        
+        if (files == null) {
+            files = vfs.getFiles();
+            position = 0;
+            passBlocksMoved = 0;
+        }
+        
+        while (position < files.length) {
+            int moved = vfs.relocate(files[position++]);
+            if (moved > 0) {
+                filesMoved++;
+                blocksMoved += moved;
+                passBlocksMoved += moved;
+            }
+            
+            if (System.nanoTime() >= deadline) {
+                return position < files.length;
+            }
+        }
+        
+        // A pass that moved nothing would only rewrite the index in place
+        if (passBlocksMoved > 0 || vfs.isIndexAtEnd()) {
+            vfs.relocateIndex();
+            vfs.trim();
+        }
+        
+        files = null;
+        passes++;
+        return false;
+    }
+    
+    /**
+     * Get how far the current pass is.
+     * @return fraction between 0 and 1, which is 1 if no pass is under way
+     */
+    public synchronized double getProgress() {
+        if (files == null || files.length == 0) {
+            return 1;
+        }
+        return (double) position / files.length;
+    }
+    
+    /**
+     * Get the number of passes that have been completed.
+     * @return number of passes
+     */
+    public synchronized int getPasses() {
+        return passes;
+    }
+    
+    /**
+     * Get the number of times that a file was moved.
+     * @return number of moves
+     */
+    public synchronized int getFilesMoved() {
+        return filesMoved;
+    }
+    
+    /**
+     * Get the number of blocks that were copied to move files.
+     * @return number of blocks
+     */
+    public synchronized long getBlocksMoved() {
+        return blocksMoved;
+    }
+    
+    /**
+     * Get how fragmented the file system is right now.
+     * @return fragmentation
+     * @throws IOException on I/O error
+     */
+    public Fragmentation getFragmentation() throws IOException {
+        return vfs.getFragmentation();
+    }
+    
+    /**
+     * Start defragmenting in the background, one time slice per period.
+     * @param period time between steps, in milliseconds
+     * @param sliceMillis time to spend per step, in milliseconds
+     */
+    public synchronized void start(long period, final long sliceMillis) {
+        stop();
+        timer = new Timer("SimpleVFS defragmenter", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    step(sliceMillis);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to defragment " + vfs.getBaseFile(), e);
+                }
+            }
+        }, period, period);
+    }
+    
+    /**
+     * Stop defragmenting in the background, if it was started.
+     */
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+}
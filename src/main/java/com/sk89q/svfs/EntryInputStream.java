@@ -3,50 +3,391 @@ package com.sk89q.svfs;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
+/**
+ * Reads an entry from its extents. Entries that were stored compressed are
+ * inflated as they are read, a chunk of the stored data at a time. Small
+ * entries that are stored in the index are read from memory.
+ * 
+ * <p>Reads smaller than the read-ahead window are served from a buffer that
+ * is filled from the extents a window at a time, so that a program reading
+ * a few bytes at a time does not go to the storage for every read. The
+ * window starts at one block and doubles with every read that continues
+ * where the last one left off, up to {@link #MAX_READ_AHEAD}, so a long
+ * sequential read turns into a few large reads. Seeking starts it over.</p>
+ */
 class EntryInputStream extends InputStream {
     
+    /**
+     * The largest read-ahead window, in bytes, unless a block is larger.
+     */
+    static final int MAX_READ_AHEAD = 256 * 1024;
+    
     private final SimpleVFS vfs;
-    private final RandomAccessFile stream;
+    private final Storage storage;
+    private final ExtentList extents;
+    private final byte[] data;
+    private final int blockSize;
+    private final byte[] single = new byte[1];
+    private final long len;
     private long pos = 0;
-    private long len = 0;
-    private int blockLenLeft;
-    private int nextBlock;
+    private long cursor = 0;
+    private byte[] ahead;
+    private int aheadPos;
+    private int aheadLen;
+    private int window;
+    private int extent;
+    private long position;
+    private long extentLeft;
+    private final long size;
+    private Inflater inflater;
+    private byte[] input;
+    private long inflated = 0;
+    private long pinned = 0;
+    private boolean closed = false;
+    
+    EntryInputStream(SimpleVFS vfs, ExtentList extents, long len) throws IOException {
+        this(vfs, extents, len, len, false);
+    }
+    
+    /**
+     * Create a stream for an entry.
+     * @param vfs the VFS
+     * @param extents extents of the entry
+     * @param len number of bytes stored in the extents
+     * @param size size of the entry once inflated
+     * @param compressed true if the stored data is deflated
+     * @throws IOException on I/O error
+     */
+    EntryInputStream(SimpleVFS vfs, ExtentList extents, long len, long size, boolean compressed) throws IOException {
+        this.vfs = vfs;
+        this.storage = vfs.getStorage();
+        this.extents = extents;
+        this.data = null;
+        this.blockSize = vfs.getBlockSize();
+        this.len = len;
+        this.size = size;
+        
+        if ((len + blockSize - 1) / blockSize > extents.getBlockCount()) {
+            throw new IOException("Entry has fewer blocks than its length needs");
+        }
+        
+        seek(0);
+        
+        if (compressed) {
+            inflater = new Inflater();
+            input = new byte[blockSize];
+        }
+    }
     
-    EntryInputStream(SimpleVFS vfs, int startBlock) throws IOException {
+    /**
+     * Create a stream for an entry whose contents are stored inline in the
+     * index.
+     * @param vfs the VFS
+     * @param data contents of the entry
+     */
+    EntryInputStream(SimpleVFS vfs, byte[] data) {
         this.vfs = vfs;
-        this.stream = vfs.getStream();
+        this.storage = vfs.getStorage();
+        this.extents = ExtentList.EMPTY;
+        this.data = data;
+        this.blockSize = vfs.getBlockSize();
+        this.len = data.length;
+        this.size = data.length;
+    }
+    
+    /**
+     * Get the length of the entry.
+     * @return length in bytes, once inflated
+     */
+    long getLength() {
+        return size;
+    }
+    
+    /**
+     * Move to the given position in the entry. The extent holding the
+     * position is found with a binary search, unless the position is still
+     * in the read-ahead buffer. Compressed entries cannot be seeked in.
+     * @param newPos position in bytes, up to the length of the entry
+     * @throws IOException on I/O error
+     */
+    void seek(long newPos) throws IOException {
+        ensureOpen();
+        
+        if (inflater != null) {
+            throw new IOException("Can't seek in a compressed entry");
+        }
+        
+        if (newPos < 0 || newPos > len) {
+            throw new IOException("Seek out of range");
+        }
+        
+        long bufferStart = cursor - aheadLen;
+        if (aheadLen > 0 && newPos >= bufferStart && newPos <= cursor) {
+            aheadPos = (int) (newPos - bufferStart);
+            pos = newPos;
+            return;
+        }
         
-        stream.seek(startBlock);
-        readBlockHeader();
+        pos = newPos;
+        cursor = newPos;
+        aheadPos = 0;
+        aheadLen = 0;
+        window = blockSize;
+        
+        if (pos == len || data != null) {
+            extentLeft = 0;
+            return;
+        }
+        
+        int index = (int) (pos / blockSize);
+        extent = extents.find(index);
+        int blockInExtent = index - extents.getOffset(extent);
+        int blockOff = (int) (pos % blockSize);
+        
+        position = vfs.getOffset(extents.getStart(extent) + blockInExtent) + blockOff;
+        extentLeft = (long) (extents.getLength(extent) - blockInExtent) * blockSize - blockOff;
     }
     
-    private void readBlockHeader() throws IOException {
-        this.len = stream.readInt() & 0xFFFFFFFFL;
-        this.nextBlock = stream.readUnsignedShort();
-        this.blockLenLeft = vfs.getBlockSize() - SimpleVFS.FILE_HEADER_SIZE;
+    /**
+     * Move on to the next extent if the current one has been completely
+     * read.
+     * @throws IOException on I/O error or if the extents end early
+     */
+    private void nextExtentIfNeeded() throws IOException {
+        if (extentLeft < 1) {
+            if (extent + 1 >= extents.size()) {
+                throw new EOFException("No more extents to read, but length of file not reached.");
+            }
+            extent++;
+            position = vfs.getOffset(extents.getStart(extent));
+            extentLeft = (long) extents.getLength(extent) * blockSize;
+        }
     }
 
     @Override
     public int read() throws IOException {
+        if (read(single, 0, 1) == -1) {
+            return -1;
+        }
+        return single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int n) throws IOException {
+        ensureOpen();
+        
+        if (off < 0 || n < 0 || n > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        
+        if (n == 0) {
+            return 0;
+        }
+        
+        if (inflater != null) {
+            return inflate(b, off, n);
+        }
+        
+        return readStored(b, off, n);
+    }
+    
+    /**
+     * Inflate data from the entry, reading more of the stored data as the
+     * inflater runs out of input.
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param n maximum number of bytes
+     * @return number of bytes inflated, or -1 at the end of the entry
+     * @throws IOException on read error, or if the data is corrupt
+     */
+    private int inflate(byte[] b, int off, int n) throws IOException {
+        try {
+            while (true) {
+                int count = inflater.inflate(b, off, n);
+                if (count > 0) {
+                    inflated += count;
+                    return count;
+                }
+                
+                if (inflater.finished()) {
+                    return -1;
+                } else if (inflater.needsInput()) {
+                    int stored = readStored(input, 0, input.length);
+                    if (stored == -1) {
+                        throw new EOFException("Compressed entry ends early");
+                    }
+                    inflater.setInput(input, 0, stored);
+                } else {
+                    throw new IOException("Compressed entry needs a dictionary");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed entry is corrupt: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Read the stored data of the entry.
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param n maximum number of bytes
+     * @return number of bytes read, or -1 at the end of the stored data
+     * @throws IOException on read error
+     */
+    private int readStored(byte[] b, int off, int n) throws IOException {
         if (pos >= len) {
             return -1;
         }
         
-        // Jump to the next block
-        if (blockLenLeft < 1) {
-            if (this.nextBlock <= 0) {
-                throw new EOFException("No more blocks to read, but length of file not reached.");
+        if (data != null) {
+            int chunk = (int) Math.min(n, len - pos);
+            System.arraycopy(data, (int) pos, b, off, chunk);
+            pos += chunk;
+            return chunk;
+        }
+        
+        int total = 0;
+        
+        while (n > 0 && pos < len) {
+            int chunk;
+            if (aheadPos < aheadLen) {
+                chunk = Math.min(n, aheadLen - aheadPos);
+                System.arraycopy(ahead, aheadPos, b, off, chunk);
+                aheadPos += chunk;
+            } else if (n >= window) {
+                // Large reads are already batched, so they skip the buffer
+                aheadPos = 0;
+                aheadLen = 0;
+                chunk = readExtents(b, off, n);
+                growWindow();
             } else {
-                stream.seek(vfs.getOffset(nextBlock));
-                readBlockHeader();
+                fillAhead();
+                continue;
             }
+            
+            pos += chunk;
+            off += chunk;
+            n -= chunk;
+            total += chunk;
         }
         
-        pos++;
-        blockLenLeft--;
-        return stream.read();
+        return total;
+    }
+    
+    /**
+     * Fill the read-ahead buffer with the next window of stored data.
+     * @throws IOException on read error
+     */
+    private void fillAhead() throws IOException {
+        int want = (int) Math.min(window, len - cursor);
+        if (ahead == null || ahead.length < want) {
+            ahead = new byte[want];
+        }
+        aheadPos = 0;
+        aheadLen = 0;
+        aheadLen = readExtents(ahead, 0, want);
+        growWindow();
+    }
+    
+    private void growWindow() {
+        window = (int) Math.min((long) window * 2, Math.max(MAX_READ_AHEAD, blockSize));
+    }
+    
+    /**
+     * Read stored data from the extents, starting at the cursor. The cursor
+     * is ahead of the position of the stream by whatever is left in the
+     * read-ahead buffer.
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param n maximum number of bytes
+     * @return number of bytes read
+     * @throws IOException on read error
+     */
+    private int readExtents(byte[] b, int off, int n) throws IOException {
+        int total = 0;
+        
+        // Each extent is contiguous, so it can be copied in one go
+        while (n > 0 && cursor < len) {
+            nextExtentIfNeeded();
+            
+            int chunk = (int) Math.min(Math.min(n, extentLeft), len - cursor);
+            storage.read(position, b, off, chunk);
+            
+            position += chunk;
+            cursor += chunk;
+            extentLeft -= chunk;
+            off += chunk;
+            n -= chunk;
+            total += chunk;
+        }
+        
+        return total;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ensureOpen();
+        
+        if (n <= 0) {
+            return 0;
+        }
+        
+        if (inflater != null) {
+            // Compressed data has to be inflated to be skipped
+            return super.skip(n);
+        }
+        
+        long skipped = Math.min(n, len - pos);
+        seek(pos + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        
+        if (inflater != null) {
+            return (int) Math.min(Integer.MAX_VALUE, size - inflated);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, len - pos);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+    }
+
+    /**
+     * Set the contents that the stream has pinned, to be released when it
+     * is closed.
+     * @param content content number
+     */
+    void setPinned(long content) {
+        this.pinned = content;
+    }
+
+    /**
+     * Release the entry's contents. Closing the stream again does nothing,
+     * as the contents may be pinned by other streams that are still open.
+     * @throws IOException on write error
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        
+        if (inflater != null) {
+            inflater.end();
+        }
+        if (pinned != 0) {
+            vfs.unpin(pinned);
+        }
     }
 
 }
@@ -1,18 +1,348 @@
 package com.sk89q.svfs;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
 
+/**
+ * Writes a new version of an entry block by block as data arrives. Blocks
+ * are reserved from the allocator in growing batches so a file written by
+ * itself ends up mostly contiguous. Filled blocks are held until there are
+ * {@link ChannelIO#BUFFER_SIZE} bytes of them, or fewer while the file is
+ * still small, and are then written as one {@link WriteBatch}, so that
+ * runs of contiguous blocks reach the storage in one write.
+ * 
+ * <p>The new blocks are not visible to readers until the stream is closed,
+ * at which point they replace the old contents of the entry in one index
+ * update. If the stream fails, the blocks written so far are freed and the
+ * old contents are left untouched.</p>
+ * 
+ * <p>When compression is enabled, data is held in memory until it grows
+ * past the threshold, and from then on is deflated on its way to the
+ * blocks. Smaller files are stored raw.</p>
+ * 
+ * <p>When deduplication is enabled, a block whose contents are already
+ * stored elsewhere is shared rather than written.</p>
+ * 
+ * <p>A file that is no larger than the inline threshold, and so never left
+ * the buffer, is stored in its index record instead of in a block.</p>
+ * 
+ * @author sk89q
+ */
 public class EntryOutputStream extends OutputStream {
+    
+    private static final int MAX_RESERVE = 64;
+    
+    private final SimpleVFS vfs;
+    private final Path path;
+    private final int maxFileSize;
+    private final int compressionThreshold;
+    private final int inlineThreshold;
+    private final boolean deduplicating;
+    private final int blockSize;
+    private final byte[] buffer;
+    private int bufferLen = 0;
+    private byte[] pending;
+    private int[] pendingBlocks;
+    private int[] pendingLengths;
+    private long[] pendingHashes;
+    private int pendingCount = 0;
+    private int[] blocks = new int[8];
+    private int written = 0;
+    private int reserved = 0;
+    private int expectedBlocks = 0;
+    private long size = 0;
+    private long stored = 0;
+    private ByteArrayOutputStream held;
+    private Deflater deflater;
+    private byte[] deflated;
+    private boolean closed = false;
 
-    public EntryOutputStream(SimpleVFS simpleVFS, int startBlock) {
-        // TODO Auto-generated constructor stub
+    /**
+     * Create a stream for a new version of an entry.
+     * @param vfs the VFS
+     * @param path path of the entry
+     * @param maxFileSize maximum number of bytes that may be written
+     * @param compressionThreshold size in bytes past which the entry is
+     *        compressed, or -1 to never compress it
+     * @param inlineThreshold size in bytes up to which the entry is stored
+     *        in the index, or -1 to always store it in blocks
+     * @param deduplicating true to share blocks whose contents are already
+     *        stored
+     */
+    EntryOutputStream(SimpleVFS vfs, Path path, int maxFileSize,
+            int compressionThreshold, int inlineThreshold, boolean deduplicating) {
+        this.vfs = vfs;
+        this.path = path;
+        this.maxFileSize = maxFileSize;
+        this.compressionThreshold = compressionThreshold;
+        this.inlineThreshold = inlineThreshold;
+        this.deduplicating = deduplicating;
+        this.blockSize = vfs.getBlockSize();
+        this.buffer = new byte[blockSize];
+        
+        if (compressionThreshold >= 0) {
+            held = new ByteArrayOutputStream();
+        }
+    }
+    
+    /**
+     * Set the number of bytes that are going to be written, if it is known,
+     * so that blocks for all of them are reserved at once and can be one
+     * contiguous run. Any that turn out not to be needed are freed again.
+     * @param expectedSize size in bytes
+     */
+    void setExpectedSize(long expectedSize) {
+        expectedBlocks = (int) ((Math.min(expectedSize, maxFileSize) + blockSize - 1) / blockSize);
+    }
+    
+    /**
+     * Write one block's worth of data into the next reserved block, reserving
+     * more blocks first if necessary.
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param len number of bytes, at most one block
+     * @throws IOException on write error, or if out of space
+     */
+    private void writeBlock(byte[] b, int off, int len) throws IOException {
+        long hash = 0;
+        
+        if (deduplicating) {
+            hash = ContentIndex.hash(b, off, len);
+            int shared = vfs.findDuplicate(hash, b, off, len);
+            
+            if (shared != -1) {
+                // Keep the reserved block that the shared one takes the place of
+                if (reserved + 1 > blocks.length) {
+                    blocks = Arrays.copyOf(blocks, blocks.length * 2);
+                }
+                blocks[reserved] = blocks[written];
+                blocks[written] = shared;
+                written++;
+                reserved++;
+                return;
+            }
+        }
+        
+        if (written == reserved) {
+            int count = Math.min(MAX_RESERVE, Math.max(1, written));
+            if (deflater == null && expectedBlocks > reserved) {
+                count = expectedBlocks - reserved;
+            }
+            int[] extra = vfs.allocateBlocks(count);
+            if (reserved + count > blocks.length) {
+                blocks = Arrays.copyOf(blocks, Math.max(blocks.length * 2, reserved + count));
+            }
+            System.arraycopy(extra, 0, blocks, reserved, count);
+            reserved += count;
+        }
+        
+        hold(blocks[written], hash, b, off, len);
+        written++;
+    }
+    
+    /**
+     * Hold a block to be written with the next batch, writing the batch
+     * first if there is no more room.
+     * @param block block number
+     * @param hash hash of the contents, if deduplicating
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param len number of bytes, at most one block
+     * @throws IOException on write error
+     */
+    private void hold(int block, long hash, byte[] b, int off, int len) throws IOException {
+        int capacity = pendingBlocks != null ? pendingBlocks.length : 0;
+        if (pendingCount == capacity) {
+            int max = Math.max(1, ChannelIO.BUFFER_SIZE / blockSize);
+            if (capacity < max) {
+                // Start small, as most files are only a few blocks
+                capacity = Math.min(max, Math.max(1, capacity * 2));
+                pending = pending != null ? Arrays.copyOf(pending, capacity * blockSize) : new byte[capacity * blockSize];
+                pendingBlocks = pendingBlocks != null ? Arrays.copyOf(pendingBlocks, capacity) : new int[capacity];
+                pendingLengths = pendingLengths != null ? Arrays.copyOf(pendingLengths, capacity) : new int[capacity];
+                pendingHashes = pendingHashes != null ? Arrays.copyOf(pendingHashes, capacity) : new long[capacity];
+            } else {
+                flushPending();
+            }
+        }
+        
+        System.arraycopy(b, off, pending, pendingCount * blockSize, len);
+        pendingBlocks[pendingCount] = block;
+        pendingLengths[pendingCount] = len;
+        pendingHashes[pendingCount] = hash;
+        pendingCount++;
+    }
+    
+    /**
+     * Write the blocks that are being held.
+     * @throws IOException on write error
+     */
+    private void flushPending() throws IOException {
+        if (pendingCount == 0) {
+            return;
+        }
+        
+        WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < pendingCount; i++) {
+            batch.add(vfs.getOffset(pendingBlocks[i]), pending, i * blockSize, pendingLengths[i]);
+        }
+        vfs.writeData(batch);
+        
+        // Only blocks that are on disk can be found as duplicates
+        if (deduplicating) {
+            for (int i = 0; i < pendingCount; i++) {
+                vfs.addContent(pendingHashes[i], pendingBlocks[i]);
+            }
+        }
+        
+        pendingCount = 0;
     }
 
     @Override
     public void write(int b) throws IOException {
-        // TODO Auto-generated method stub
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        
+        if (size + len > maxFileSize) {
+            throw new IOException("File too big, can't write more bytes");
+        }
+        
+        try {
+            size += len;
+            
+            if (deflater != null) {
+                deflate(b, off, len);
+            } else if (held != null) {
+                held.write(b, off, len);
+                
+                // Files small enough to be inlined are stored raw
+                if (held.size() > compressionThreshold && held.size() > inlineThreshold) {
+                    byte[] data = held.toByteArray();
+                    held = null;
+                    deflater = new Deflater(Deflater.BEST_SPEED);
+                    deflated = new byte[blockSize];
+                    deflate(data, 0, data.length);
+                }
+            } else {
+                writeStored(b, off, len);
+            }
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+    
+    /**
+     * Deflate data into the blocks of the entry.
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param len number of bytes
+     * @throws IOException on write error, or if out of space
+     */
+    private void deflate(byte[] b, int off, int len) throws IOException {
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            writeStored(deflated, 0, deflater.deflate(deflated));
+        }
+    }
+    
+    /**
+     * Write data, as it is to be stored, into the blocks of the entry.
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param len number of bytes
+     * @throws IOException on write error, or if out of space
+     */
+    private void writeStored(byte[] b, int off, int len) throws IOException {
+        stored += len;
+        
+        while (len > 0) {
+            if (bufferLen == 0 && len >= blockSize) {
+                // Whole blocks don't need to be copied into the buffer
+                writeBlock(b, off, blockSize);
+                off += blockSize;
+                len -= blockSize;
+            } else {
+                int n = Math.min(len, blockSize - bufferLen);
+                System.arraycopy(b, off, buffer, bufferLen, n);
+                bufferLen += n;
+                off += n;
+                len -= n;
+                
+                if (bufferLen == blockSize) {
+                    writeBlock(buffer, 0, blockSize);
+                    bufferLen = 0;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Free every block reserved by this stream and close it without
+     * publishing anything.
+     */
+    void abort() {
+        if (!closed) {
+            closed = true;
+            if (deflater != null) {
+                deflater.end();
+            }
+            vfs.freeBlocks(Arrays.copyOf(blocks, reserved));
+        }
+    }
 
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        
+        try {
+            if (deflater == null && written == 0 && size <= inlineThreshold) {
+                // Nothing has reached a block yet, so no blocks are reserved
+                byte[] data = held != null ? held.toByteArray() : Arrays.copyOf(buffer, bufferLen);
+                closed = true;
+                vfs.commit(path, data);
+                return;
+            }
+            
+            if (deflater != null) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    writeStored(deflated, 0, deflater.deflate(deflated));
+                }
+                deflater.end();
+            } else if (held != null) {
+                writeStored(held.toByteArray(), 0, held.size());
+                held = null;
+            }
+            
+            if (bufferLen > 0) {
+                writeBlock(buffer, 0, bufferLen);
+                bufferLen = 0;
+            }
+            flushPending();
+            
+            vfs.freeBlocks(Arrays.copyOfRange(blocks, written, reserved));
+            reserved = written;
+            
+            // The blocks belong to the VFS once they are committed, even
+            // if the commit fails, so they must not be freed here again
+            closed = true;
+            vfs.commit(path, ExtentList.of(Arrays.copyOf(blocks, written)), stored, size, deflater != null);
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
     }
 
 }
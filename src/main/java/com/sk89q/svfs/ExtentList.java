@@ -0,0 +1,242 @@
+package com.sk89q.svfs;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An immutable list of extents (runs of contiguous blocks) that together hold
+ * the contents of an entry, in order.
+ * 
+ * <p>The logical block index of the start of each extent is kept as well, so
+ * the extent holding any byte of the entry can be found with a binary
+ * search. Most entries have a single extent, so that is only kept for lists
+ * with more than one, and the extents themselves are packed into one array
+ * of start and length pairs.</p>
+ * 
+ * @author sk89q
+ */
+public final class ExtentList {
+    
+    /**
+     * An extent list with no blocks at all.
+     */
+    public static final ExtentList EMPTY = new ExtentList(new int[0], new int[0]);
+    
+    private final int[] extents;
+    private final int[] offsets;
+    private final int blockCount;
+    
+    /**
+     * Create a new extent list.
+     * @param starts first block of each extent
+     * @param lengths number of blocks in each extent, which must be at least 1
+     */
+    public ExtentList(int[] starts, int[] lengths) {
+        if (starts.length != lengths.length) {
+            throw new IllegalArgumentException("Mismatched extent arrays");
+        }
+        
+        this.extents = new int[starts.length * 2];
+        this.offsets = starts.length > 1 ? new int[starts.length] : null;
+        
+        int total = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] < 1) {
+                throw new IllegalArgumentException("Extents must have at least one block");
+            }
+            extents[i * 2] = starts[i];
+            extents[i * 2 + 1] = lengths[i];
+            if (offsets != null) {
+                offsets[i] = total;
+            }
+            total += lengths[i];
+        }
+        this.blockCount = total;
+    }
+    
+    /**
+     * Build an extent list from a list of blocks, merging consecutive block
+     * numbers into one extent.
+     * @param blocks block numbers, in order
+     * @return extent list
+     */
+    public static ExtentList of(int[] blocks) {
+        int count = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            if (i == 0 || blocks[i] != blocks[i - 1] + 1) {
+                count++;
+            }
+        }
+        
+        int[] starts = new int[count];
+        int[] lengths = new int[count];
+        int n = -1;
+        for (int i = 0; i < blocks.length; i++) {
+            if (i == 0 || blocks[i] != blocks[i - 1] + 1) {
+                n++;
+                starts[n] = blocks[i];
+            }
+            lengths[n]++;
+        }
+        
+        return new ExtentList(starts, lengths);
+    }
+    
+    /**
+     * Get the number of extents.
+     * @return number of extents
+     */
+    public int size() {
+        return extents.length / 2;
+    }
+    
+    /**
+     * Get the first block of an extent.
+     * @param extent index of the extent
+     * @return block number
+     */
+    public int getStart(int extent) {
+        return extents[extent * 2];
+    }
+    
+    /**
+     * Get the number of blocks in an extent.
+     * @param extent index of the extent
+     * @return number of blocks
+     */
+    public int getLength(int extent) {
+        return extents[extent * 2 + 1];
+    }
+    
+    /**
+     * Get the logical block index, within the entry, of the first block of
+     * an extent.
+     * @param extent index of the extent
+     * @return block index
+     */
+    public int getOffset(int extent) {
+        if (offsets == null) {
+            if (extent != 0 || blockCount == 0) {
+                throw new IndexOutOfBoundsException("Extent " + extent + " is not in the extent list");
+            }
+            return 0;
+        }
+        return offsets[extent];
+    }
+    
+    /**
+     * Get the total number of blocks.
+     * @return number of blocks
+     */
+    public int getBlockCount() {
+        return blockCount;
+    }
+    
+    /**
+     * Find the extent that holds the given logical block of the entry.
+     * @param index logical block index, between 0 and the block count
+     * @return index of the extent
+     */
+    public int find(int index) {
+        if (index < 0 || index >= blockCount) {
+            throw new IndexOutOfBoundsException("Block " + index + " is not in the extent list");
+        }
+        if (offsets == null) {
+            return 0;
+        }
+        int i = Arrays.binarySearch(offsets, index);
+        return i >= 0 ? i : -i - 2;
+    }
+    
+    /**
+     * Get the physical block number of the given logical block.
+     * @param index logical block index
+     * @return block number
+     */
+    public int getBlock(int index) {
+        int extent = find(index);
+        return getStart(extent) + index - getOffset(extent);
+    }
+    
+    /**
+     * Get every block in order.
+     * @return block numbers
+     */
+    public int[] toBlocks() {
+        int[] blocks = new int[blockCount];
+        int n = 0;
+        for (int i = 0; i < extents.length; i += 2) {
+            for (int j = 0; j < extents[i + 1]; j++) {
+                blocks[n++] = extents[i] + j;
+            }
+        }
+        return blocks;
+    }
+    
+    /**
+     * Write the list in its on-disk form, with 32-bit block numbers.
+     * @param out output
+     * @throws IOException on write error
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(size());
+        for (int i = 0; i < extents.length; i++) {
+            out.writeInt(extents[i]);
+        }
+    }
+    
+    /**
+     * Read a list in its on-disk form, with 32-bit block numbers.
+     * @param in input
+     * @return extent list
+     * @throws IOException on read error
+     */
+    public static ExtentList read(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Corrupt extent list");
+        }
+        int[] starts = new int[count];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = in.readInt();
+            lengths[i] = in.readInt();
+            if (starts[i] < 0 || lengths[i] < 1) {
+                throw new IOException("Corrupt extent list");
+            }
+        }
+        return new ExtentList(starts, lengths);
+    }
+    
+    /**
+     * Read a list in the on-disk form of images before version 4, with
+     * 16-bit block numbers.
+     * @param in input
+     * @return extent list
+     * @throws IOException on read error
+     */
+    public static ExtentList readNarrow(DataInput in) throws IOException {
+        int count = in.readUnsignedShort();
+        int[] starts = new int[count];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = in.readUnsignedShort();
+            lengths[i] = in.readUnsignedShort();
+            if (lengths[i] == 0) {
+                throw new IOException("Corrupt extent list");
+            }
+        }
+        return new ExtentList(starts, lengths);
+    }
+    
+    /**
+     * Get the number of bytes taken by the on-disk form.
+     * @return size in bytes
+     */
+    public int getSerializedSize() {
+        return 4 + extents.length * 4;
+    }
+
+}
@@ -0,0 +1,201 @@
+package com.sk89q.svfs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a bounded number of files open for any number of
+ * {@link PooledStorage}s, so that the number of file descriptors in use
+ * does not grow with the number of images.
+ * 
+ * <p>A storage borrows the channel of its file for each operation. When a
+ * file that is not open is needed and the pool is full, the least recently
+ * used file that is not being borrowed is closed. If every open file is
+ * being borrowed, the caller waits. A file whose channel was closed, such
+ * as by an interrupt, is opened again on the next use.</p>
+ * 
+ * <p>Files are not forced before they are closed. Forcing a channel
+ * forces everything that was written to the file, through whichever
+ * channel it was written.</p>
+ * 
+ * @author sk89q
+ */
+public class FileChannelPool implements Closeable {
+    
+    private final int maxOpen;
+    private final Map<File, Handle> open = new LinkedHashMap<File, Handle>(16, 0.75f, true);
+    private long opened = 0;
+    private long evicted = 0;
+    
+    /**
+     * Create a new pool.
+     * @param maxOpen maximum number of files that may be open at once
+     */
+    public FileChannelPool(int maxOpen) {
+        if (maxOpen < 1) {
+            throw new IllegalArgumentException("At least one file has to be allowed open");
+        }
+        this.maxOpen = maxOpen;
+    }
+    
+    /**
+     * Get the maximum number of files that may be open at once.
+     * @return number of files
+     */
+    public int getMaxOpen() {
+        return maxOpen;
+    }
+    
+    /**
+     * Get the number of files that are open.
+     * @return number of files
+     */
+    public synchronized int getOpenCount() {
+        return open.size();
+    }
+    
+    /**
+     * Get the number of times that a file was opened.
+     * @return number of opens
+     */
+    public synchronized long getOpened() {
+        return opened;
+    }
+    
+    /**
+     * Get the number of times that a file was closed to make room.
+     * @return number of evictions
+     */
+    public synchronized long getEvicted() {
+        return evicted;
+    }
+    
+    /**
+     * Borrow the channel of a file, opening the file if necessary. It has
+     * to be returned with {@link #release(Handle)}.
+     * @param file file
+     * @return handle of the open file
+     * @throws IOException thrown if the file cannot be opened
+     */
+    synchronized Handle acquire(File file) throws IOException {
+        while (true) {
+            Handle handle = open.get(file);
+            
+            if (handle != null && !handle.channel.isOpen() && handle.users == 0) {
+                open.remove(file);
+                handle.close();
+                handle = null;
+            }
+            
+            if (handle != null) {
+                handle.users++;
+                return handle;
+            }
+            
+            if (open.size() < maxOpen || evict()) {
+                handle = new Handle(new RandomAccessFile(file, "rw"));
+                handle.users++;
+                open.put(file, handle);
+                opened++;
+                return handle;
+            }
+            
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an open file");
+            }
+        }
+    }
+    
+    /**
+     * Return a borrowed channel.
+     * @param handle handle from {@link #acquire(File)}
+     */
+    synchronized void release(Handle handle) {
+        handle.users--;
+        notifyAll();
+    }
+    
+    /**
+     * Close the least recently used file that is not being borrowed.
+     * @return true if a file was closed
+     * @throws IOException on I/O error
+     */
+    private boolean evict() throws IOException {
+        Iterator<Handle> it = open.values().iterator();
+        while (it.hasNext()) {
+            Handle handle = it.next();
+            if (handle.users == 0) {
+                it.remove();
+                evicted++;
+                handle.close();
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Close a file if it is open and not being borrowed.
+     * @param file file
+     * @throws IOException on I/O error
+     */
+    synchronized void close(File file) throws IOException {
+        Handle handle = open.get(file);
+        if (handle != null && handle.users == 0) {
+            open.remove(file);
+            handle.close();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Close every file that is not being borrowed.
+     * @throws IOException on I/O error
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        List<File> files = new ArrayList<File>(open.keySet());
+        for (File file : files) {
+            close(file);
+        }
+    }
+    
+    /**
+     * An open file.
+     */
+    static class Handle {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private int users = 0;
+        
+        private Handle(RandomAccessFile file) {
+            this.file = file;
+            this.channel = file.getChannel();
+        }
+        
+        /**
+         * Get the channel of the file.
+         * @return channel
+         */
+        FileChannel getChannel() {
+            return channel;
+        }
+        
+        private void close() throws IOException {
+            file.close();
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.sk89q.svfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Storage that goes through a {@link FileChannel} with positional reads and
+ * writes, so that there is no shared file pointer and any number of threads
+ * can access the file at the same time.
+ * 
+ * <p>Transfers go through the pooled direct buffers of {@link ChannelIO},
+ * which also gathers batches of adjacent writes into single writes.</p>
+ * 
+ * <p>Note that a thread being interrupted in the middle of an access
+ * closes the channel for all users.</p>
+ * 
+ * @author sk89q
+ */
+public class FileStorage implements GatheringStorage {
+    
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    
+    /**
+     * Open the given file for storage, creating it if it does not exist.
+     * @param file file
+     * @throws IOException thrown if the file cannot be opened
+     */
+    public FileStorage(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+    }
+
+    @Override
+    public void read(long position, byte[] buf, int off, int len) throws IOException {
+        ChannelIO.read(channel, position, buf, off, len);
+    }
+
+    @Override
+    public void write(long position, byte[] buf, int off, int len) throws IOException {
+        ChannelIO.write(channel, position, buf, off, len);
+    }
+
+    @Override
+    public void write(WriteBatch batch) throws IOException {
+        ChannelIO.write(channel, batch);
+    }
+
+    @Override
+    public long length() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void truncate(long length) throws IOException {
+        if (length < channel.size()) {
+            channel.truncate(length);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        channel.force(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+}
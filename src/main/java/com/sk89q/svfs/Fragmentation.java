@@ -0,0 +1,94 @@
+package com.sk89q.svfs;
+
+/**
+ * A snapshot of how fragmented the files of a {@link SimpleVFS} are, and of
+ * how much free space is stranded below the last used block.
+ * 
+ * @author sk89q
+ */
+public class Fragmentation {
+    
+    private final int fileCount;
+    private final int fragmentedFileCount;
+    private final int extentCount;
+    private final int usedBlocks;
+    private final int lastUsedBlock;
+    
+    Fragmentation(int fileCount, int fragmentedFileCount, int extentCount,
+            int usedBlocks, int lastUsedBlock) {
+        this.fileCount = fileCount;
+        this.fragmentedFileCount = fragmentedFileCount;
+        this.extentCount = extentCount;
+        this.usedBlocks = usedBlocks;
+        this.lastUsedBlock = lastUsedBlock;
+    }
+
+    /**
+     * Get the number of files.
+     * @return number of files
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * Get the number of files that are stored in more than one extent.
+     * @return number of files
+     */
+    public int getFragmentedFileCount() {
+        return fragmentedFileCount;
+    }
+
+    /**
+     * Get the total number of extents over all files.
+     * @return number of extents
+     */
+    public int getExtentCount() {
+        return extentCount;
+    }
+
+    /**
+     * Get the number of used blocks, including the free space map and the
+     * index.
+     * @return number of blocks
+     */
+    public int getUsedBlocks() {
+        return usedBlocks;
+    }
+
+    /**
+     * Get the highest numbered block that is used. The image cannot be
+     * shorter than the end of this block.
+     * @return block number
+     */
+    public int getLastUsedBlock() {
+        return lastUsedBlock;
+    }
+    
+    /**
+     * Get the number of free blocks below the last used block, which would
+     * be released if the used blocks were packed together.
+     * @return number of blocks
+     */
+    public int getStrandedBlocks() {
+        return lastUsedBlock + 1 - usedBlocks;
+    }
+    
+    /**
+     * Get the average number of extents per file, which is 1 when no file
+     * is fragmented.
+     * @return extents per file
+     */
+    public double getExtentsPerFile() {
+        return fileCount > 0 ? (double) extentCount / fileCount : 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files (%d fragmented, %.2f extents/file), "
+                + "%d blocks used, %d stranded below block %d",
+                fileCount, fragmentedFileCount, getExtentsPerFile(),
+                usedBlocks, getStrandedBlocks(), lastUsedBlock);
+    }
+
+}
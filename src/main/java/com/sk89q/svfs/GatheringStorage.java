@@ -0,0 +1,20 @@
+package com.sk89q.svfs;
+
+import java.io.IOException;
+
+/**
+ * A storage that can take a whole {@link WriteBatch} at once.
+ * 
+ * @author sk89q
+ */
+interface GatheringStorage extends Storage {
+    
+    /**
+     * Make every write of the batch, with the same result as making them
+     * one at a time in order.
+     * @param batch writes
+     * @throws IOException on write error
+     */
+    void write(WriteBatch batch) throws IOException;
+
+}
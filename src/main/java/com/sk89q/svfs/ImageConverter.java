@@ -0,0 +1,233 @@
+package com.sk89q.svfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Upgrades images in the version 1 format, where every entry is a linked
+ * chain of blocks with a header in each block, to the current extent based
+ * format.
+ * 
+ * <p>The new image is built in a temporary file next to the old one and only
+ * replaces it once it has been completely written, so an interrupted upgrade
+ * leaves the old image intact.</p>
+ * 
+ * @author sk89q
+ */
+public final class ImageConverter {
+    
+    /**
+     * The version number of the block chain format.
+     */
+    public static final int LEGACY_VERSION = 1;
+    
+    private static final int LEGACY_FILE_HEADER_SIZE = 4 + 2;
+    
+    private ImageConverter() {
+    }
+    
+    /**
+     * Returns whether the given file is an image in the version 1 format.
+     * @param file the image
+     * @return true if it has to be upgraded
+     * @throws IOException on read error
+     */
+    public static boolean needsUpgrade(File file) throws IOException {
+        if (!file.exists() || file.length() < SimpleVFS.HEADER_SIZE) {
+            return false;
+        }
+        
+        FileStorage storage = new FileStorage(file);
+        try {
+            return readVersion(storage) == LEGACY_VERSION;
+        } finally {
+            storage.close();
+        }
+    }
+    
+    /**
+     * Upgrade the given image if it is in the version 1 format.
+     * @param file the image
+     * @param maxFilesystemSize maximum size of the upgraded image (in bytes)
+     * @return true if the image was upgraded
+     * @throws IOException on I/O error, or if the image cannot be read
+     */
+    public static boolean upgrade(File file, long maxFilesystemSize) throws IOException {
+        if (!needsUpgrade(file)) {
+            return false;
+        }
+        
+        File temp = new File(file.getPath() + ".upgrade");
+        File backup = new File(file.getPath() + ".v1");
+        
+        if (temp.exists() && !temp.delete()) {
+            throw new IOException("Could not remove old upgrade file " + temp.getName());
+        }
+        
+        FileStorage in = new FileStorage(file);
+        boolean copied = false;
+        try {
+            SimpleVFS out = new SimpleVFS(temp, maxFilesystemSize,
+                    Integer.MAX_VALUE, Integer.MAX_VALUE, 1);
+            out.setJournalFile(null); // Nothing to recover if the copy fails
+            try {
+                copy(in, out);
+            } finally {
+                out.close();
+            }
+            copied = true;
+        } finally {
+            in.close();
+            if (!copied) {
+                temp.delete();
+            }
+        }
+        
+        if (!file.renameTo(backup)) {
+            throw new IOException("Could not move the old image out of the way");
+        }
+        if (!temp.renameTo(file)) {
+            backup.renameTo(file);
+            throw new IOException("Could not move the upgraded image into place");
+        }
+        backup.delete();
+        
+        return true;
+    }
+    
+    private static int readVersion(Storage storage) throws IOException {
+        byte[] header = new byte[SimpleVFS.HEADER_SIZE];
+        storage.read(0, header, 0, header.length);
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        
+        if (buf.get() != 0 || buf.get() != 'S' || buf.get() != 'V'
+                || buf.get() != 'F' || buf.get() != 'S') {
+            throw new IOException("Not a SVFS file");
+        }
+        
+        return buf.getShort() & 0xFFFF;
+    }
+    
+    /**
+     * Copy every entry of a version 1 image into a new file system.
+     * @param in storage of the old image
+     * @param out file system to copy into
+     * @throws IOException on I/O error
+     */
+    private static void copy(Storage in, SimpleVFS out) throws IOException {
+        if (readVersion(in) != LEGACY_VERSION) {
+            throw new IOException("Not a version 1 image");
+        }
+        
+        byte[] header = new byte[SimpleVFS.HEADER_SIZE];
+        in.read(0, header, 0, header.length);
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        buf.position(7);
+        int blockSize = buf.getShort() & 0xFFFF;
+        int indexLoc = buf.getShort() & 0xFFFF;
+        
+        if (blockSize <= LEGACY_FILE_HEADER_SIZE) {
+            throw new IOException("Invalid block size");
+        }
+        
+        List<LegacyEntry> entries = new ArrayList<LegacyEntry>();
+        
+        if (indexLoc != 0) {
+            byte[] index = readChain(in, blockSize, indexLoc);
+            if (index.length > 0) {
+                DataInputStream indexIn = new DataInputStream(new ByteArrayInputStream(index));
+                int numEntries = indexIn.readUnsignedShort();
+                for (int i = 0; i < numEntries; i++) {
+                    String path = indexIn.readUTF();
+                    int block = indexIn.readUnsignedShort();
+                    indexIn.readInt(); // Size, which the chain has too
+                    long lastModified = indexIn.readLong();
+                    entries.add(new LegacyEntry(path, block, lastModified));
+                }
+            }
+        }
+        
+        // Parents have to be created before their children
+        Collections.sort(entries, new Comparator<LegacyEntry>() {
+            @Override
+            public int compare(LegacyEntry a, LegacyEntry b) {
+                return a.path.parts().length - b.path.parts().length;
+            }
+        });
+        
+        for (LegacyEntry entry : entries) {
+            if (entry.block == 0) {
+                out.mkdir(entry.path);
+            } else {
+                byte[] data = readChain(in, blockSize, entry.block);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length);
+                bytes.write(data, 0, data.length);
+                out.write(entry.path, bytes);
+            }
+            out.setLastModified(entry.path, entry.lastModified);
+        }
+    }
+    
+    /**
+     * Read the contents of a version 1 block chain.
+     * @param in storage of the old image
+     * @param blockSize block size of the old image
+     * @param block first block of the chain
+     * @return contents
+     * @throws IOException on read error, or if the chain is broken
+     */
+    private static byte[] readChain(Storage in, int blockSize, int block) throws IOException {
+        byte[] header = new byte[LEGACY_FILE_HEADER_SIZE];
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        int payload = blockSize - LEGACY_FILE_HEADER_SIZE;
+        
+        long position = SimpleVFS.HEADER_SIZE + (long) block * blockSize;
+        in.read(position, header, 0, header.length);
+        long len = buf.getInt(0) & 0xFFFFFFFFL;
+        if (len > Integer.MAX_VALUE) {
+            throw new IOException("Entry is too large");
+        }
+        
+        byte[] data = new byte[(int) len];
+        int off = 0;
+        
+        while (true) {
+            int n = Math.min(payload, data.length - off);
+            in.read(position + LEGACY_FILE_HEADER_SIZE, data, off, n);
+            off += n;
+            
+            if (off >= data.length) {
+                return data;
+            }
+            
+            int next = buf.getShort(4) & 0xFFFF;
+            if (next == 0) {
+                throw new IOException("Block chain ends before the length of the entry");
+            }
+            
+            position = SimpleVFS.HEADER_SIZE + (long) next * blockSize;
+            in.read(position, header, 0, header.length);
+        }
+    }
+    
+    private static class LegacyEntry {
+        private final Path path;
+        private final int block;
+        private final long lastModified;
+        
+        private LegacyEntry(String path, int block, long lastModified) {
+            this.path = new Path(path.split("/"));
+            this.block = block;
+            this.lastModified = lastModified;
+        }
+    }
+
+}
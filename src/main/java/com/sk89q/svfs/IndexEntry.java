@@ -1,54 +1,119 @@
 package com.sk89q.svfs;
 
+/**
+ * A copy of one entry of the index, as read from an index record or taken
+ * from the {@link IndexTree}. Entries that are looked up without loading
+ * the whole index are kept in this form, as are the entries that the
+ * public methods look at while they hold the lock.
+ */
 public class IndexEntry {
-    
-    private String name;
-    private int block;
-    private long size;
-    private long lastModified;
-    
-    public IndexEntry(String name, int block, long size, long lastModified) {
-        super();
+
+    private final String name;
+    private final boolean directory;
+    private final ExtentList extents;
+    private final byte[] inlineData;
+    private final long size;
+    private final long storedSize;
+    private final boolean compressed;
+    private final long lastModified;
+    private final long content;
+
+    /**
+     * Create an entry for a file.
+     * @param name name of the entry, which is its full path if it was read
+     *        from a record
+     * @param extents blocks holding the contents
+     * @param inlineData contents stored in the index, or null
+     * @param size size in bytes
+     * @param storedSize number of bytes stored in the extents
+     * @param compressed true if the contents are deflated
+     * @param lastModified time of last modification
+     * @param content content number of the contents
+     * @see IndexTree#getContent(int)
+     */
+    public IndexEntry(String name, ExtentList extents, byte[] inlineData, long size,
+            long storedSize, boolean compressed, long lastModified, long content) {
         this.name = name;
-        this.block = block;
+        this.directory = false;
+        this.extents = extents;
+        this.inlineData = inlineData;
         this.size = size;
+        this.storedSize = storedSize;
+        this.compressed = compressed;
+        this.lastModified = lastModified;
+        this.content = content;
+    }
+
+    /**
+     * Create an entry for a directory.
+     * @param name name of the entry, which is its full path if it was read
+     *        from a record
+     * @param lastModified time of last modification
+     */
+    public IndexEntry(String name, long lastModified) {
+        this.name = name;
+        this.directory = true;
+        this.extents = ExtentList.EMPTY;
+        this.inlineData = null;
+        this.size = 0;
+        this.storedSize = 0;
+        this.compressed = false;
         this.lastModified = lastModified;
+        this.content = 0;
     }
 
     public String getName() {
         return name;
     }
 
-    public void setName(String name) {
-        this.name = name;
+    public boolean isDirectory() {
+        return directory;
     }
 
-    public int getBlock() {
-        return block;
+    public ExtentList getExtents() {
+        return extents;
     }
 
-    public void setBlock(int block) {
-        this.block = block;
+    /**
+     * Get the contents of a small file that are stored in its index
+     * record rather than in blocks.
+     * @return contents, or null if they are stored in the extents
+     */
+    public byte[] getInlineData() {
+        return inlineData;
     }
 
     public long getSize() {
         return size;
     }
 
-    public void setSize(long size) {
-        this.size = size;
+    /**
+     * Get the number of bytes that the entry takes up in its extents,
+     * which is less than its size if it is compressed.
+     * @return size in bytes
+     */
+    public long getStoredSize() {
+        return storedSize;
     }
 
-    public boolean isDirectory() {
-        return block == 0;
+    /**
+     * Returns whether the contents are stored deflated.
+     * @return true if compressed
+     */
+    public boolean isCompressed() {
+        return compressed;
     }
 
     public long getLastModified() {
         return lastModified;
     }
 
-    public void setLastModified(long lastModified) {
-        this.lastModified = lastModified;
+    /**
+     * Get the number that streams reading the contents pin them by.
+     * @return content number, or 0 for a directory
+     */
+    long getContent() {
+        return content;
     }
 
 }
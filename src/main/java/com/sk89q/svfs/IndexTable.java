@@ -0,0 +1,84 @@
+package com.sk89q.svfs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Builds the lookup table that is written with every index snapshot. It is
+ * an open addressing hash table from the hash of an entry's path to the
+ * position of the entry's record in the snapshot, which lets an entry be
+ * found without loading the whole index.
+ * 
+ * <p>Each slot is the int hash followed by the int position plus one, so
+ * that an empty slot is all zeroes. The number of slots is a power of two
+ * of at least twice the number of entries, and collisions are resolved by
+ * probing the following slots.</p>
+ */
+final class IndexTable {
+    
+    static final int SLOT_SIZE = 4 + 4;
+    
+    private int[] hashes = new int[64];
+    private int[] positions = new int[64];
+    private int size = 0;
+    
+    /**
+     * Add an entry to the table.
+     * @param path full path of the entry
+     * @param position position of its record in the snapshot
+     */
+    void add(String path, int position) {
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            positions = Arrays.copyOf(positions, size * 2);
+        }
+        hashes[size] = hash(path);
+        positions[size] = position;
+        size++;
+    }
+    
+    /**
+     * Get the number of slots that the table needs.
+     * @return number of slots
+     */
+    int getSlotCount() {
+        int slots = 1;
+        while (slots < size * 2) {
+            slots <<= 1;
+        }
+        return slots;
+    }
+    
+    /**
+     * Lay out the table.
+     * @return table
+     */
+    byte[] toByteArray() {
+        int slots = getSlotCount();
+        int mask = slots - 1;
+        ByteBuffer buf = ByteBuffer.allocate(slots * SLOT_SIZE);
+        
+        for (int i = 0; i < size; i++) {
+            int slot = hashes[i] & mask;
+            while (buf.getInt(slot * SLOT_SIZE + 4) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            buf.putInt(slot * SLOT_SIZE, hashes[i]);
+            buf.putInt(slot * SLOT_SIZE + 4, positions[i] + 1);
+        }
+        
+        return buf.array();
+    }
+    
+    /**
+     * Hash a path, spreading the higher bits of its hash code into the
+     * lower ones that pick the slot.
+     * @param path full path
+     * @return hash
+     */
+    static int hash(String path) {
+        int h = path.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+}
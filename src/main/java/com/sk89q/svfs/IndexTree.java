@@ -0,0 +1,679 @@
+package com.sk89q.svfs;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The entries of an index, kept in parallel arrays of primitives instead of
+ * as an object for each entry. An image can hold a great many entries and
+ * all of them are kept in memory, so an entry is only a number: an index
+ * into the arrays. Names and inline contents are kept one after the other
+ * in a single byte array, and the extents of every file in a single int
+ * array, with the space of old values reclaimed once it adds up.
+ *
+ * <p>Entries form a tree. The children of a directory are linked in the
+ * order that they were added, and a single open addressing hash table,
+ * keyed by the parent and the name, finds a child of any directory. There
+ * are two roots: one for the files of the image and one for its
+ * snapshots.</p>
+ *
+ * <p>The numbers of removed entries are reused. Every change to the
+ * contents of a file gives it a new content number, which is never reused,
+ * so that the contents can be told apart after the entry was removed or
+ * written again.</p>
+ *
+ * @author sk89q
+ */
+class IndexTree {
+
+    /**
+     * The root directory of the files.
+     */
+    static final int ROOT = 0;
+
+    /**
+     * The directory of snapshots, each of which is a copy of the root.
+     */
+    static final int SNAPSHOTS = 1;
+
+    /**
+     * No entry.
+     */
+    static final int NONE = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte DIRECTORY = 1;
+    private static final byte COMPRESSED = 2;
+    private static final byte INLINE = 4;
+    private static final byte REMOVED = 8;
+    private static final int MIN_GARBAGE = 4096;
+    private static final AtomicLong lastContent = new AtomicLong();
+
+    private int end = 0;
+    private int removed = NONE;
+    private int hashed = 0;
+
+    private int[] parents;
+    private int[] firstChildren;
+    private int[] lastChildren;
+    private int[] nextSiblings;
+    private int[] prevSiblings;
+    private int[] nameOffsets;
+    private short[] nameLengths;
+    private byte[] flags;
+    private int[] sizes;
+    private int[] storedSizes;
+    private long[] lastModified;
+    private long[] contents;
+    private int[] dataOffsets;
+    private int[] dataLengths;
+
+    private byte[] bytes = new byte[1024];
+    private int bytesEnd = 0;
+    private int bytesGarbage = 0;
+    private int[] ints = new int[256];
+    private int intsEnd = 0;
+    private int intsGarbage = 0;
+
+    private int[] slots = new int[16];
+
+    /**
+     * Create a tree with nothing but the two roots.
+     */
+    IndexTree() {
+        resize(16);
+        allocate(NONE, new byte[0], DIRECTORY, 0);
+        allocate(NONE, new byte[0], DIRECTORY, 0);
+    }
+
+    /**
+     * Get a content number that has not been used before.
+     * @return content number
+     */
+    static long newContent() {
+        return lastContent.incrementAndGet();
+    }
+
+    private static byte[] encode(String name) {
+        return name.getBytes(UTF_8);
+    }
+
+    private static int hash(int parent, byte[] b, int off, int len) {
+        int h = parent;
+        for (int i = off; i < off + len; i++) {
+            h = 31 * h + b[i];
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int hash(int entry) {
+        return hash(parents[entry], bytes, nameOffsets[entry], nameLengths[entry] & 0xFFFF);
+    }
+
+    /**
+     * Grow the arrays of entries.
+     * @param capacity new number of entries
+     */
+    private void resize(int capacity) {
+        parents = parents != null ? Arrays.copyOf(parents, capacity) : new int[capacity];
+        firstChildren = firstChildren != null ? Arrays.copyOf(firstChildren, capacity) : new int[capacity];
+        lastChildren = lastChildren != null ? Arrays.copyOf(lastChildren, capacity) : new int[capacity];
+        nextSiblings = nextSiblings != null ? Arrays.copyOf(nextSiblings, capacity) : new int[capacity];
+        prevSiblings = prevSiblings != null ? Arrays.copyOf(prevSiblings, capacity) : new int[capacity];
+        nameOffsets = nameOffsets != null ? Arrays.copyOf(nameOffsets, capacity) : new int[capacity];
+        nameLengths = nameLengths != null ? Arrays.copyOf(nameLengths, capacity) : new short[capacity];
+        flags = flags != null ? Arrays.copyOf(flags, capacity) : new byte[capacity];
+        sizes = sizes != null ? Arrays.copyOf(sizes, capacity) : new int[capacity];
+        storedSizes = storedSizes != null ? Arrays.copyOf(storedSizes, capacity) : new int[capacity];
+        lastModified = lastModified != null ? Arrays.copyOf(lastModified, capacity) : new long[capacity];
+        contents = contents != null ? Arrays.copyOf(contents, capacity) : new long[capacity];
+        dataOffsets = dataOffsets != null ? Arrays.copyOf(dataOffsets, capacity) : new int[capacity];
+        dataLengths = dataLengths != null ? Arrays.copyOf(dataLengths, capacity) : new int[capacity];
+    }
+
+    /**
+     * Take an unused entry number and fill it in, without linking it into
+     * the tree.
+     * @param parent parent directory
+     * @param name encoded name
+     * @param type {@link #DIRECTORY} or 0 for a file
+     * @param time time of last modification
+     * @return entry
+     */
+    private int allocate(int parent, byte[] name, byte type, long time) {
+        if (name.length > 0xFFFF) {
+            throw new IllegalArgumentException("Name is too long");
+        }
+
+        int entry;
+        if (removed != NONE) {
+            entry = removed;
+            removed = nextSiblings[entry];
+        } else {
+            if (end == parents.length) {
+                resize(end * 2);
+            }
+            entry = end++;
+        }
+
+        parents[entry] = parent;
+        firstChildren[entry] = NONE;
+        lastChildren[entry] = NONE;
+        nextSiblings[entry] = NONE;
+        prevSiblings[entry] = NONE;
+        nameOffsets[entry] = putBytes(name, 0, name.length);
+        nameLengths[entry] = (short) name.length;
+        flags[entry] = type;
+        sizes[entry] = 0;
+        storedSizes[entry] = 0;
+        lastModified[entry] = time;
+        contents[entry] = 0;
+        dataOffsets[entry] = 0;
+        dataLengths[entry] = 0;
+        return entry;
+    }
+
+    /**
+     * Append to the shared byte array.
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param len number of bytes
+     * @return offset in the shared array
+     */
+    private int putBytes(byte[] b, int off, int len) {
+        if (bytesEnd + len > bytes.length) {
+            if (bytesGarbage > MIN_GARBAGE && bytesGarbage > bytesEnd / 2) {
+                compactBytes(len);
+            } else {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, bytesEnd + len));
+            }
+        }
+        System.arraycopy(b, off, bytes, bytesEnd, len);
+        bytesEnd += len;
+        return bytesEnd - len;
+    }
+
+    /**
+     * Append to the shared int array.
+     * @param count number of ints that will be written at the returned offset
+     * @return offset in the shared array
+     */
+    private int reserveInts(int count) {
+        if (intsEnd + count > ints.length) {
+            if (intsGarbage > MIN_GARBAGE && intsGarbage > intsEnd / 2) {
+                compactInts(count);
+            } else {
+                ints = Arrays.copyOf(ints, Math.max(ints.length * 2, intsEnd + count));
+            }
+        }
+        intsEnd += count;
+        return intsEnd - count;
+    }
+
+    /**
+     * Move the names and inline contents of every entry to the start of a
+     * new byte array, leaving out the space of old values.
+     * @param extra number of bytes that have to fit after them
+     */
+    private void compactBytes(int extra) {
+        int live = bytesEnd - bytesGarbage;
+        byte[] old = bytes;
+        bytes = new byte[Math.max(1024, (live + extra) * 3 / 2)];
+        bytesEnd = 0;
+        bytesGarbage = 0;
+        for (int entry = 0; entry < end; entry++) {
+            if ((flags[entry] & REMOVED) == 0) {
+                nameOffsets[entry] = putBytes(old, nameOffsets[entry], nameLengths[entry] & 0xFFFF);
+                if ((flags[entry] & INLINE) != 0) {
+                    dataOffsets[entry] = putBytes(old, dataOffsets[entry], dataLengths[entry]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Move the extents of every entry to the start of a new int array,
+     * leaving out the space of old values.
+     * @param extra number of ints that have to fit after them
+     */
+    private void compactInts(int extra) {
+        int live = intsEnd - intsGarbage;
+        int[] old = ints;
+        ints = new int[Math.max(256, (live + extra) * 3 / 2)];
+        intsEnd = 0;
+        intsGarbage = 0;
+        for (int entry = 0; entry < end; entry++) {
+            if ((flags[entry] & (REMOVED | INLINE | DIRECTORY)) == 0 && dataLengths[entry] > 0) {
+                int len = dataLengths[entry] * 2;
+                System.arraycopy(old, dataOffsets[entry], ints, intsEnd, len);
+                dataOffsets[entry] = intsEnd;
+                intsEnd += len;
+            }
+        }
+    }
+
+    /**
+     * Forget the contents of a file, counting the space that they took up
+     * as free.
+     * @param entry entry
+     */
+    private void dropData(int entry) {
+        if ((flags[entry] & INLINE) != 0) {
+            bytesGarbage += dataLengths[entry];
+        } else {
+            intsGarbage += dataLengths[entry] * 2;
+        }
+        dataOffsets[entry] = 0;
+        dataLengths[entry] = 0;
+    }
+
+    private boolean nameEquals(int entry, byte[] name) {
+        int len = nameLengths[entry] & 0xFFFF;
+        if (len != name.length) {
+            return false;
+        }
+        int off = nameOffsets[entry];
+        for (int i = 0; i < len; i++) {
+            if (bytes[off + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insertSlot(int entry) {
+        if ((hashed + 1) * 2 > slots.length) {
+            int[] old = slots;
+            slots = new int[old.length * 2];
+            for (int slot : old) {
+                if (slot != 0) {
+                    placeSlot(slot - 1);
+                }
+            }
+        }
+        placeSlot(entry);
+        hashed++;
+    }
+
+    private void placeSlot(int entry) {
+        int mask = slots.length - 1;
+        int i = hash(entry) & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = entry + 1;
+    }
+
+    /**
+     * Take an entry out of the hash table, moving later entries of the same
+     * run back so that no lookup stops early at the gap.
+     * @param entry entry
+     */
+    private void removeSlot(int entry) {
+        int mask = slots.length - 1;
+        int i = hash(entry) & mask;
+        while (slots[i] != entry + 1) {
+            i = (i + 1) & mask;
+        }
+
+        slots[i] = 0;
+        for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+            int home = hash(slots[j] - 1) & mask;
+            // Move it back unless its home lies in the gap-free stretch (i, j]
+            boolean stays = i <= j ? (home > i && home <= j) : (home > i || home <= j);
+            if (!stays) {
+                slots[i] = slots[j];
+                slots[j] = 0;
+                i = j;
+            }
+        }
+        hashed--;
+    }
+
+    private void link(int dir, int entry) {
+        parents[entry] = dir;
+        prevSiblings[entry] = lastChildren[dir];
+        nextSiblings[entry] = NONE;
+        if (lastChildren[dir] != NONE) {
+            nextSiblings[lastChildren[dir]] = entry;
+        } else {
+            firstChildren[dir] = entry;
+        }
+        lastChildren[dir] = entry;
+    }
+
+    private void unlink(int entry) {
+        int dir = parents[entry];
+        int prev = prevSiblings[entry];
+        int next = nextSiblings[entry];
+        if (prev != NONE) {
+            nextSiblings[prev] = next;
+        } else {
+            firstChildren[dir] = next;
+        }
+        if (next != NONE) {
+            prevSiblings[next] = prev;
+        } else {
+            lastChildren[dir] = prev;
+        }
+    }
+
+    /**
+     * Get a child of a directory.
+     * @param dir directory
+     * @param name name of the child
+     * @return child, or {@link #NONE} if there is none or it is not a directory
+     */
+    int getChild(int dir, String name) {
+        if (firstChildren[dir] == NONE) {
+            return NONE;
+        }
+        byte[] key = encode(name);
+        int mask = slots.length - 1;
+        for (int i = hash(dir, key, 0, key.length) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            int entry = slots[i] - 1;
+            if (parents[entry] == dir && nameEquals(entry, key)) {
+                return entry;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Add a directory, which must not have a child of the same name yet,
+     * after the other children of a directory.
+     * @param dir directory to add to
+     * @param name name of the new directory
+     * @param time time of last modification
+     * @return new entry
+     */
+    int addDirectory(int dir, String name, long time) {
+        return add(dir, name, DIRECTORY, time);
+    }
+
+    /**
+     * Add an empty file, which must not have a child of the same name yet,
+     * after the other children of a directory.
+     * @param dir directory to add to
+     * @param name name of the new file
+     * @param time time of last modification
+     * @return new entry
+     */
+    int addFile(int dir, String name, long time) {
+        return add(dir, name, (byte) 0, time);
+    }
+
+    private int add(int dir, String name, byte type, long time) {
+        int entry = allocate(dir, encode(name), type, time);
+        link(dir, entry);
+        insertSlot(entry);
+        return entry;
+    }
+
+    /**
+     * Remove an entry and everything under it.
+     * @param entry entry, which must not be a root
+     * @return number of entries removed
+     */
+    int remove(int entry) {
+        unlink(entry);
+        return free(entry);
+    }
+
+    private int free(int entry) {
+        int count = 1;
+        for (int child = firstChildren[entry]; child != NONE; ) {
+            int next = nextSiblings[child];
+            count += free(child);
+            child = next;
+        }
+
+        removeSlot(entry);
+        dropData(entry);
+        bytesGarbage += nameLengths[entry] & 0xFFFF;
+        flags[entry] = REMOVED;
+        parents[entry] = NONE;
+        nextSiblings[entry] = removed;
+        removed = entry;
+        return count;
+    }
+
+    /**
+     * Move an entry to the end of a directory, under a new name that is not
+     * in use there yet.
+     * @param entry entry
+     * @param dir directory to move it to
+     * @param name new name
+     */
+    void move(int entry, int dir, String name) {
+        removeSlot(entry);
+        unlink(entry);
+
+        byte[] key = encode(name);
+        bytesGarbage += nameLengths[entry] & 0xFFFF;
+        nameOffsets[entry] = putBytes(key, 0, key.length);
+        nameLengths[entry] = (short) key.length;
+
+        link(dir, entry);
+        insertSlot(entry);
+    }
+
+    /**
+     * Returns whether an entry number is in use.
+     * @param entry entry
+     * @return true if the entry exists
+     */
+    boolean exists(int entry) {
+        return entry >= 0 && entry < end && (flags[entry] & REMOVED) == 0;
+    }
+
+    /**
+     * Get the directory that an entry is in.
+     * @param entry entry
+     * @return directory, or {@link #NONE} for a root
+     */
+    int getParent(int entry) {
+        return parents[entry];
+    }
+
+    /**
+     * Get the first child of a directory.
+     * @param dir directory
+     * @return child, or {@link #NONE} if it is empty
+     */
+    int getFirstChild(int dir) {
+        return firstChildren[dir];
+    }
+
+    /**
+     * Get the child of the same directory that was added after an entry.
+     * @param entry entry
+     * @return next child, or {@link #NONE} if it was the last
+     */
+    int getNextSibling(int entry) {
+        return nextSiblings[entry];
+    }
+
+    /**
+     * Get the name of an entry within its directory.
+     * @param entry entry
+     * @return name
+     */
+    String getName(int entry) {
+        return new String(bytes, nameOffsets[entry], nameLengths[entry] & 0xFFFF, UTF_8);
+    }
+
+    /**
+     * Get the full path of an entry below its root.
+     * @param entry entry
+     * @return path
+     */
+    String getPath(int entry) {
+        int parent = parents[entry];
+        if (parent == NONE || parents[parent] == NONE) {
+            return getName(entry);
+        }
+        return getPath(parent) + "/" + getName(entry);
+    }
+
+    boolean isDirectory(int entry) {
+        return (flags[entry] & DIRECTORY) != 0;
+    }
+
+    /**
+     * Returns whether the contents are stored deflated.
+     * @param entry entry
+     * @return true if compressed
+     */
+    boolean isCompressed(int entry) {
+        return (flags[entry] & COMPRESSED) != 0;
+    }
+
+    long getSize(int entry) {
+        return sizes[entry] & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Get the number of bytes that a file takes up in its extents, which is
+     * less than its size if it is compressed.
+     * @param entry entry
+     * @return size in bytes
+     */
+    long getStoredSize(int entry) {
+        return storedSizes[entry] & 0xFFFFFFFFL;
+    }
+
+    long getLastModified(int entry) {
+        return lastModified[entry];
+    }
+
+    void setLastModified(int entry, long time) {
+        lastModified[entry] = time;
+    }
+
+    /**
+     * Get the content number of the current contents of a file.
+     * @param entry entry
+     * @return content number, or 0 for a directory
+     */
+    long getContent(int entry) {
+        return contents[entry];
+    }
+
+    /**
+     * Give the current contents of a file a content number that was handed
+     * out before, such as when the same contents were looked up before the
+     * index was loaded.
+     * @param entry entry
+     * @param content content number
+     */
+    void setContent(int entry, long content) {
+        contents[entry] = content;
+    }
+
+    /**
+     * Get the number of extents that the contents of a file are stored in.
+     * @param entry entry
+     * @return number of extents
+     */
+    int getExtentCount(int entry) {
+        return (flags[entry] & (INLINE | DIRECTORY)) == 0 ? dataLengths[entry] : 0;
+    }
+
+    /**
+     * Get the extents that the contents of a file are stored in.
+     * @param entry entry
+     * @return extents, which are empty for directories and inline files
+     */
+    ExtentList getExtents(int entry) {
+        int count = getExtentCount(entry);
+        if (count == 0) {
+            return ExtentList.EMPTY;
+        }
+        int[] starts = new int[count];
+        int[] lengths = new int[count];
+        int off = dataOffsets[entry];
+        for (int i = 0; i < count; i++) {
+            starts[i] = ints[off + i * 2];
+            lengths[i] = ints[off + i * 2 + 1];
+        }
+        return new ExtentList(starts, lengths);
+    }
+
+    /**
+     * Get the contents of a small file that are stored in its index record
+     * rather than in blocks.
+     * @param entry entry
+     * @return copy of the contents, or null if they are stored in extents
+     */
+    byte[] getInlineData(int entry) {
+        if ((flags[entry] & INLINE) == 0) {
+            return null;
+        }
+        int off = dataOffsets[entry];
+        return Arrays.copyOfRange(bytes, off, off + dataLengths[entry]);
+    }
+
+    /**
+     * Replace the contents of a file, which gives it a new content number.
+     * @param entry entry
+     * @param extents extents holding the contents, if not inline
+     * @param inlineData contents stored in the index, or null
+     * @param size size in bytes
+     * @param storedSize number of bytes stored in the extents
+     * @param compressed true if the contents are deflated
+     */
+    void setContents(int entry, ExtentList extents, byte[] inlineData,
+            long size, long storedSize, boolean compressed) {
+        dropData(entry);
+
+        byte type = (byte) (flags[entry] & DIRECTORY);
+        if (inlineData != null) {
+            type |= INLINE;
+            dataOffsets[entry] = putBytes(inlineData, 0, inlineData.length);
+            dataLengths[entry] = inlineData.length;
+        } else if (extents.size() > 0) {
+            int off = reserveInts(extents.size() * 2);
+            for (int i = 0; i < extents.size(); i++) {
+                ints[off + i * 2] = extents.getStart(i);
+                ints[off + i * 2 + 1] = extents.getLength(i);
+            }
+            dataOffsets[entry] = off;
+            dataLengths[entry] = extents.size();
+        }
+        if (compressed) {
+            type |= COMPRESSED;
+        }
+
+        flags[entry] = type;
+        sizes[entry] = (int) size;
+        storedSizes[entry] = (int) storedSize;
+        contents[entry] = newContent();
+    }
+
+    /**
+     * Move the contents of a file to other extents, which gives it a new
+     * content number.
+     * @param entry entry
+     * @param extents new extents
+     */
+    void setExtents(int entry, ExtentList extents) {
+        setContents(entry, extents, null, getSize(entry), getStoredSize(entry), isCompressed(entry));
+    }
+
+    /**
+     * Get a copy of an entry.
+     * @param entry entry
+     * @return copy, named by its name within its directory
+     */
+    IndexEntry getEntry(int entry) {
+        if (isDirectory(entry)) {
+            return new IndexEntry(getName(entry), lastModified[entry]);
+        }
+        return new IndexEntry(getName(entry), getExtents(entry), getInlineData(entry), getSize(entry),
+                getStoredSize(entry), isCompressed(entry), lastModified[entry], contents[entry]);
+    }
+
+}
@@ -0,0 +1,337 @@
+package com.sk89q.svfs;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal for a {@link SimpleVFS}, kept in a sidecar file.
+ * 
+ * <p>Data blocks only ever go to free blocks, so they are written in place
+ * right away and are also appended to the journal so they can be redone.
+ * Metadata (the index and the free space map) is collected into a
+ * {@link Transaction} and appended as one record, but only written in place
+ * once the journal has been forced to disk.</p>
+ * 
+ * <p>Committing threads queue up behind one flush lock. Whoever holds it
+ * forces the journal once for every transaction appended so far, then
+ * applies their metadata in order, so many small saves share one fsync.
+ * When the journal grows past a limit and nothing is waiting to be applied,
+ * the image is forced and the journal is truncated.</p>
+ * 
+ * <p>Each record is a type byte, a payload length and a CRC32 of the
+ * payload. Replay stops at the first record that is incomplete or fails
+ * its checksum, which is where a crash interrupted the journal.</p>
+ * 
+ * @author sk89q
+ */
+class Journal implements Closeable {
+    
+    private static final byte RECORD_DATA = 1;
+    private static final byte RECORD_TRANSACTION = 2;
+    private static final int RECORD_HEADER_SIZE = 1 + 4 + 4;
+    private static final long CHECKPOINT_SIZE = 4 * 1024 * 1024;
+    
+    private final Storage storage;
+    private final Storage log;
+    private final Object flushLock = new Object();
+    private final List<Transaction> pending = new ArrayList<Transaction>();
+    private long size;
+    private long appended = 0;
+    private volatile long durable = 0;
+    
+    /**
+     * Open a journal.
+     * @param log storage of the journal file
+     * @param storage storage of the image
+     * @throws IOException thrown if the journal cannot be read
+     */
+    Journal(Storage log, Storage storage) throws IOException {
+        this.storage = storage;
+        this.log = log;
+        this.size = log.length();
+    }
+    
+    /**
+     * Apply every complete record in the journal to the image, force the
+     * image to disk and empty the journal.
+     * @throws IOException on I/O error
+     */
+    synchronized void replay() throws IOException {
+        if (size == 0) {
+            return; // Nothing to apply, and the image is already on disk
+        }
+        
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long position = 0;
+        
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            log.read(position, header.array(), 0, RECORD_HEADER_SIZE);
+            
+            byte type = header.get();
+            int len = header.getInt();
+            int crc = header.getInt();
+            
+            if (len < 0 || position + RECORD_HEADER_SIZE + len > size) {
+                break;
+            }
+            
+            ByteBuffer payload = ByteBuffer.allocate(len);
+            log.read(position + RECORD_HEADER_SIZE, payload.array(), 0, len);
+            
+            if (checksum(payload.array(), 0, len) != crc) {
+                break;
+            }
+            
+            if (type == RECORD_DATA) {
+                WriteBatch batch = new WriteBatch();
+                addWrite(batch, payload, len - 8);
+                batch.writeTo(storage);
+            } else if (type == RECORD_TRANSACTION) {
+                int count = payload.getInt();
+                WriteBatch batch = new WriteBatch();
+                for (int i = 0; i < count; i++) {
+                    addWrite(batch, payload, payload.getInt());
+                }
+                batch.writeTo(storage);
+            } else {
+                break;
+            }
+            
+            position += RECORD_HEADER_SIZE + len;
+        }
+        
+        storage.flush();
+        truncate();
+    }
+    
+    private void addWrite(WriteBatch batch, ByteBuffer payload, int len) throws IOException {
+        long position = payload.getLong();
+        if (len < 0 || len > payload.remaining()) {
+            throw new EOFException("Corrupt journal record");
+        }
+        batch.add(position, payload.array(), payload.position(), len);
+        payload.position(payload.position() + len);
+    }
+    
+    /**
+     * Write a data block in place and append it to the journal.
+     * @param position position in the image
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param len number of bytes
+     * @throws IOException on write error
+     */
+    synchronized void writeData(long position, byte[] b, int off, int len) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(8 + len);
+        payload.putLong(position);
+        payload.put(b, off, len);
+        append(RECORD_DATA, payload.array());
+        
+        storage.write(position, b, off, len);
+    }
+    
+    /**
+     * Write a batch of data blocks in place and append them to the journal,
+     * with one write to each.
+     * @param batch writes
+     * @throws IOException on write error
+     */
+    synchronized void writeData(WriteBatch batch) throws IOException {
+        byte[][] records = new byte[batch.size()][];
+        int total = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            ByteBuffer payload = ByteBuffer.allocate(8 + batch.getLength(i));
+            payload.putLong(batch.getPosition(i));
+            payload.put(batch.getBuffer(i), batch.getOffset(i), batch.getLength(i));
+            records[i] = record(RECORD_DATA, payload.array());
+            total += records[i].length;
+        }
+        
+        ByteBuffer buf = ByteBuffer.allocate(total);
+        for (byte[] record : records) {
+            buf.put(record);
+        }
+        log.write(size, buf.array(), 0, total);
+        size += total;
+        
+        batch.writeTo(storage);
+    }
+    
+    /**
+     * Append a transaction to the journal. Its writes are not made to the
+     * image until the journal has been forced.
+     * @param tx transaction
+     * @return ticket to pass to {@link #await(long)}
+     * @throws IOException on write error
+     */
+    synchronized long append(Transaction tx) throws IOException {
+        if (tx.writes.isEmpty()) {
+            return 0;
+        }
+        
+        ByteBuffer payload = ByteBuffer.allocate(4 + tx.size);
+        payload.putInt(tx.writes.size());
+        for (Write write : tx.writes) {
+            payload.putInt(write.data.length);
+            payload.putLong(write.position);
+            payload.put(write.data);
+        }
+        append(RECORD_TRANSACTION, payload.array());
+        
+        pending.add(tx);
+        return ++appended;
+    }
+    
+    private void append(byte type, byte[] payload) throws IOException {
+        byte[] record = record(type, payload);
+        log.write(size, record, 0, record.length);
+        size += record.length;
+    }
+    
+    private static byte[] record(byte type, byte[] payload) {
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        buf.put(type);
+        buf.putInt(payload.length);
+        buf.putInt(checksum(payload, 0, payload.length));
+        buf.put(payload);
+        return buf.array();
+    }
+    
+    /**
+     * Wait until the transaction with the given ticket is on disk and has
+     * been applied to the image. If no other thread is already doing so,
+     * the journal is forced for every transaction appended so far.
+     * @param ticket ticket from {@link #append(Transaction)}
+     * @throws IOException on I/O error
+     */
+    void await(long ticket) throws IOException {
+        if (durable >= ticket) {
+            return;
+        }
+        
+        synchronized (flushLock) {
+            if (durable >= ticket) {
+                return;
+            }
+            
+            List<Transaction> batch;
+            long target;
+            synchronized (this) {
+                target = appended;
+                batch = new ArrayList<Transaction>(pending);
+                pending.clear();
+            }
+            
+            log.flush();
+            
+            // Metadata tends to be written in runs, like records appended
+            // to the index, which the batch can then write at once
+            WriteBatch writes = new WriteBatch();
+            for (Transaction tx : batch) {
+                for (Write write : tx.writes) {
+                    writes.add(write.position, write.data, 0, write.data.length);
+                }
+            }
+            writes.writeTo(storage);
+            
+            durable = target;
+            
+            synchronized (this) {
+                if (size > CHECKPOINT_SIZE && pending.isEmpty()) {
+                    storage.flush();
+                    truncate();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Apply everything, force the image and empty the journal.
+     * @throws IOException on I/O error
+     */
+    void checkpoint() throws IOException {
+        long ticket;
+        synchronized (this) {
+            ticket = appended;
+        }
+        
+        await(ticket);
+        
+        synchronized (flushLock) {
+            synchronized (this) {
+                if (pending.isEmpty() && size > 0) {
+                    storage.flush();
+                    truncate();
+                }
+            }
+        }
+    }
+    
+    private void truncate() throws IOException {
+        log.truncate(0);
+        log.flush();
+        size = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            log.close();
+        }
+    }
+    
+    private static int checksum(byte[] b, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(b, off, len);
+        return (int) crc.getValue();
+    }
+    
+    /**
+     * A group of metadata writes that are applied together or not at all.
+     */
+    static class Transaction {
+        private final List<Write> writes = new ArrayList<Write>();
+        private int size = 0;
+        
+        /**
+         * Add a write to the transaction. The data is copied.
+         * @param position position in the image
+         * @param b buffer
+         * @param off offset in the buffer
+         * @param len number of bytes
+         */
+        void write(long position, byte[] b, int off, int len) {
+            byte[] data = new byte[len];
+            System.arraycopy(b, off, data, 0, len);
+            writes.add(new Write(position, data));
+            size += 4 + 8 + len;
+        }
+        
+        /**
+         * Returns whether the transaction has no writes.
+         * @return true if empty
+         */
+        boolean isEmpty() {
+            return writes.isEmpty();
+        }
+    }
+    
+    private static class Write {
+        private final long position;
+        private final byte[] data;
+        
+        private Write(long position, byte[] data) {
+            this.position = position;
+            this.data = data;
+        }
+    }
+
+}
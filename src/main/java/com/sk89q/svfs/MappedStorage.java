@@ -0,0 +1,165 @@
+package com.sk89q.svfs;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Storage that maps the whole image into memory with
+ * {@link FileChannel#map(MapMode, long, long)}, so accesses are served from
+ * the page cache without a system call each.
+ * 
+ * <p>The mapping covers the entire file. When a write goes past the end of
+ * the mapping, the file is grown (at least doubling, but never past the
+ * maximum size given) and mapped again. The old mapping is forced to disk
+ * and then left for the garbage collector to unmap.</p>
+ * 
+ * @author sk89q
+ */
+public class MappedStorage implements Storage {
+    
+    private static final int MIN_MAP_SIZE = 64 * 1024;
+    
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long maxSize;
+    private volatile MappedByteBuffer buffer;
+    
+    /**
+     * Open and map the given file, creating it if it does not exist.
+     * @param file file
+     * @param maxSize the size the file may grow to, in bytes
+     * @throws IOException thrown if the file cannot be opened or mapped
+     */
+    public MappedStorage(File file, long maxSize) throws IOException {
+        if (maxSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Maximum size is too large to map");
+        }
+        
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        this.maxSize = maxSize;
+        
+        long size = channel.size();
+        if (size > 0) {
+            remap(Math.min(size, maxSize));
+        }
+    }
+    
+    /**
+     * Get the maximum size that the file may be grown to.
+     * @return size in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+    
+    /**
+     * Get a view of the mapping positioned at the given offset.
+     * @param position offset
+     * @param len number of bytes that will be accessed
+     * @return view or null if out of the range of the mapping
+     */
+    private ByteBuffer view(long position, int len) {
+        MappedByteBuffer mapped = buffer;
+        if (mapped == null || position < 0 || position + len > mapped.capacity()) {
+            return null;
+        }
+        ByteBuffer view = mapped.duplicate();
+        view.position((int) position);
+        return view;
+    }
+    
+    /**
+     * Make sure that the mapping covers at least the given number of bytes.
+     * @param needed size in bytes
+     * @throws IOException thrown if the file cannot be grown
+     */
+    private synchronized void ensureCapacity(long needed) throws IOException {
+        MappedByteBuffer mapped = buffer;
+        long current = mapped != null ? mapped.capacity() : 0;
+        
+        if (needed <= current) {
+            return;
+        }
+        
+        if (needed > maxSize) {
+            throw new IOException("Out of space");
+        }
+        
+        long size = Math.max(MIN_MAP_SIZE, current * 2);
+        remap(Math.max(needed, Math.min(size, maxSize)));
+    }
+    
+    /**
+     * Replace the current mapping with a new one of the given size.
+     * @param size size in bytes
+     * @throws IOException on I/O error
+     */
+    private synchronized void remap(long size) throws IOException {
+        MappedByteBuffer old = buffer;
+        if (old != null) {
+            old.force();
+        }
+        buffer = channel.map(MapMode.READ_WRITE, 0, size);
+    }
+
+    @Override
+    public void read(long position, byte[] buf, int off, int len) throws IOException {
+        ByteBuffer view = view(position, len);
+        if (view == null) {
+            throw new EOFException("Read past the end of the mapped image");
+        }
+        view.get(buf, off, len);
+    }
+
+    @Override
+    public void write(long position, byte[] buf, int off, int len) throws IOException {
+        ByteBuffer view = view(position, len);
+        if (view == null) {
+            ensureCapacity(position + len);
+            view = view(position, len);
+        }
+        view.put(buf, off, len);
+    }
+
+    @Override
+    public long length() throws IOException {
+        MappedByteBuffer mapped = buffer;
+        return mapped != null ? mapped.capacity() : 0;
+    }
+
+    /**
+     * Does nothing, as the file cannot be shrunk while other threads may
+     * still be accessing the old mapping, and the mapping cannot be
+     * released other than by the garbage collector.
+     * @param length length in bytes
+     */
+    @Override
+    public void truncate(long length) throws IOException {
+    }
+
+    @Override
+    public void flush() throws IOException {
+        MappedByteBuffer mapped = buffer;
+        if (mapped != null) {
+            mapped.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            buffer = null;
+            file.close();
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.sk89q.svfs;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on an executor so that tasks with the same key run one at a
+ * time, in the order that they were submitted, while tasks with different
+ * keys can run in parallel.
+ * 
+ * @author sk89q
+ */
+class OrderedExecutor {
+    
+    private final Executor executor;
+    private final Map<String, Queue<FutureTask<?>>> queues = new HashMap<String, Queue<FutureTask<?>>>();
+    
+    /**
+     * Create a new instance.
+     * @param executor executor to run tasks on
+     */
+    OrderedExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    
+    /**
+     * Run a task after every task submitted before it with the same key.
+     * @param key key
+     * @param task task
+     * @throws RejectedExecutionException thrown if the executor rejects the task
+     */
+    void execute(String key, FutureTask<?> task) {
+        synchronized (queues) {
+            Queue<FutureTask<?>> queue = queues.get(key);
+            if (queue != null) {
+                queue.add(task);
+                return;
+            }
+            
+            // The presence of a queue means that a task for the key is running
+            queues.put(key, new LinkedList<FutureTask<?>>());
+        }
+        
+        try {
+            executor.execute(new Runner(key, task));
+        } catch (RejectedExecutionException e) {
+            abandon(key);
+            throw e;
+        }
+    }
+    
+    /**
+     * Cancel the tasks waiting for a key after its chain was rejected.
+     * @param key key
+     */
+    private void abandon(String key) {
+        Queue<FutureTask<?>> queue;
+        synchronized (queues) {
+            queue = queues.remove(key);
+        }
+        if (queue != null) {
+            for (FutureTask<?> task : queue) {
+                task.cancel(false);
+            }
+        }
+    }
+    
+    /**
+     * Runs a task and then submits the next one for its key.
+     */
+    private class Runner implements Runnable {
+        private final String key;
+        private final FutureTask<?> task;
+        
+        private Runner(String key, FutureTask<?> task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                FutureTask<?> next;
+                synchronized (queues) {
+                    Queue<FutureTask<?>> queue = queues.get(key);
+                    next = queue.poll();
+                    if (next == null) {
+                        queues.remove(key);
+                    }
+                }
+                
+                if (next != null) {
+                    try {
+                        executor.execute(new Runner(key, next));
+                    } catch (RejectedExecutionException e) {
+                        next.cancel(false);
+                        abandon(key);
+                    }
+                }
+            }
+        }
+    }
+
+}
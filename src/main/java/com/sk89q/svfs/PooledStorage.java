@@ -0,0 +1,101 @@
+package com.sk89q.svfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Storage on a file that is only kept open by a {@link FileChannelPool},
+ * and is opened again whenever it was closed to make room for others.
+ * 
+ * @author sk89q
+ */
+public class PooledStorage implements GatheringStorage {
+    
+    private final FileChannelPool pool;
+    private final File file;
+    
+    /**
+     * Create a storage on the given file, which is created if it does not
+     * exist once it is first used.
+     * @param pool pool to open the file through
+     * @param file file
+     */
+    public PooledStorage(FileChannelPool pool, File file) {
+        this.pool = pool;
+        this.file = file;
+    }
+
+    @Override
+    public void read(long position, byte[] buf, int off, int len) throws IOException {
+        FileChannelPool.Handle handle = pool.acquire(file);
+        try {
+            ChannelIO.read(handle.getChannel(), position, buf, off, len);
+        } finally {
+            pool.release(handle);
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] buf, int off, int len) throws IOException {
+        FileChannelPool.Handle handle = pool.acquire(file);
+        try {
+            ChannelIO.write(handle.getChannel(), position, buf, off, len);
+        } finally {
+            pool.release(handle);
+        }
+    }
+
+    @Override
+    public void write(WriteBatch batch) throws IOException {
+        FileChannelPool.Handle handle = pool.acquire(file);
+        try {
+            ChannelIO.write(handle.getChannel(), batch);
+        } finally {
+            pool.release(handle);
+        }
+    }
+
+    @Override
+    public long length() throws IOException {
+        FileChannelPool.Handle handle = pool.acquire(file);
+        try {
+            return handle.getChannel().size();
+        } finally {
+            pool.release(handle);
+        }
+    }
+
+    @Override
+    public void truncate(long length) throws IOException {
+        FileChannelPool.Handle handle = pool.acquire(file);
+        try {
+            FileChannel channel = handle.getChannel();
+            if (length < channel.size()) {
+                channel.truncate(length);
+            }
+        } finally {
+            pool.release(handle);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        FileChannelPool.Handle handle = pool.acquire(file);
+        try {
+            handle.getChannel().force(true);
+        } finally {
+            pool.release(handle);
+        }
+    }
+
+    /**
+     * Close the file in the pool, if it is open.
+     * @throws IOException on I/O error
+     */
+    @Override
+    public void close() throws IOException {
+        pool.close(file);
+    }
+
+}
@@ -1,45 +1,114 @@
 package com.sk89q.svfs;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.util.LinkedHashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Implements a very simple virtual file system backed by one single random
  * accessible file. This FS has various restrictions on the sizes and number of
  * files that can be placed into it.
  * 
+ * <p>Lookups take a shared lock, and only changes to the index or to the
+ * allocation of blocks take the exclusive lock. File contents are read
+ * outside of the lock altogether, with positional reads on the storage,
+ * so any number of streams can read from one image in parallel.</p>
+ * 
  * @author sk89q
  */
-public class SimpleVFS {
+public class SimpleVFS implements Closeable {
     
     private static final Semaphore totalPointers = new Semaphore(50);
+    private static final int IO_THREADS = 4;
+    private static ExecutorService sharedExecutor;
     public static final short DEFAULT_BLOCK_SIZE = 1024;
     public static final int HEADER_SIZE = 5 + 2 + 2 + 2;
-    public static final int FILE_HEADER_SIZE = 1 + 4;
-    public static final int VERSION = 1;
+    public static final int INDEX_HEADER_SIZE = 4 + 4 + 4 + 4;
+    public static final int VERSION = 4;
+    public static final int MIN_BLOCK_SIZE = 256;
+    public static final int MAX_BLOCK_SIZE = 65536;
+    public static final int DEFAULT_INLINE_THRESHOLD = 128;
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int LOG_VERSION = 3;
+    private static final int FLAG_DIRECTORY = 1;
+    private static final int FLAG_COMPRESSED = 2;
+    private static final int FLAG_INLINE = 4;
+    private static final int RECORD_PUT = 1;
+    private static final int RECORD_REMOVE = 2;
+    private static final int MIN_COMPACT_SIZE = 4096;
+    static final String SNAPSHOT_PREFIX = "\0/";
     
     private final File baseFile;
-    private final RandomAccessFile stream;
-    private final int maxFilesystemSize;
+    private final Storage storage;
+    private final long maxFilesystemSize;
     private final int maxFileSize;
     private final int maxEntryCount;
+    private volatile int compressionThreshold = -1;
+    private volatile int inlineThreshold = DEFAULT_INLINE_THRESHOLD;
+    private volatile boolean deduplicating = false;
+    private final ContentIndex contents = new ContentIndex();
+    private OrderedExecutor ioExecutor;
 
-    private boolean loaded = false;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Snapshots snapshots = new Snapshots(this);
+    private volatile boolean loaded = false;
+    private FileChannelPool pool;
+    private File journalFile;
+    private Journal journal;
+    private Journal.Transaction transaction;
     private final Semaphore allocatedPointers;
+    private int version = VERSION;
     private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int mapBlocks = 1;
     private int indexLoc = 0;
-    private Map<String, IndexEntry> entries;
-    private byte[] freeSpaceMap;
+    private ExtentList indexExtents = ExtentList.EMPTY;
+    private long indexLen = 0;
+    private long snapshotLen = 0;
+    private byte[] indexTail;
+    private int tableSlots = 0;
+    private ExtentList tableExtents = ExtentList.EMPTY;
+    private boolean lazyIndex = false;
+    private volatile boolean indexLoaded = false;
+    private ConcurrentMap<String, IndexEntry> lazyEntries;
+    private IndexTree tree;
+    private int entryCount;
+    private String parentName = "";
+    private ExtentList borrowedExtents = ExtentList.EMPTY;
+    private BackedStorage backing;
+    private BlockAllocator allocator;
+    private final Map<Long, Integer> pinned = new HashMap<Long, Integer>();
+    private final Map<Long, ExtentList> orphaned = new HashMap<Long, ExtentList>();
+    private List<ExtentList> released = new ArrayList<ExtentList>();
+    private final SortedMap<Long, List<ExtentList>> deferred = new TreeMap<Long, List<ExtentList>>();
     
     /**
      * Create a new instance of the virtual file system.
@@ -50,11 +119,69 @@ public class SimpleVFS {
      * @param maxFilePointers maximum number of "open" virtual file pointers at once
      * @throws IOException thrown if the backed file can be accessed
      */
-    public SimpleVFS(File baseFile, int maxFilesystemSize, int maxFileSize,
+    public SimpleVFS(File baseFile, long maxFilesystemSize, int maxFileSize,
             int maxEntryCount, int maxFilePointers) throws IOException {
+        this(baseFile, new FileStorage(baseFile), maxFilesystemSize,
+                maxFileSize, maxEntryCount, maxFilePointers);
+        setJournalFile(new File(baseFile.getPath() + ".journal"));
+    }
+
+    /**
+     * Create a new instance of the virtual file system whose image and
+     * journal are only kept open by the given pool, so that many images
+     * can be used with a bounded number of open files.
+     * @param baseFile base file to back the VFS
+     * @param pool pool to open the image and the journal through
+     * @param maxFilesystemSize maximum size of the real backed file (in bytes)
+     * @param maxFileSize maximum size of individual file entries in the VFS (in bytes)
+     * @param maxEntryCount maximum size of the directory index
+     * @param maxFilePointers maximum number of "open" virtual file pointers at once
+     */
+    public SimpleVFS(File baseFile, FileChannelPool pool, long maxFilesystemSize,
+            int maxFileSize, int maxEntryCount, int maxFilePointers) {
+        this(baseFile, new PooledStorage(pool, baseFile), maxFilesystemSize,
+                maxFileSize, maxEntryCount, maxFilePointers);
+        this.pool = pool;
+        setJournalFile(new File(baseFile.getPath() + ".journal"));
+    }
+
+    /**
+     * Create a new instance of the virtual file system whose image and
+     * journal are only kept open by the given pool, and whose image is
+     * read and written through a block cache that can be shared by many
+     * images.
+     * @param baseFile base file to back the VFS
+     * @param pool pool to open the image and the journal through
+     * @param cache cache to keep blocks of the image in
+     * @param maxFilesystemSize maximum size of the real backed file (in bytes)
+     * @param maxFileSize maximum size of individual file entries in the VFS (in bytes)
+     * @param maxEntryCount maximum size of the directory index
+     * @param maxFilePointers maximum number of "open" virtual file pointers at once
+     * @throws IOException thrown if the backed file can be accessed
+     */
+    public SimpleVFS(File baseFile, FileChannelPool pool, BlockCache cache, long maxFilesystemSize,
+            int maxFileSize, int maxEntryCount, int maxFilePointers) throws IOException {
+        this(baseFile, new CachedStorage(cache, new PooledStorage(pool, baseFile)), maxFilesystemSize,
+                maxFileSize, maxEntryCount, maxFilePointers);
+        this.pool = pool;
+        setJournalFile(new File(baseFile.getPath() + ".journal"));
+    }
+
+    /**
+     * Create a new instance of the virtual file system that goes through
+     * the given storage engine, such as a {@link MappedStorage}.
+     * @param baseFile base file that the storage is backed by
+     * @param storage storage to read and write the image with
+     * @param maxFilesystemSize maximum size of the real backed file (in bytes)
+     * @param maxFileSize maximum size of individual file entries in the VFS (in bytes)
+     * @param maxEntryCount maximum size of the directory index
+     * @param maxFilePointers maximum number of "open" virtual file pointers at once
+     */
+    public SimpleVFS(File baseFile, Storage storage, long maxFilesystemSize,
+            int maxFileSize, int maxEntryCount, int maxFilePointers) {
         super();
         this.baseFile = baseFile;
-        this.stream = new RandomAccessFile(baseFile, "rw");
+        this.storage = storage;
         this.maxFilesystemSize = maxFilesystemSize;
         this.maxFileSize = maxFileSize;
         this.maxEntryCount = maxEntryCount;
@@ -62,6 +189,103 @@ public class SimpleVFS {
         allocatedPointers = new Semaphore(maxFilePointers);
     }
 
+    /**
+     * Set the sidecar file used as a write-ahead journal, or null to write
+     * directly to the image. Images opened with
+     * {@link #SimpleVFS(File, long, int, int, int)} use a journal next to the
+     * image by default. This has to be set before the VFS is first used.
+     * @param journalFile journal file, or null
+     */
+    public void setJournalFile(File journalFile) {
+        if (loaded) {
+            throw new IllegalStateException("The journal can only be set before the VFS is used");
+        }
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Set the block size of the image, if it has yet to be created. Small
+     * blocks waste less space on small files, while large blocks need
+     * fewer extents and fewer reads for large files. Existing images keep
+     * the block size that they were created with. This has to be set
+     * before the VFS is first used.
+     * @param blockSize power of two from {@link #MIN_BLOCK_SIZE} to
+     *        {@link #MAX_BLOCK_SIZE} bytes
+     */
+    public void setBlockSize(int blockSize) {
+        if (loaded) {
+            throw new IllegalStateException("The block size can only be set before the VFS is used");
+        }
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("Block size has to be a power of two from "
+                    + MIN_BLOCK_SIZE + " to " + MAX_BLOCK_SIZE);
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Set the executor that {@link #readAsync(Path)} and
+     * {@link #writeAsync(Path, ByteBuffer)} do their I/O on. By default, a
+     * small pool of daemon threads is shared by every VFS.
+     * @param executor executor
+     */
+    public synchronized void setExecutor(Executor executor) {
+        this.ioExecutor = new OrderedExecutor(executor);
+    }
+
+    /**
+     * Set whether the index should be read lazily. Instead of parsing the
+     * whole index when the VFS is first used, only the entries appended
+     * since the last snapshot are read, and the rest are found through the
+     * snapshot's lookup table as files are opened. The whole index is still
+     * loaded the first time a directory is listed or anything is written.
+     * This has to be set before the VFS is first used.
+     * @param lazyIndex true to read the index lazily
+     */
+    public void setLazyIndex(boolean lazyIndex) {
+        if (loaded) {
+            throw new IllegalStateException("The index mode can only be set before the VFS is used");
+        }
+        this.lazyIndex = lazyIndex;
+    }
+
+    /**
+     * Set the size past which files that are written from now on are
+     * compressed. Every file records whether it is compressed, so files
+     * written with different settings can be read back either way.
+     * Compression is off by default.
+     * @param compressionThreshold size in bytes, or -1 to store files raw
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Set the size up to which files that are written from now on are
+     * stored in their index record instead of in blocks, so that they take
+     * no block of their own and are read without touching the blocks.
+     * Inlined files are kept in memory with the rest of the index, so the
+     * threshold should stay small, and are never compressed. Defaults to
+     * {@link #DEFAULT_INLINE_THRESHOLD}.
+     * @param inlineThreshold size in bytes, or -1 to never inline files
+     */
+    public void setInlineThreshold(int inlineThreshold) {
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    /**
+     * Set whether the blocks of files that are written from now on should
+     * be deduplicated. A block with the same contents as a block that was
+     * written since the image was opened is not written again, but shared
+     * and counted in the free space map. Blocks are never changed in place,
+     * so a file that is written again gets new blocks and leaves the shared
+     * ones to the other files.
+     * @param deduplicating true to deduplicate blocks
+     */
+    public void setDeduplicating(boolean deduplicating) {
+        this.deduplicating = deduplicating;
+    }
+
     /**
      * Get the file that backs this VFS.
      * @return file
@@ -74,7 +298,7 @@ public class SimpleVFS {
      * Get the maximum size of the entire file system.
      * @return size in bytes
      */
-    public int getMaxFilesystemSize() {
+    public long getMaxFilesystemSize() {
         return maxFilesystemSize;
     }
 
@@ -105,19 +329,20 @@ public class SimpleVFS {
     /**
      * Get the offset in the VFS file for the given block, considering the
      * size of the VFS header and free block map.
-     * @param block a block number between 0 and 65534, inclusive
+     * @param block a block number of at least 1, and below 65535 for images
+     *        before version 4
      * @return offset in bytes
      * @throws IOException if past the end of the VFS size maximum
      */
-    public int getOffset(int block) throws IOException {
+    public long getOffset(int block) throws IOException {
         if (block < 1) {
             throw new IllegalArgumentException("Invalid block number below 1");
         }
-        if (block >= 65535) {
+        if (version < VERSION && block >= 65535) {
             throw new IllegalArgumentException("Invalid block number above 65534");
         }
-        int offset = HEADER_SIZE + block * blockSize;
-        if (offset + blockSize - 1 > maxFilesystemSize) {
+        long offset = HEADER_SIZE + (long) block * blockSize;
+        if (offset + blockSize > maxFilesystemSize) {
             throw new IOException("Out of space");
         }
         return offset;
@@ -125,27 +350,27 @@ public class SimpleVFS {
     
     /**
      * Reads and verifies the magic bytes of the VFS file.
-     * Seeking must be done beforehand.
+     * @param buf buffer positioned at the magic bytes
      * @throws IOException if invalid magic bytes are found
      */
-    private void readMagicBytes() throws IOException {
-        if (stream.readByte() != 0) throw new IOException("Not a SVFS file");
-        if (stream.readChar() != 'S') throw new IOException("Not a SVFS file");
-        if (stream.readChar() != 'V') throw new IOException("Not a SVFS file");
-        if (stream.readChar() != 'F') throw new IOException("Not a SVFS file");
-        if (stream.readChar() != 'S') throw new IOException("Not a SVFS file");
+    private void readMagicBytes(ByteBuffer buf) throws IOException {
+        if (buf.get() != 0) throw new IOException("Not a SVFS file");
+        if (buf.get() != 'S') throw new IOException("Not a SVFS file");
+        if (buf.get() != 'V') throw new IOException("Not a SVFS file");
+        if (buf.get() != 'F') throw new IOException("Not a SVFS file");
+        if (buf.get() != 'S') throw new IOException("Not a SVFS file");
     }
     
     /**
-     * Writes the magic bytes of the VFS file. Seeking must be done beforehand.
-     * @throws IOException on write exception
+     * Writes the magic bytes of the VFS file.
+     * @param buf buffer positioned where the magic bytes go
      */
-    private void writeMagicBytes() throws IOException {
-        stream.write(0);
-        stream.write('S');
-        stream.write('V');
-        stream.write('F');
-        stream.write('S');
+    private void writeMagicBytes(ByteBuffer buf) {
+        buf.put((byte) 0);
+        buf.put((byte) 'S');
+        buf.put((byte) 'V');
+        buf.put((byte) 'F');
+        buf.put((byte) 'S');
     }
     
     /**
@@ -156,249 +381,2599 @@ public class SimpleVFS {
      * @throws IOException thrown on an error while verifying/reading
      */
     private void initializeFromFile() throws IOException {
-        stream.seek(0);
+        byte[] header = new byte[HEADER_SIZE];
+        storage.read(0, header, 0, HEADER_SIZE);
+        ByteBuffer buf = ByteBuffer.wrap(header);
         
-        readMagicBytes();
+        readMagicBytes(buf);
         
-        int version = stream.readUnsignedShort();
-        if (version != VERSION) {
+        version = buf.getShort() & 0xFFFF;
+        if (version == ImageConverter.LEGACY_VERSION) {
+            throw new IOException("Filesystem is in the version 1 format and "
+                    + "has to be upgraded with ImageConverter first");
+        } else if (version != SNAPSHOT_VERSION && version != LOG_VERSION && version != VERSION) {
             throw new IOException("Invalid filesystem version");
         }
         
-        blockSize = stream.readUnsignedShort();
+        // Version 4 allows 64 KB blocks, which are stored as 0
+        blockSize = buf.getShort() & 0xFFFF;
+        if (blockSize == 0 && version >= VERSION) {
+            blockSize = MAX_BLOCK_SIZE;
+        }
         if (blockSize < 64 || (blockSize % 8) != 0) {
             throw new IOException("Invalid block size");
         }
         
-        indexLoc = stream.readUnsignedShort();
-        readIndex();
+        indexLoc = buf.getShort() & 0xFFFF;
         
-        freeSpaceMap = new byte[blockSize];
-        stream.read(freeSpaceMap, 0, blockSize);
+        readIndexHeader();
+        
+        if (parentName.length() > 0) {
+            openParent();
+        }
+        
+        if (lazyIndex && version >= LOG_VERSION && (tableSlots > 0 || snapshotLen == 0)) {
+            lazyEntries = new ConcurrentHashMap<String, IndexEntry>();
+            if (!readIndexTail()) {
+                lazyEntries = null;
+                loadIndex();
+            }
+        } else {
+            loadIndex();
+        }
     }
     
     /**
-     * Attempt to read the VFS index into memory, based on the value of
-     * the current index location (as read possibly from
-     * {@link #initializeFromFile()}).
+     * Read the index location block. It holds the length of the index log,
+     * the length of the snapshot at the start of the log, the extents that
+     * the log is stored in, the number of slots and extents of the lookup
+     * table of the snapshot, and the number of blocks, starting at block 0,
+     * that the free space map takes up. Clones also name the image that
+     * they were cloned from, and have the extents of the bitmap of blocks
+     * that they borrow from it.
+     * 
+     * <p>Version 2 images have no log, only a snapshot in the older
+     * layout, and no lookup table. Neither version 2 nor version 3 images
+     * have more than one block of free space map, and both store block
+     * numbers in 16 bits. They are compacted into the current layout the
+     * first time that the index is written.</p>
      * @throws IOException on read error
      */
-    private void readIndex() throws IOException {
-        entries = new LinkedHashMap<String, IndexEntry>();
+    private void readIndexHeader() throws IOException {
+        byte[] header = new byte[blockSize];
+        storage.read(getOffset(indexLoc), header, 0, blockSize);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
         
-        if (indexLoc != 0) {
-            DataInputStream in = null;
-            
-            try {
-                in = new DataInputStream(getEntryInputStream(indexLoc));
-                int numEntries = in.readUnsignedShort();
-                for (int i = 0; i < numEntries; i++) {
-                    String path = stream.readUTF();
-                    int block = stream.readUnsignedShort();
-                    long size = stream.readInt() & 0xFFFFFFFFL;
-                    long lastModified = stream.readLong();
-                    entries.put(path, new IndexEntry(path, block, size, lastModified));
-                }
-            } finally {
-                close(in);
+        indexLen = in.readInt() & 0xFFFFFFFFL;
+        snapshotLen = version >= LOG_VERSION ? in.readInt() & 0xFFFFFFFFL : indexLen;
+        indexExtents = readExtents(in);
+        
+        if (version >= LOG_VERSION) {
+            tableSlots = in.readInt();
+            tableExtents = readExtents(in);
+        }
+        
+        mapBlocks = version >= VERSION ? in.readInt() : 1;
+        if (mapBlocks < 1 || mapBlocks > indexLoc) {
+            throw new IOException("Invalid free space map size");
+        }
+        
+        if (version >= VERSION) {
+            parentName = in.readUTF();
+            if (parentName.length() > 0) {
+                borrowedExtents = readExtents(in);
             }
         }
     }
     
     /**
-     * Initializes a new VFS file system.
-     * @throws IOException on write error
+     * Open the image that this clone was cloned from, and read the bitmap
+     * of the blocks that are still borrowed from it. File contents are read
+     * through a {@link BackedStorage} from then on.
+     * @throws IOException on read error, or if the image is missing
      */
-    private void initializeNew() throws IOException {
-        stream.seek(0);
-        
-        writeMagicBytes();
-
-        // Version
-        stream.writeShort(VERSION);
-        
-        // Block size
-        blockSize = DEFAULT_BLOCK_SIZE;
-        stream.writeShort(blockSize);
-        
-        // File/directory index location
-        indexLoc = 1;
-        stream.writeShort(indexLoc);
+    private void openParent() throws IOException {
+        File parentFile = resolveParent();
+        if (!parentFile.exists()) {
+            throw new FileNotFoundException("Image " + parentFile + " that this clone was made from is missing");
+        }
         
-        // Read the free space map
-        freeSpaceMap = new byte[blockSize];
-        stream.write(freeSpaceMap);
+        byte[] map = new byte[borrowedExtents.getBlockCount() * blockSize];
+        EntryInputStream in = getEntryInputStream(borrowedExtents, map.length);
+        try {
+            new DataInputStream(in).readFully(map);
+        } finally {
+            close(in);
+        }
         
-        entries = new LinkedHashMap<String, IndexEntry>();
-        stream.writeInt(0); // Length of this block
-        stream.writeInt(0); // 0 = no more sectors
+        Storage parent = pool != null ? new PooledStorage(pool, parentFile) : new FileStorage(parentFile);
+        backing = new BackedStorage(storage, parent, BackedStorage.readMap(map), blockSize);
     }
     
     /**
-     * Checks whether the full directory tree exists above the given path.
-     * @param path path to check
-     * @return true if it exists
+     * Get the file of the image that this clone was cloned from, which is
+     * named relative to the directory of this image.
+     * @return file
      */
-    private boolean directoryExistsFor(Path path) {
-        Path leaf = path;
-        while (!(leaf = path.getParent()).isRoot()) {
-            IndexEntry entry = entries.get(leaf.toString());
-            if (entry != null && entry.isDirectory()) {
-                return false;
-            }
+    private File resolveParent() {
+        File parentFile = new File(parentName);
+        if (!parentFile.isAbsolute()) {
+            parentFile = new File(baseFile.getAbsoluteFile().getParentFile(), parentName);
         }
-        return true;
+        return parentFile;
     }
     
     /**
-     * Gets a {@link IndexEntry} given a path.
-     * @param path path
-     * @return entry or null if the entry does not exist
+     * Read an extent list in the layout of the version of the image.
+     * @param in input
+     * @return extent list
+     * @throws IOException on read error
      */
-    private IndexEntry getEntry(Path path) {
-        return entries.get(path.toString());
+    private ExtentList readExtents(DataInput in) throws IOException {
+        return version >= VERSION ? ExtentList.read(in) : ExtentList.readNarrow(in);
     }
     
     /**
-     * Get the input stream for an entry, starting at the given start block.
-     * @param startBlock block start at
-     * @return input stream
-     * @throws IOException on I/O error
+     * Load the whole index into memory and work out which blocks are free
+     * from it. The free space map on disk is not trusted, as it can still
+     * have blocks marked that were reserved by streams that never finished,
+     * or be missing the last blocks freed before a crash; the parts of it
+     * that are wrong are rewritten with the next change. When the index was
+     * being read lazily, the content numbers of the entries that were looked
+     * up so far are carried over, so that the streams which have them pinned
+     * keep them from being freed.
+     * @throws IOException on read error
      */
-    protected EntryInputStream getEntryInputStream(int startBlock) throws IOException {
-        return new EntryInputStream(this, startBlock);
+    private void loadIndex() throws IOException {
+        allocator = new BlockAllocator(new byte[mapBlocks * blockSize], getMaxBlockCount());
+        for (int i = 1; i < mapBlocks; i++) {
+            allocator.markUsed(i);
+        }
+        allocator.markUsed(indexLoc);
+        
+        readIndex();
+        
+        byte[] freeSpaceMap = new byte[mapBlocks * blockSize];
+        storage.read(HEADER_SIZE, freeSpaceMap, 0, freeSpaceMap.length);
+        allocator.clearDirty();
+        allocator.markChanged(freeSpaceMap);
+        
+        if (lazyEntries != null) {
+            for (Map.Entry<String, IndexEntry> lazy : lazyEntries.entrySet()) {
+                int entry = findEntry(lazy.getKey().split("/"), 0);
+                if (entry != IndexTree.NONE && !tree.isDirectory(entry)) {
+                    tree.setContent(entry, lazy.getValue().getContent());
+                }
+            }
+            lazyEntries = null;
+        }
+        
+        indexLoaded = true;
     }
-
+    
     /**
-     * Get the output stream for an entry, starting at the given start block.
-     * @param startBlock block start at
-     * @return input stream
-     * @throws IOException on I/O error
+     * Attempt to read the VFS index into memory, based on the index
+     * location block read by {@link #readIndexHeader()}.
+     * @throws IOException on read error
      */
-    protected EntryOutputStream getEntryOutputStream(int startBlock) throws IOException {
-        return new EntryOutputStream(this, startBlock);
+    private void readIndex() throws IOException {
+        tree = new IndexTree();
+        entryCount = 0;
+        
+        // Pull in the whole index with bulk reads before parsing it
+        byte[] index = new byte[(int) indexLen];
+        if (indexLen > 0) {
+            EntryInputStream entryIn = getEntryInputStream(indexExtents, indexLen);
+            try {
+                new DataInputStream(entryIn).readFully(index);
+            } finally {
+                close(entryIn);
+            }
+        }
+        
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+        if (version >= LOG_VERSION) {
+            while (in.available() > 0) {
+                int type = in.readUnsignedByte();
+                if (type == RECORD_PUT) {
+                    putEntry(readEntry(in));
+                } else if (type == RECORD_REMOVE) {
+                    removeEntry(in.readUTF());
+                } else {
+                    throw new IOException("Unknown index record");
+                }
+            }
+        } else if (indexLen > 0) {
+            int numEntries = in.readUnsignedShort();
+            for (int i = 0; i < numEntries; i++) {
+                putEntry(readEntry(in));
+            }
+        }
+        
+        // Keep the partly filled last block of the log to append to
+        indexTail = new byte[blockSize];
+        int tailLen = (int) (indexLen % blockSize);
+        System.arraycopy(index, index.length - tailLen, indexTail, 0, tailLen);
+        
+        BitSet seen = new BitSet();
+        markUsed(IndexTree.ROOT, seen);
+        markUsed(IndexTree.SNAPSHOTS, seen);
+        for (int block : indexExtents.toBlocks()) {
+            allocator.markUsed(block);
+        }
+        for (int block : tableExtents.toBlocks()) {
+            allocator.markUsed(block);
+        }
+        for (int block : borrowedExtents.toBlocks()) {
+            allocator.markUsed(block);
+        }
     }
     
     /**
-     * Load up the existing VFS file system or initialize a new one. This is
-     * only called if the VFS is used.
-     * @throws IOException on I/O error
+     * Read the records that were appended to the index log since the last
+     * snapshot, so that lookups find them before the snapshot's versions.
+     * Removals would have to hide whole subtrees of the snapshot from
+     * lookups, so if any are found, the index has to be loaded in full.
+     * @return false if the log has removals since the snapshot
+     * @throws IOException on read error
      */
-    private synchronized void prepare() throws IOException {
-        if (loaded) return;
-    
+    private boolean readIndexTail() throws IOException {
+        if (indexLen == snapshotLen) {
+            return true;
+        }
+        
+        EntryInputStream entryIn = getEntryInputStream(indexExtents, indexLen);
         try {
-            initializeFromFile();
-        } catch (IOException e) {
-            initializeNew();
+            entryIn.seek(snapshotLen);
+            byte[] tail = new byte[(int) (indexLen - snapshotLen)];
+            new DataInputStream(entryIn).readFully(tail);
+            
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(tail));
+            while (in.available() > 0) {
+                int type = in.readUnsignedByte();
+                if (type == RECORD_REMOVE) {
+                    return false;
+                } else if (type != RECORD_PUT) {
+                    throw new IOException("Unknown index record");
+                }
+                IndexEntry entry = readEntry(in);
+                lazyEntries.put(entry.getName(), entry);
+            }
+            return true;
+        } finally {
+            close(entryIn);
         }
     }
-
+    
     /**
-     * Write data to a given path.
-     * @param path path
-     * @param out output stream
-     * @throws IOException on write exception
+     * Read one record of the index log.
+     * @param in input
+     * @return entry, named by its full path
+     * @throws IOException on read error, or if the record is unknown
      */
-    public synchronized void write(Path path, ByteArrayOutputStream out) throws IOException {
-        prepare();
-        
-        if (!directoryExistsFor(path)) {
-            throw new IOException("Parent directory doesn't exist");
+    private IndexEntry readRecord(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() != RECORD_PUT) {
+            throw new IOException("Unknown index record");
         }
+        return readEntry(in);
+    }
+    
+    /**
+     * Read one entry of the index.
+     * @param in input
+     * @return entry, named by its full path
+     * @throws IOException on read error
+     */
+    private IndexEntry readEntry(DataInputStream in) throws IOException {
+        String path = in.readUTF();
+        int flags = in.readUnsignedByte();
+        long size = in.readInt() & 0xFFFFFFFFL;
+        long storedSize = (flags & FLAG_COMPRESSED) != 0 ? in.readInt() & 0xFFFFFFFFL : size;
+        long lastModified = in.readLong();
         
-        IndexEntry entry = getEntry(path);
+        ExtentList extents = ExtentList.EMPTY;
+        byte[] data = null;
+        if ((flags & FLAG_INLINE) != 0) {
+            data = new byte[(int) size];
+            in.readFully(data);
+        } else {
+            extents = readExtents(in);
+        }
         
-        if (entry != null) { // May have to resize
-            int newLen = out.size();
-            int existingBlockCount = (int) Math.ceil((FILE_HEADER_SIZE + entry.getSize()) / (double) blockSize);
-            int neededBlockCount = (int) Math.ceil((FILE_HEADER_SIZE + newLen) / (double) blockSize);
-            
-            if (neededBlockCount <= existingBlockCount) {
-                stream.seek(entry.getBlock());
-                stream.writeInt(newLen);
-                stream.write(out.toByteArray());
-                
-                for (int i = 0; i < existingBlockCount - neededBlockCount; i++) {
-                    
-                }
-            }
+        if ((flags & FLAG_DIRECTORY) != 0) {
+            return new IndexEntry(path, lastModified);
         } else {
+            return new IndexEntry(path, extents, data, size, storedSize,
+                    (flags & FLAG_COMPRESSED) != 0, lastModified, IndexTree.newContent());
         }
     }
-
+    
     /**
-     * Reads the file stored at the path.
-     * @param path
-     * @return
-     * @throws IOException
+     * Put an entry that was read from the index into the tree. An entry
+     * that is already in the tree is updated, as later records in the log
+     * take the place of earlier ones. Entries of snapshots go into the
+     * tree of snapshots, which is kept apart from the root.
+     * @param record entry, named by its full path
+     * @throws IOException if the entry has no parent or changes type
      */
-    public byte[] read(Path path) throws IOException {
-        IndexEntry entry = getEntry(path);
-        
-        if (entry == null) {
-            throw new FileNotFoundException("File not found for path " + path.toString());
+    private void putEntry(IndexEntry record) throws IOException {
+        String path = record.getName();
+        int base = IndexTree.ROOT;
+        if (path.startsWith(SNAPSHOT_PREFIX)) {
+            base = IndexTree.SNAPSHOTS;
+            path = path.substring(SNAPSHOT_PREFIX.length());
         }
         
-        if (entry.isDirectory()) {
-            throw new IOException("Given path is a directory, not a file");
+        // Parents are always written before their children
+        int slash = path.lastIndexOf('/');
+        int parent = slash == -1 ? base : findEntry(base, path.substring(0, slash).split("/"), 0);
+        if (parent == IndexTree.NONE || !tree.isDirectory(parent)) {
+            throw new IOException("Index entry " + path + " has no parent directory");
         }
         
-        byte[] buf = new byte[(int) entry.getSize()];
+        String name = path.substring(slash + 1);
+        int entry = tree.getChild(parent, name);
         
-        EntryInputStream in = null;
-        try {
-            in = getEntryInputStream(indexLoc);
-            in.read(buf, 0, buf.length);
-        } finally {
-            close(in);
+        if (entry == IndexTree.NONE) {
+            if (record.isDirectory()) {
+                tree.addDirectory(parent, name, record.getLastModified());
+            } else {
+                entry = tree.addFile(parent, name, record.getLastModified());
+            }
+            if (base == IndexTree.ROOT) {
+                entryCount++;
+            }
+        } else if (tree.isDirectory(entry) != record.isDirectory()) {
+            throw new IOException("Index entry " + path + " changes type");
+        } else {
+            tree.setLastModified(entry, record.getLastModified());
         }
         
-        return buf;
+        if (!record.isDirectory()) {
+            tree.setContents(entry, record.getExtents(), record.getInlineData(),
+                    record.getSize(), record.getStoredSize(), record.isCompressed());
+        }
     }
     
     /**
-     * Get an output stream for a file. The file's contents will be stored
-     * in memory until the stream is closed, and then the fill will be
-     * written to the VFS.
-     * @param path path to write to
-     * @return output stream
-     * @throws IOException on I/O exception
+     * Remove an entry that was read from the index from the tree, along
+     * with everything under it.
+     * @param path full path of the entry
+     * @throws IOException if the entry does not exist
      */
-    public OutputStream getOutputStream(String path) throws IOException {
-        return new VirtualFileOutputStream(this, Path.parse(path), maxFileSize);
+    private void removeEntry(String path) throws IOException {
+        int base = IndexTree.ROOT;
+        if (path.startsWith(SNAPSHOT_PREFIX)) {
+            base = IndexTree.SNAPSHOTS;
+            path = path.substring(SNAPSHOT_PREFIX.length());
+        }
+        
+        int entry = findEntry(base, path.split("/"), 0);
+        if (entry == IndexTree.NONE || entry == base) {
+            throw new IOException("Index entry " + path + " is removed but does not exist");
+        }
+        int count = tree.remove(entry);
+        if (base == IndexTree.ROOT) {
+            entryCount -= count;
+        }
     }
     
-    public InputStream getInputStream(String path) throws IOException {
-        return new VirtualFileInputStream(this, Path.parse(path));
+    /**
+     * Count an entry and every entry under it.
+     * @param entry entry
+     * @return number of entries
+     */
+    int countEntries(int entry) {
+        int count = 1;
+        for (int child = tree.getFirstChild(entry); child != IndexTree.NONE; child = tree.getNextSibling(child)) {
+            count += countEntries(child);
+        }
+        return count;
     }
     
-    public void allocatePointer() throws IOException {
-        if (!allocatedPointers.tryAcquire()) {
-            throw new IOException("Out of file pointers");
+    /**
+     * Look up an entry without loading the whole index. Entries from the
+     * end of the log are looked up in memory, and the rest are found by
+     * probing the lookup table of the snapshot and decoding the one record
+     * that it points to. The shared lock must be held.
+     * @param path path
+     * @return entry, named by its full path, or null if it does not exist
+     * @throws IOException on read error
+     */
+    private IndexEntry lookupEntry(Path path) throws IOException {
+        String key = path.toString();
+        IndexEntry entry = lazyEntries.get(key);
+        if (entry != null || tableSlots == 0) {
+            return entry;
         }
         
-        if (!totalPointers.tryAcquire()) {
-            throw new IOException("Out of global file pointers");
+        int hash = IndexTable.hash(key);
+        int mask = tableSlots - 1;
+        byte[] slot = new byte[IndexTable.SLOT_SIZE];
+        
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            long pos = (long) i * IndexTable.SLOT_SIZE;
+            int block = tableExtents.getBlock((int) (pos / blockSize));
+            storage.read(getOffset(block) + pos % blockSize, slot, 0, slot.length);
+            
+            ByteBuffer buf = ByteBuffer.wrap(slot);
+            int slotHash = buf.getInt();
+            int position = buf.getInt();
+            
+            if (position == 0) {
+                return null;
+            } else if (slotHash == hash) {
+                entry = readEntryAt(position - 1);
+                if (entry.getName().equals(key)) {
+                    IndexEntry existing = lazyEntries.putIfAbsent(key, entry);
+                    return existing != null ? existing : entry;
+                }
+            }
         }
     }
-
-    public void releasePointer() {
-        allocatedPointers.release();
-        totalPointers.release();
+    
+    /**
+     * Read the record at a position in the index log.
+     * @param position position in the log
+     * @return entry, named by its full path
+     * @throws IOException on read error
+     */
+    private IndexEntry readEntryAt(long position) throws IOException {
+        EntryInputStream entryIn = getEntryInputStream(indexExtents, indexLen);
+        try {
+            entryIn.seek(position);
+            return readRecord(new DataInputStream(new BufferedInputStream(entryIn, 256)));
+        } finally {
+            close(entryIn);
+        }
     }
     
-    private static void close(Closeable c) {
-        if (c != null) {
-            try {
-                c.close();
-            } catch (IOException e) {
+    /**
+     * Mark the blocks of every file under a directory as used. Blocks that
+     * are seen more than once were deduplicated, and are marked as shared
+     * for every extra reference.
+     * @param dir directory
+     * @param seen blocks seen so far
+     */
+    private void markUsed(int dir, BitSet seen) {
+        for (int entry = tree.getFirstChild(dir); entry != IndexTree.NONE; entry = tree.getNextSibling(entry)) {
+            if (tree.isDirectory(entry)) {
+                markUsed(entry, seen);
+            } else {
+                for (int block : tree.getExtents(entry).toBlocks()) {
+                    if (seen.get(block)) {
+                        allocator.share(block);
+                    } else {
+                        seen.set(block);
+                        allocator.markUsed(block);
+                    }
+                }
             }
         }
     }
+    
+    /**
+     * Initializes a new VFS file system.
+     * @throws IOException on write error
+     */
+    private void initializeNew() throws IOException {
+        version = VERSION;
+        
+        // The free space map takes up as many blocks as it needs to cover
+        // the maximum size, and the index location block comes right after,
+        // unless a clone takes the layout of the image it is cloned from
+        if (indexLoc == 0) {
+            long bitsPerBlock = blockSize * 8L;
+            mapBlocks = (int) Math.min(65534, (getMaxBlockCount() + bitsPerBlock - 1) / bitsPerBlock);
+            indexLoc = mapBlocks;
+        }
+        
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + (indexLoc + 1) * blockSize);
+        
+        writeHeader(buf);
+        
+        // Write the free space map
+        allocator = new BlockAllocator(new byte[mapBlocks * blockSize], getMaxBlockCount());
+        for (int i = 1; i <= indexLoc; i++) {
+            allocator.markUsed(i);
+        }
+        buf.put(allocator.toByteArray());
+        allocator.clearDirty();
+        buf.position(HEADER_SIZE + indexLoc * blockSize);
+        
+        // Empty index
+        tree = new IndexTree();
+        entryCount = 0;
+        indexLen = 0;
+        snapshotLen = 0;
+        indexExtents = ExtentList.EMPTY;
+        indexTail = new byte[blockSize];
+        tableSlots = 0;
+        tableExtents = ExtentList.EMPTY;
+        buf.put(getIndexHeader());
+        
+        writeMetadata(0, buf.array(), 0, buf.capacity());
+        indexLoaded = true;
+    }
+    
+    /**
+     * Writes the header of the VFS file.
+     * @param buf buffer positioned at the start of the file
+     */
+    private void writeHeader(ByteBuffer buf) {
+        writeMagicBytes(buf);
 
-    RandomAccessFile getStream() {
-        return stream;
+        // Version
+        buf.putShort((short) version);
+        
+        // Block size, where 64 KB wraps around to 0
+        buf.putShort((short) blockSize);
+        
+        // File/directory index location
+        buf.putShort((short) indexLoc);
+    }
+    
+    /**
+     * Record a new or changed entry by appending it to the index log. Only
+     * the block at the end of the log, and any blocks that the record
+     * spills into, are written. Once the records appended since the last
+     * snapshot outgrow the snapshot, the index is compacted instead.
+     * @param path full path of the entry
+     * @param entry entry
+     * @throws IOException on write error
+     */
+    private void writeIndexEntry(String path, int entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeEntry(new DataOutputStream(bytes), path, entry);
+        appendIndex(bytes);
+    }
+        
+    /**
+     * Append records to the index log, or compact the index if the log has
+     * grown too long. The tree must already reflect the records.
+     * @param bytes records
+     * @throws IOException on write error
+     */
+    private void appendIndex(ByteArrayOutputStream bytes) throws IOException {
+        long appended = indexLen - snapshotLen + bytes.size();
+        if (version != VERSION || appended > Math.max(snapshotLen, MIN_COMPACT_SIZE)) {
+            compactIndex();
+            return;
+        }
+        
+        int tailLen = (int) (indexLen % blockSize);
+        byte[] data = new byte[tailLen + bytes.size()];
+        System.arraycopy(indexTail, 0, data, 0, tailLen);
+        System.arraycopy(bytes.toByteArray(), 0, data, tailLen, bytes.size());
+        
+        long len = indexLen + bytes.size();
+        ExtentList extents = resizeExtents(indexExtents, getBlockCount(len));
+        if (!fitsIndexHeader(extents, tableExtents)) {
+            // Rewrite the whole index into one run rather than fail
+            deallocateGrowth(indexExtents, extents);
+            compactIndex();
+            return;
+        }
+        
+        int first = (int) (indexLen / blockSize);
+        for (int off = 0; off < data.length; off += blockSize) {
+            int n = Math.min(blockSize, data.length - off);
+            writeMetadata(getOffset(extents.getBlock(first + off / blockSize)), data, off, n);
+        }
+        
+        int newTailLen = (int) (len % blockSize);
+        System.arraycopy(data, data.length - newTailLen, indexTail, 0, newTailLen);
+        
+        indexExtents = extents;
+        indexLen = len;
+        
+        writeIndexHeader();
+        writeFreeSpaceMap();
+    }
+    
+    /**
+     * Rewrite the index as a snapshot of the entries in the tree, which
+     * replaces the log, along with a new lookup table for the snapshot.
+     * @throws IOException on write error
+     */
+    private void compactIndex() throws IOException {
+        compactIndex(false);
+    }
+    
+    /**
+     * Rewrite the index as a snapshot of the entries in the tree, which
+     * replaces the log, along with a new lookup table for the snapshot.
+     * @param relocate true to write both into newly allocated blocks, and
+     *        only release the old ones once the index location block has
+     *        been switched over to the new ones
+     * @throws IOException on write error
+     */
+    private void compactIndex(boolean relocate) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        IndexTable table = new IndexTable();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeEntries(out, IndexTree.ROOT, "", table);
+        writeEntries(out, IndexTree.SNAPSHOTS, SNAPSHOT_PREFIX, null);
+        
+        ExtentList oldExtents = indexExtents;
+        ExtentList oldTableExtents = tableExtents;
+        ExtentList existing = relocate ? ExtentList.EMPTY : indexExtents;
+        ExtentList existingTable = relocate ? ExtentList.EMPTY : tableExtents;
+        
+        byte[] data = bytes.toByteArray();
+        ExtentList extents = resizeExtents(existing, getBlockCount(data.length));
+        
+        byte[] tableData = table.toByteArray();
+        ExtentList newTableExtents = resizeExtents(existingTable, getBlockCount(tableData.length));
+        if (!fitsIndexHeader(extents, newTableExtents)) {
+            extents = moveExtents(existing, extents);
+        }
+        if (!fitsIndexHeader(extents, newTableExtents)) {
+            newTableExtents = moveExtents(existingTable, newTableExtents);
+        }
+        checkFragmentation(extents, newTableExtents);
+        tableExtents = newTableExtents;
+        tableSlots = table.getSlotCount();
+        
+        writeExtents(extents, data, data.length);
+        writeExtents(tableExtents, tableData, tableData.length);
+        
+        int tailLen = data.length % blockSize;
+        System.arraycopy(data, data.length - tailLen, indexTail, 0, tailLen);
+        
+        indexExtents = extents;
+        indexLen = data.length;
+        snapshotLen = data.length;
+        
+        if (version != VERSION) {
+            version = VERSION;
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+            writeHeader(buf);
+            writeMetadata(0, buf.array(), 0, HEADER_SIZE);
+        }
+        
+        writeIndexHeader();
+        if (relocate) {
+            release(oldExtents);
+            release(oldTableExtents);
+        }
+        writeFreeSpaceMap();
+    }
+    
+    /**
+     * Make sure that the extents of the index still fit in the index
+     * location block.
+     * @param extents extents of the index log
+     * @param tableExtents extents of the lookup table
+     * @throws IOException if they do not
+     */
+    private void checkFragmentation(ExtentList extents, ExtentList tableExtents) throws IOException {
+        if (!fitsIndexHeader(extents, tableExtents)) {
+            throw new IOException("Index is too fragmented");
+        }
+    }
+    
+    /**
+     * Check whether the extents of the index fit in the index location
+     * block, which only holds a few dozen extents with small blocks.
+     * @param extents extents of the index log
+     * @param tableExtents extents of the lookup table
+     * @return true if they fit
+     */
+    private boolean fitsIndexHeader(ExtentList extents, ExtentList tableExtents) {
+        int parentSize = 2 + parentName.length() * 3;
+        if (parentName.length() > 0) {
+            parentSize += borrowedExtents.getSerializedSize();
+        }
+        return INDEX_HEADER_SIZE + extents.getSerializedSize()
+                + tableExtents.getSerializedSize() + parentSize <= blockSize;
+    }
+    
+    /**
+     * Give back the blocks that {@link #resizeExtents(ExtentList, int)} added
+     * to some extents. They were never written to, so they can be freed
+     * right away.
+     * @param existing extents before resizing
+     * @param resized extents after resizing
+     */
+    private void deallocateGrowth(ExtentList existing, ExtentList resized) {
+        int current = existing.getBlockCount();
+        int count = resized.getBlockCount();
+        if (count > current) {
+            deallocate(Arrays.copyOfRange(resized.toBlocks(), current, count));
+        }
+    }
+    
+    /**
+     * Move resized metadata extents to newly allocated blocks, which come
+     * from one contiguous run if there is one. The old blocks are released.
+     * @param existing extents before resizing
+     * @param resized extents after resizing
+     * @return new extents
+     * @throws IOException if out of space
+     */
+    private ExtentList moveExtents(ExtentList existing, ExtentList resized) throws IOException {
+        if (resized.getBlockCount() > existing.getBlockCount()) {
+            deallocateGrowth(existing, resized);
+            release(existing);
+        } else {
+            release(resized);
+        }
+        return ExtentList.of(allocator.allocate(resized.getBlockCount()));
+    }
+    
+    /**
+     * Write the index location block.
+     * @throws IOException on write error
+     */
+    private void writeIndexHeader() throws IOException {
+        byte[] header = getIndexHeader();
+        writeMetadata(getOffset(indexLoc), header, 0, header.length);
+    }
+    
+    /**
+     * Build the contents of the index location block.
+     * @return contents
+     * @throws IOException on write error
+     */
+    private byte[] getIndexHeader() throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(headerBytes);
+        headerOut.writeInt((int) indexLen);
+        headerOut.writeInt((int) snapshotLen);
+        indexExtents.write(headerOut);
+        headerOut.writeInt(tableSlots);
+        tableExtents.write(headerOut);
+        headerOut.writeInt(mapBlocks);
+        headerOut.writeUTF(parentName);
+        if (parentName.length() > 0) {
+            borrowedExtents.write(headerOut);
+        }
+        return headerBytes.toByteArray();
+    }
+    
+    /**
+     * Write the children of a directory, each followed by its own children
+     * if it is a directory, so that parents always come first.
+     * @param out output
+     * @param dir directory
+     * @param prefix path of the directory followed by a slash, or an empty
+     *        string for the root
+     * @param table lookup table to add the position of each record to, or null
+     * @throws IOException on write error
+     */
+    private void writeEntries(DataOutputStream out, int dir, String prefix, IndexTable table) throws IOException {
+        for (int entry = tree.getFirstChild(dir); entry != IndexTree.NONE; entry = tree.getNextSibling(entry)) {
+            String path = prefix + tree.getName(entry);
+            if (table != null) {
+                table.add(path, out.size());
+            }
+            writeEntry(out, path, entry);
+            
+            if (tree.isDirectory(entry)) {
+                writeEntries(out, entry, path + "/", table);
+            }
+        }
+    }
+    
+    /**
+     * Write an index record for an entry.
+     * @param out output
+     * @param path full path of the entry
+     * @param entry entry
+     * @throws IOException on write error
+     */
+    private void writeEntry(DataOutputStream out, String path, int entry) throws IOException {
+        byte[] inlineData = tree.getInlineData(entry);
+        
+        out.writeByte(RECORD_PUT);
+        out.writeUTF(path);
+        int flags = 0;
+        if (tree.isDirectory(entry)) flags |= FLAG_DIRECTORY;
+        if (tree.isCompressed(entry)) flags |= FLAG_COMPRESSED;
+        if (inlineData != null) flags |= FLAG_INLINE;
+        
+        out.writeByte(flags);
+        out.writeInt((int) tree.getSize(entry));
+        if (tree.isCompressed(entry)) {
+            out.writeInt((int) tree.getStoredSize(entry));
+        }
+        out.writeLong(tree.getLastModified(entry));
+        if (inlineData != null) {
+            out.write(inlineData);
+        } else {
+            tree.getExtents(entry).write(out);
+        }
+    }
+    
+    /**
+     * Write an index record for an entry and, if it is a directory,
+     * everything under it.
+     * @param out output
+     * @param path full path of the entry
+     * @param entry entry
+     * @throws IOException on write error
+     */
+    private void writeTree(DataOutputStream out, String path, int entry) throws IOException {
+        writeEntry(out, path, entry);
+        if (tree.isDirectory(entry)) {
+            writeEntries(out, entry, path + "/", null);
+        }
+    }
+    
+    /**
+     * Record an entry and everything under it in the index log. The
+     * exclusive lock must be held.
+     * @param path full path of the entry
+     * @param entry entry
+     * @throws IOException on write error
+     */
+    void appendTree(String path, int entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeTree(new DataOutputStream(bytes), path, entry);
+        appendIndex(bytes);
+    }
+    
+    /**
+     * Record the removal of an entry and everything under it in the index
+     * log. The exclusive lock must be held.
+     * @param path full path of the entry
+     * @throws IOException on write error
+     */
+    void appendRemoval(String path) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeRemoval(new DataOutputStream(bytes), path);
+        appendIndex(bytes);
+    }
+    
+    /**
+     * Write an index record that removes an entry and everything under it.
+     * @param out output
+     * @param path full path of the entry
+     * @throws IOException on write error
+     */
+    private void writeRemoval(DataOutputStream out, String path) throws IOException {
+        out.writeByte(RECORD_REMOVE);
+        out.writeUTF(path);
+    }
+    
+    /**
+     * Write the blocks of the free space map that have changed, starting
+     * at block 0, and those of the bitmap of borrowed blocks of a clone.
+     * @throws IOException on write error
+     */
+    private void writeFreeSpaceMap() throws IOException {
+        for (int i = allocator.nextDirty(0, blockSize); i != -1; i = allocator.nextDirty(i + 1, blockSize)) {
+            byte[] part = allocator.toByteArray(i * blockSize, blockSize);
+            writeMetadata(HEADER_SIZE + (long) i * blockSize, part, 0, blockSize);
+        }
+        allocator.clearDirty();
+        
+        if (backing != null) {
+            for (int i = backing.nextDirty(0); i != -1; i = backing.nextDirty(i + 1)) {
+                byte[] part = backing.toByteArray(i * blockSize, blockSize);
+                writeMetadata(getOffset(borrowedExtents.getBlock(i)), part, 0, blockSize);
+            }
+            backing.clearDirty();
+        }
+    }
+    
+    /**
+     * Get the number of blocks, including block 0, that fit within the
+     * maximum size of the file system.
+     * @return number of blocks
+     */
+    private int getMaxBlockCount() {
+        long blocks = (maxFilesystemSize - HEADER_SIZE) / blockSize;
+        return (int) Math.min(version >= VERSION ? Integer.MAX_VALUE : 65535, blocks);
+    }
+    
+    /**
+     * Get the number of blocks needed to store an entry of the given length.
+     * @param len length in bytes
+     * @return number of blocks
+     */
+    private int getBlockCount(long len) {
+        return (int) ((len + blockSize - 1) / blockSize);
+    }
+    
+    /**
+     * Grow or shrink the extents of an entry. Existing blocks are kept
+     * in place, surplus blocks are freed and missing blocks are allocated,
+     * contiguously if possible.
+     * @param existing current extents of the entry
+     * @param count number of blocks needed
+     * @return new extents
+     * @throws IOException if out of space
+     */
+    private ExtentList resizeExtents(ExtentList existing, int count) throws IOException {
+        int current = existing.getBlockCount();
+        if (current == count) {
+            return existing;
+        }
+        
+        int[] old = existing.toBlocks();
+        int[] blocks = Arrays.copyOf(old, count);
+        
+        if (count > current) {
+            int[] extra = allocator.allocate(count - current);
+            System.arraycopy(extra, 0, blocks, current, extra.length);
+        } else {
+            release(ExtentList.of(Arrays.copyOfRange(old, count, current)));
+        }
+        
+        return ExtentList.of(blocks);
+    }
+    
+    /**
+     * Write metadata to the image. With a journal, the write is collected
+     * into the current transaction and only made to the image once the
+     * transaction has been committed with {@link #commitMetadata()}. The
+     * exclusive lock must be held.
+     * @param position position in the image
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param len number of bytes
+     * @throws IOException on write error
+     */
+    private void writeMetadata(long position, byte[] b, int off, int len) throws IOException {
+        if (journal != null) {
+            transaction.write(position, b, off, len);
+        } else {
+            storage.write(position, b, off, len);
+        }
+    }
+    
+    /**
+     * Append the metadata written since the last call to the journal. The
+     * exclusive lock must be held, but should be released before waiting
+     * on the returned ticket so that other writers can join the same
+     * group commit.
+     * @return ticket to pass to {@link #awaitMetadata(long)}
+     * @throws IOException on write error
+     */
+    long commitMetadata() throws IOException {
+        if (journal == null) {
+            return 0;
+        }
+        Journal.Transaction tx = transaction;
+        transaction = new Journal.Transaction();
+        long ticket = journal.append(tx);
+        
+        if (!released.isEmpty()) {
+            if (ticket == 0) {
+                for (ExtentList extents : released) {
+                    deallocate(extents.toBlocks());
+                }
+                released.clear();
+            } else {
+                deferred.put(ticket, released);
+                released = new ArrayList<ExtentList>();
+            }
+        }
+        
+        return ticket;
+    }
+    
+    /**
+     * Wait until metadata committed with {@link #commitMetadata()} is
+     * durable, and then free the blocks that were released by it. This
+     * should be called after releasing the exclusive lock, so that other
+     * writers can join the same group commit.
+     * @param ticket ticket
+     * @throws IOException on I/O error
+     */
+    void awaitMetadata(long ticket) throws IOException {
+        if (journal == null) {
+            return;
+        }
+        
+        journal.await(ticket);
+        
+        lock.writeLock().lock();
+        try {
+            SortedMap<Long, List<ExtentList>> durable = deferred.headMap(ticket + 1);
+            if (durable.isEmpty()) {
+                return;
+            }
+            
+            for (List<ExtentList> list : durable.values()) {
+                for (ExtentList extents : list) {
+                    deallocate(extents.toBlocks());
+                }
+            }
+            durable.clear();
+            
+            // Not waited for, as the map is worked out from the index again
+            // when the image is opened
+            writeFreeSpaceMap();
+            commitMetadata();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Free blocks that the index no longer refers to. With a journal, this
+     * is put off until the transaction that stops referring to them is
+     * durable, as the blocks could otherwise be reused and overwritten while
+     * the index on disk still points at them. The exclusive lock must be
+     * held.
+     * @param extents extents to free
+     */
+    private void release(ExtentList extents) {
+        if (journal == null) {
+            deallocate(extents.toBlocks());
+        } else {
+            released.add(extents);
+        }
+    }
+    
+    /**
+     * Release the blocks of the contents of a file that were replaced or
+     * removed, or put it off until no stream is reading from them anymore.
+     * The exclusive lock must be held.
+     * @param content content number of the contents
+     * @param extents extents of the contents
+     */
+    private void release(long content, ExtentList extents) {
+        synchronized (pinned) {
+            if (pinned.containsKey(content)) {
+                orphaned.put(content, extents);
+                return;
+            }
+        }
+        
+        release(extents);
+    }
+    
+    /**
+     * Write file data to free blocks of the image.
+     * @param position position in the image
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param len number of bytes
+     * @throws IOException on write error
+     */
+    void writeData(long position, byte[] b, int off, int len) throws IOException {
+        if (journal != null) {
+            journal.writeData(position, b, off, len);
+        } else {
+            storage.write(position, b, off, len);
+        }
+    }
+    
+    /**
+     * Write a batch of file data to free blocks of the image.
+     * @param batch writes
+     * @throws IOException on write error
+     */
+    void writeData(WriteBatch batch) throws IOException {
+        if (journal != null) {
+            journal.writeData(batch);
+        } else {
+            batch.writeTo(storage);
+        }
+    }
+    
+    /**
+     * Write the contents of an entry across its extents. Each extent is
+     * contiguous and is written at once.
+     * @param extents extents of the entry
+     * @param data data to write
+     * @param len length of the data
+     * @throws IOException on write error
+     */
+    private void writeExtents(ExtentList extents, byte[] data, int len) throws IOException {
+        int off = 0;
+        for (int i = 0; i < extents.size() && off < len; i++) {
+            int n = Math.min(len - off, extents.getLength(i) * blockSize);
+            writeMetadata(getOffset(extents.getStart(i)), data, off, n);
+            off += n;
+        }
+    }
+    
+    /**
+     * Walk the index tree from the root down the given path components.
+     * @param parts path components
+     * @param skip number of trailing components to leave out
+     * @return entry, or {@link IndexTree#NONE} if it does not exist
+     */
+    private int findEntry(String[] parts, int skip) {
+        return findEntry(IndexTree.ROOT, parts, skip);
+    }
+    
+    /**
+     * Walk the index tree from the given directory down the given path
+     * components.
+     * @param base directory to start from
+     * @param parts path components
+     * @param skip number of trailing components to leave out
+     * @return entry, or {@link IndexTree#NONE} if it does not exist
+     */
+    private int findEntry(int base, String[] parts, int skip) {
+        int entry = base;
+        for (int i = 0; i < parts.length - skip; i++) {
+            entry = tree.getChild(entry, parts[i]);
+            if (entry == IndexTree.NONE) {
+                return IndexTree.NONE;
+            }
+        }
+        return entry;
+    }
+    
+    /**
+     * Gets the directory that the given path would be in.
+     * @param path path
+     * @return directory, or {@link IndexTree#NONE} if the full directory
+     *         tree above the path does not exist
+     */
+    private int getParentEntry(Path path) {
+        int parent = findEntry(path.parts(), 1);
+        return parent != IndexTree.NONE && tree.isDirectory(parent) ? parent : IndexTree.NONE;
+    }
+    
+    /**
+     * Gets the entry at a path.
+     * @param path path
+     * @return entry, or {@link IndexTree#NONE} if the entry does not exist
+     */
+    private int getEntry(Path path) {
+        return findEntry(path.parts(), 0);
+    }
+    
+    /**
+     * Get the input stream for an entry stored in the given extents.
+     * @param extents extents of the entry
+     * @param len length of the entry in bytes
+     * @return input stream
+     * @throws IOException on I/O error
+     */
+    protected EntryInputStream getEntryInputStream(ExtentList extents, long len) throws IOException {
+        return new EntryInputStream(this, extents, len);
+    }
+
+    /**
+     * Get the input stream for the contents of a file entry.
+     * @param entry entry
+     * @return input stream
+     * @throws IOException on I/O error
+     */
+    protected EntryInputStream getEntryInputStream(IndexEntry entry) throws IOException {
+        if (entry.getInlineData() != null) {
+            return new EntryInputStream(this, entry.getInlineData());
+        }
+        return new EntryInputStream(this, entry.getExtents(), entry.getStoredSize(),
+                entry.getSize(), entry.isCompressed());
+    }
+
+    /**
+     * Get an output stream that writes a new version of the entry at the
+     * given path, which replaces the old one when the stream is closed.
+     * @param path path of the entry
+     * @param maxFileSize maximum number of bytes that may be written
+     * @return output stream
+     * @throws IOException on I/O error, or if the entry cannot be written
+     */
+    protected EntryOutputStream getEntryOutputStream(Path path, int maxFileSize) throws IOException {
+        prepareIndex();
+        
+        lock.readLock().lock();
+        try {
+            checkWritable(path);
+        } finally {
+            lock.readLock().unlock();
+        }
+        
+        return new EntryOutputStream(this, path, maxFileSize, compressionThreshold,
+                inlineThreshold, deduplicating);
+    }
+    
+    /**
+     * Check that a file can be written at the given path.
+     * @param path path
+     * @throws IOException if the parent directory is missing, the path is a
+     *         directory, or the index is full
+     */
+    private void checkWritable(Path path) throws IOException {
+        if (getParentEntry(path) == IndexTree.NONE) {
+            throw new IOException("Parent directory doesn't exist");
+        }
+        
+        int entry = getEntry(path);
+        
+        if (entry != IndexTree.NONE && tree.isDirectory(entry)) {
+            throw new IOException("Given path is a directory, not a file");
+        }
+        
+        if (entry == IndexTree.NONE && entryCount >= maxEntryCount) {
+            throw new IOException("Too many entries");
+        }
+    }
+    
+    /**
+     * Allocate blocks for an entry that is being written.
+     * @param count number of blocks
+     * @return block numbers
+     * @throws IOException if out of space
+     */
+    int[] allocateBlocks(int count) throws IOException {
+        prepareIndex();
+        
+        lock.writeLock().lock();
+        try {
+            return allocator.allocate(count);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Free blocks that were allocated with {@link #allocateBlocks(int)} but
+     * never made it into the index.
+     * @param blocks block numbers
+     */
+    void freeBlocks(int[] blocks) {
+        lock.writeLock().lock();
+        try {
+            deallocate(blocks);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Find a block that already holds the given contents, and share it.
+     * The candidate is compared outside of the lock, as it is kept from
+     * being freed by the reference that is taken on it.
+     * @param hash hash of the contents from {@link ContentIndex#hash(byte[], int, int)}
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param len number of bytes
+     * @return block number, or -1 if no block holds the contents
+     * @throws IOException on read error
+     */
+    int findDuplicate(long hash, byte[] b, int off, int len) throws IOException {
+        int block;
+        
+        lock.writeLock().lock();
+        try {
+            block = contents.find(hash);
+            if (block == -1) {
+                return -1;
+            }
+            allocator.share(block);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        byte[] existing = new byte[len];
+        getStorage().read(getOffset(block), existing, 0, len);
+        
+        for (int i = 0; i < len; i++) {
+            if (existing[i] != b[off + i]) {
+                freeBlocks(new int[] { block });
+                return -1;
+            }
+        }
+        
+        return block;
+    }
+    
+    /**
+     * Remember the contents of a block that was just written, so that
+     * later blocks with the same contents can share it.
+     * @param hash hash of the contents from {@link ContentIndex#hash(byte[], int, int)}
+     * @param block block number
+     */
+    void addContent(long hash, int block) {
+        lock.writeLock().lock();
+        try {
+            contents.add(hash, block);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Free blocks, or drop a reference to those that are shared, and forget
+     * the contents of those that became free. A clone stops borrowing the
+     * blocks that became free. The exclusive lock must be held.
+     * @param blocks block numbers
+     */
+    private void deallocate(int[] blocks) {
+        for (int block : blocks) {
+            if (allocator.free(block)) {
+                contents.remove(block);
+                if (backing != null) {
+                    backing.giveBack(block);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Make the given, already written, extents the new contents of the
+     * entry at the path. The entry's old blocks are freed. The extents
+     * belong to the VFS once this is called: they are freed if the entry
+     * cannot be written, and they are kept if the entry was changed but
+     * the change could not be made durable.
+     * @param path path of the entry
+     * @param extents extents holding the new contents
+     * @param storedLen number of bytes written to the extents
+     * @param len length of the new contents
+     * @param compressed true if the contents were deflated
+     * @throws IOException on write error, or if the entry cannot be written
+     */
+    void commit(Path path, ExtentList extents, long storedLen, long len, boolean compressed) throws IOException {
+        commit(path, extents, null, storedLen, len, compressed);
+    }
+    
+    /**
+     * Make the given bytes the new contents of the entry at the path,
+     * stored in the index record itself. The entry's old blocks are freed.
+     * @param path path of the entry
+     * @param data new contents
+     * @throws IOException on write error, or if the entry cannot be written
+     */
+    void commit(Path path, byte[] data) throws IOException {
+        commit(path, ExtentList.EMPTY, data, data.length, data.length, false);
+    }
+    
+    /**
+     * Make new contents, either in extents or inline, the contents of the
+     * entry at the path.
+     * @param path path of the entry
+     * @param extents extents holding the new contents
+     * @param data new contents stored inline, or null
+     * @param storedLen number of bytes written to the extents
+     * @param len length of the new contents
+     * @param compressed true if the contents were deflated
+     * @throws IOException on write error, or if the entry cannot be written
+     */
+    private void commit(Path path, ExtentList extents, byte[] data, long storedLen,
+            long len, boolean compressed) throws IOException {
+        long ticket;
+        boolean published = false;
+        
+        try {
+            prepareIndex();
+            
+            lock.writeLock().lock();
+            try {
+                checkWritable(path);
+                
+                int entry = getEntry(path);
+                
+                if (entry == IndexTree.NONE) {
+                    String[] parts = path.parts();
+                    entry = tree.addFile(getParentEntry(path), parts[parts.length - 1], System.currentTimeMillis());
+                    entryCount++;
+                } else {
+                    release(tree.getContent(entry), tree.getExtents(entry));
+                    tree.setLastModified(entry, System.currentTimeMillis());
+                }
+                
+                tree.setContents(entry, extents, data, len, storedLen, compressed);
+                published = true;
+                
+                writeIndexEntry(path.toString(), entry);
+                ticket = commitMetadata();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            // Once the entry points at the extents, they can't be freed
+            if (!published) {
+                freeBlocks(extents.toBlocks());
+            }
+        }
+        
+        awaitMetadata(ticket);
+    }
+    
+    /**
+     * Load up the existing VFS file system or initialize a new one. This is
+     * only called if the VFS is used. It must not be called while the
+     * shared lock is held, as it may take the exclusive lock.
+     * @throws IOException on I/O error
+     */
+    void prepare() throws IOException {
+        if (loaded) return;
+        
+        lock.writeLock().lock();
+        try {
+            if (loaded) return;
+            
+            if (journalFile != null) {
+                Storage log = pool != null ?
+                        new PooledStorage(pool, journalFile) : new FileStorage(journalFile);
+                journal = new Journal(log, storage);
+                journal.replay();
+                transaction = new Journal.Transaction();
+            }
+            
+            if (storage.length() == 0) {
+                initializeNew();
+                awaitMetadata(commitMetadata());
+            } else {
+                initializeFromFile();
+            }
+            
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Load up the VFS, and the whole index if it is being read lazily.
+     * This has to be called before anything is written. It must not be
+     * called while the shared lock is held.
+     * @throws IOException on I/O error
+     */
+    void prepareIndex() throws IOException {
+        prepare();
+        
+        if (indexLoaded) return;
+        
+        lock.writeLock().lock();
+        try {
+            if (indexLoaded) return;
+            loadIndex();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write data to a given path.
+     * @param path path
+     * @param out output stream
+     * @throws IOException on write exception
+     */
+    public void write(Path path, ByteArrayOutputStream out) throws IOException {
+        if (out.size() > maxFileSize) {
+            throw new IOException("File is too big");
+        }
+        
+        // New blocks are written and then swapped in, so that streams still
+        // reading the old contents are not disturbed
+        EntryOutputStream entryOut = getEntryOutputStream(path, maxFileSize);
+        entryOut.setExpectedSize(out.size());
+        try {
+            out.writeTo(entryOut);
+            entryOut.close();
+        } catch (IOException e) {
+            entryOut.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            // Does nothing once the blocks have been handed to the commit
+            entryOut.abort();
+            throw e;
+        }
+    }
+    
+    /**
+     * Create a directory. Nothing is done if the directory already exists.
+     * @param path path
+     * @throws IOException on write error, or if a file is in the way
+     */
+    public void mkdir(Path path) throws IOException {
+        prepareIndex();
+        
+        long ticket;
+        
+        lock.writeLock().lock();
+        try {
+            int parent = getParentEntry(path);
+            if (parent == IndexTree.NONE) {
+                throw new IOException("Parent directory doesn't exist");
+            }
+            
+            String[] parts = path.parts();
+            int entry = tree.getChild(parent, parts[parts.length - 1]);
+            
+            if (entry != IndexTree.NONE) {
+                if (tree.isDirectory(entry)) {
+                    return;
+                }
+                throw new IOException("Given path is a file, not a directory");
+            }
+            
+            if (entryCount >= maxEntryCount) {
+                throw new IOException("Too many entries");
+            }
+            
+            entry = tree.addDirectory(parent, parts[parts.length - 1], System.currentTimeMillis());
+            entryCount++;
+            
+            writeIndexEntry(path.toString(), entry);
+            ticket = commitMetadata();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        awaitMetadata(ticket);
+    }
+
+    /**
+     * List the names of the entries in a directory.
+     * @param path path of the directory, which may be the root
+     * @return names of the entries, in the order that they were created
+     * @throws IOException on read error, or if the path is not a directory
+     */
+    public List<String> list(Path path) throws IOException {
+        prepareIndex();
+        
+        lock.readLock().lock();
+        try {
+            int dir = getEntry(path);
+            
+            if (dir == IndexTree.NONE) {
+                throw new FileNotFoundException("Directory not found for path " + path.toString());
+            }
+            
+            if (!tree.isDirectory(dir)) {
+                throw new IOException("Given path is a file, not a directory");
+            }
+            
+            List<String> names = new ArrayList<String>();
+            for (int entry = tree.getFirstChild(dir); entry != IndexTree.NONE; entry = tree.getNextSibling(entry)) {
+                names.add(tree.getName(entry));
+            }
+            return names;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the file stored at the path.
+     * @param path path
+     * @return contents of the file
+     * @throws IOException on read error, or if the path is not a file
+     */
+    public byte[] read(Path path) throws IOException {
+        EntryInputStream in = null;
+        try {
+            in = openEntry(path);
+            byte[] buf = new byte[(int) in.getLength()];
+            new DataInputStream(in).readFully(buf);
+            return buf;
+        } finally {
+            close(in);
+        }
+    }
+    
+    /**
+     * Returns whether a file or directory exists at the path.
+     * @param path path
+     * @return true if it exists
+     * @throws IOException on read error
+     */
+    public boolean exists(Path path) throws IOException {
+        if (path.isRoot()) {
+            return true;
+        }
+        
+        prepare();
+        
+        lock.readLock().lock();
+        try {
+            return statEntry(path) != null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns whether the path is a directory.
+     * @param path path
+     * @return true if it is a directory
+     * @throws IOException on read error
+     */
+    public boolean isDirectory(Path path) throws IOException {
+        if (path.isRoot()) {
+            return true;
+        }
+        
+        prepare();
+        
+        lock.readLock().lock();
+        try {
+            IndexEntry entry = statEntry(path);
+            return entry != null && entry.isDirectory();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Get the size of the file at the path. Directories have a size of 0.
+     * @param path path
+     * @return size in bytes
+     * @throws IOException on read error, or if the path does not exist
+     */
+    public long getSize(Path path) throws IOException {
+        if (path.isRoot()) {
+            return 0;
+        }
+        
+        prepare();
+        
+        lock.readLock().lock();
+        try {
+            IndexEntry entry = statEntry(path);
+            if (entry == null) {
+                throw new FileNotFoundException("File not found for path " + path.toString());
+            }
+            return entry.getSize();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Get the time that the file or directory at the path was last
+     * modified. The root directory has a time of 0.
+     * @param path path
+     * @return time in milliseconds since the epoch
+     * @throws IOException on read error, or if the path does not exist
+     */
+    public long getLastModified(Path path) throws IOException {
+        if (path.isRoot()) {
+            return 0;
+        }
+        
+        prepare();
+        
+        lock.readLock().lock();
+        try {
+            IndexEntry entry = statEntry(path);
+            if (entry == null) {
+                throw new FileNotFoundException("File not found for path " + path.toString());
+            }
+            return entry.getLastModified();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Set the time that the file or directory at the path was last
+     * modified, such as to keep the time of a file that is copied in.
+     * @param path path
+     * @param lastModified time in milliseconds since the epoch
+     * @throws IOException on write error, or if the path does not exist
+     */
+    public void setLastModified(Path path, long lastModified) throws IOException {
+        if (path.isRoot()) {
+            throw new IOException("The root directory has no time of last modification");
+        }
+        
+        prepareIndex();
+        
+        long ticket;
+        
+        lock.writeLock().lock();
+        try {
+            int entry = getEntry(path);
+            if (entry == IndexTree.NONE) {
+                throw new FileNotFoundException("File not found for path " + path.toString());
+            }
+            
+            tree.setLastModified(entry, lastModified);
+            writeIndexEntry(path.toString(), entry);
+            ticket = commitMetadata();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        awaitMetadata(ticket);
+    }
+    
+    /**
+     * Look up an entry, without loading the whole index if it is being
+     * read lazily. The shared lock must be held.
+     * @param path path, which must not be the root
+     * @return copy of the entry, or null if the entry does not exist
+     * @throws IOException on read error
+     */
+    private IndexEntry statEntry(Path path) throws IOException {
+        if (!indexLoaded) {
+            return lookupEntry(path);
+        }
+        int entry = getEntry(path);
+        return entry != IndexTree.NONE ? tree.getEntry(entry) : null;
+    }
+    
+    /**
+     * Delete a file, or a directory and everything in it. The blocks of the
+     * files are not reused until streams still reading them are closed.
+     * @param path path
+     * @throws IOException on write error, or if the path does not exist
+     */
+    public void delete(Path path) throws IOException {
+        if (path.isRoot()) {
+            throw new IOException("The root directory cannot be deleted");
+        }
+        
+        prepareIndex();
+        
+        long ticket;
+        
+        lock.writeLock().lock();
+        try {
+            int entry = getEntry(path);
+            if (entry == IndexTree.NONE) {
+                throw new FileNotFoundException("File not found for path " + path.toString());
+            }
+            
+            releaseTree(entry);
+            entryCount -= tree.remove(entry);
+            
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeRemoval(new DataOutputStream(bytes), path.toString());
+            appendIndex(bytes);
+            ticket = commitMetadata();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        awaitMetadata(ticket);
+    }
+    
+    /**
+     * Release the blocks of every file under an entry that is about to be
+     * removed from the tree.
+     * @param entry entry
+     */
+    void releaseTree(int entry) {
+        if (tree.isDirectory(entry)) {
+            for (int child = tree.getFirstChild(entry); child != IndexTree.NONE; child = tree.getNextSibling(child)) {
+                releaseTree(child);
+            }
+        } else {
+            release(tree.getContent(entry), tree.getExtents(entry));
+        }
+    }
+    
+    /**
+     * Move a file, or a directory and everything in it, to a path that
+     * does not exist yet. No data is copied.
+     * @param from path to move
+     * @param to new path
+     * @throws IOException on write error, if the source does not exist or
+     *         if the destination cannot be written
+     */
+    public void move(Path from, Path to) throws IOException {
+        if (from.isRoot() || to.isRoot()) {
+            throw new IOException("The root directory cannot be moved");
+        }
+        
+        prepareIndex();
+        
+        long ticket;
+        
+        lock.writeLock().lock();
+        try {
+            int entry = getEntry(from);
+            if (entry == IndexTree.NONE) {
+                throw new FileNotFoundException("File not found for path " + from.toString());
+            }
+            
+            int parent = checkDestination(entry, to);
+            tree.move(entry, parent, to.parts()[to.parts().length - 1]);
+            
+            // The new entries are recorded before the old ones are removed
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeTree(out, to.toString(), entry);
+            writeRemoval(out, from.toString());
+            appendIndex(bytes);
+            ticket = commitMetadata();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        awaitMetadata(ticket);
+    }
+    
+    /**
+     * Copy a file, or a directory and everything in it, to a path that
+     * does not exist yet. A file may also be copied over another file. The
+     * copies share the blocks of the originals instead of copying them, and
+     * as files are always written to new blocks, changing either one leaves
+     * the other alone.
+     * @param from path to copy
+     * @param to path of the copy
+     * @throws IOException on write error, if the source does not exist or
+     *         if the destination cannot be written
+     */
+    public void copy(Path from, Path to) throws IOException {
+        if (from.isRoot() || to.isRoot()) {
+            throw new IOException("The root directory cannot be copied");
+        }
+        
+        prepareIndex();
+        
+        long ticket;
+        
+        lock.writeLock().lock();
+        try {
+            int entry = getEntry(from);
+            if (entry == IndexTree.NONE) {
+                throw new FileNotFoundException("File not found for path " + from.toString());
+            }
+            
+            int existing = getEntry(to);
+            int parent;
+            
+            if (existing != IndexTree.NONE && !tree.isDirectory(existing) && !tree.isDirectory(entry)) {
+                if (existing == entry) {
+                    return;
+                }
+                parent = tree.getParent(existing);
+            } else {
+                parent = checkDestination(entry, to);
+                existing = IndexTree.NONE;
+            }
+            
+            int count = countEntries(entry) - (existing != IndexTree.NONE ? 1 : 0);
+            if (entryCount + count > maxEntryCount) {
+                throw new IOException("Too many entries");
+            }
+            
+            if (existing != IndexTree.NONE) {
+                releaseTree(existing);
+                tree.remove(existing);
+            }
+            int copy = copyTree(tree, entry, parent, to.parts()[to.parts().length - 1],
+                    System.currentTimeMillis());
+            entryCount += count;
+            
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeTree(new DataOutputStream(bytes), to.toString(), copy);
+            appendIndex(bytes);
+            ticket = commitMetadata();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        awaitMetadata(ticket);
+    }
+    
+    /**
+     * Check that an entry can be moved or copied to the given path. The
+     * exclusive lock must be held.
+     * @param entry entry
+     * @param to destination path
+     * @return directory that the entry would go into
+     * @throws IOException if the destination cannot be written
+     */
+    private int checkDestination(int entry, Path to) throws IOException {
+        int parent = getParentEntry(to);
+        if (parent == IndexTree.NONE) {
+            throw new IOException("Parent directory doesn't exist");
+        }
+        
+        if (tree.getChild(parent, to.parts()[to.parts().length - 1]) != IndexTree.NONE) {
+            throw new IOException("Destination already exists");
+        }
+        
+        for (int dir = parent; dir != IndexTree.NONE; dir = tree.getParent(dir)) {
+            if (dir == entry) {
+                throw new IOException("A directory cannot be put inside itself");
+            }
+        }
+        
+        return parent;
+    }
+    
+    /**
+     * Copy an entry and everything under it into a directory of the tree,
+     * sharing the blocks of files. The exclusive lock must be held.
+     * @param from tree to copy from, which may be this image's own
+     * @param entry entry in that tree
+     * @param dir directory to put the copy in, which must not be under the
+     *        entry
+     * @param name name of the copy, which must not be in use in the directory
+     * @param now time to set as the time of last modification, or -1 to
+     *        keep the times of the originals
+     * @return copy
+     */
+    int copyTree(IndexTree from, int entry, int dir, String name, long now) {
+        long lastModified = now != -1 ? now : from.getLastModified(entry);
+        
+        if (from.isDirectory(entry)) {
+            int copy = tree.addDirectory(dir, name, lastModified);
+            for (int child = from.getFirstChild(entry); child != IndexTree.NONE; child = from.getNextSibling(child)) {
+                copyTree(from, child, copy, from.getName(child), now);
+            }
+            return copy;
+        }
+        
+        ExtentList extents = from.getExtents(entry);
+        for (int block : extents.toBlocks()) {
+            allocator.share(block);
+        }
+        
+        int copy = tree.addFile(dir, name, lastModified);
+        tree.setContents(copy, extents, from.getInlineData(entry), from.getSize(entry),
+                from.getStoredSize(entry), from.isCompressed(entry));
+        return copy;
+    }
+    
+    /**
+     * Take a snapshot of every file and directory in the image. The files
+     * of the snapshot share the blocks of the originals, and as files are
+     * always written to new blocks, the snapshot keeps the contents that
+     * they have now. Snapshots are kept in the index apart from the files,
+     * and can be made into images of their own with
+     * {@link #cloneSnapshot(String, File)}.
+     * @param name name of the snapshot
+     * @throws IOException on write error, or if the snapshot already exists
+     */
+    public void snapshot(String name) throws IOException {
+        snapshots.create(name);
+    }
+    
+    /**
+     * Get the names of the snapshots of the image.
+     * @return names, in the order that the snapshots were taken
+     * @throws IOException on read error
+     */
+    public List<String> getSnapshots() throws IOException {
+        return snapshots.list();
+    }
+    
+    /**
+     * Returns whether this image is a clone of another, which means that
+     * it can't be cloned itself.
+     * @return true if a clone
+     * @throws IOException on read error
+     */
+    public boolean isClone() throws IOException {
+        prepare();
+        return backing != null;
+    }
+    
+    /**
+     * Delete a snapshot, which frees the blocks that only it still used.
+     * Clones of the snapshot read those blocks from this image, so it has
+     * to be kept for as long as they exist.
+     * @param name name of the snapshot
+     * @throws IOException on write error, or if the snapshot does not exist
+     */
+    public void deleteSnapshot(String name) throws IOException {
+        snapshots.delete(name);
+    }
+    
+    /**
+     * Create a new image from a snapshot. The clone borrows the blocks of
+     * the snapshot from this image instead of copying them, so creating it
+     * only takes writing its index, and it takes up next to no space until
+     * its files are changed. Files of the clone are written to blocks of
+     * its own, and blocks that it frees are no longer borrowed.
+     * 
+     * <p>The clone refers to this image by name if both are in the same
+     * directory, or by its absolute path otherwise. This image and the
+     * snapshot have to be kept for as long as the clone exists. A clone
+     * cannot be cloned itself, but it can have snapshots.</p>
+     * @param name name of the snapshot
+     * @param file file of the new image, which must not exist yet
+     * @throws IOException on I/O error, or if the snapshot does not exist
+     */
+    public void cloneSnapshot(String name, File file) throws IOException {
+        snapshots.cloneSnapshot(name, file);
+    }
+    
+    /**
+     * Get the image that this image was cloned from.
+     * @return file of the image, or null if this image is not a clone
+     * @throws IOException on read error
+     */
+    File getParentImage() throws IOException {
+        prepare();
+        return parentName.length() > 0 ? resolveParent() : null;
+    }
+    
+    /**
+     * Create a new image next to this one, opened the same way, with room
+     * for one open file.
+     * @param file file of the new image
+     * @return new image
+     * @throws IOException on I/O error
+     */
+    SimpleVFS createSibling(File file) throws IOException {
+        return pool != null ?
+                new SimpleVFS(file, pool, maxFilesystemSize, maxFileSize, maxEntryCount, 1) :
+                new SimpleVFS(file, maxFilesystemSize, maxFileSize, maxEntryCount, 1);
+    }
+    
+    /**
+     * Delete the files of an image that is closed, such as one that could
+     * not be created.
+     */
+    void deleteFiles() {
+        baseFile.delete();
+        if (journalFile != null) {
+            journalFile.delete();
+        }
+    }
+    
+    /**
+     * Give a new image the block size and layout of another image, and
+     * create it.
+     * @param other other image
+     * @throws IOException on I/O error, or if the image is not new
+     */
+    void takeLayout(SimpleVFS other) throws IOException {
+        if (loaded) {
+            throw new IOException("Only a new image can be made into a clone");
+        }
+        
+        blockSize = other.blockSize;
+        mapBlocks = other.mapBlocks;
+        indexLoc = other.indexLoc;
+        prepare();
+    }
+    
+    /**
+     * Returns whether the image has no entries and is not a clone. The
+     * exclusive lock must be held.
+     * @return true if empty
+     */
+    boolean isEmpty() {
+        return entryCount == 0 && backing == null;
+    }
+    
+    /**
+     * Make this image a clone of another, whose blocks it reads where it
+     * has not written its own, and rewrite the index with the entries that
+     * were copied into the tree. The exclusive lock must be held.
+     * @param parentFile file of the other image
+     * @param borrowed blocks that are borrowed from the other image
+     * @throws IOException on write error
+     */
+    void borrowFrom(File parentFile, BitSet borrowed) throws IOException {
+        entryCount = countEntries(IndexTree.ROOT) - 1;
+        
+        File dir = baseFile.getAbsoluteFile().getParentFile();
+        if (dir != null && dir.equals(parentFile.getAbsoluteFile().getParentFile())) {
+            parentName = parentFile.getName();
+        } else {
+            parentName = parentFile.getAbsolutePath();
+        }
+        
+        int mapBytes = (allocator.getBlockCount() + 7) / 8;
+        borrowedExtents = ExtentList.of(allocator.allocate(getBlockCount(mapBytes)));
+        Storage parent = pool != null ? new PooledStorage(pool, parentFile) : new FileStorage(parentFile);
+        backing = new BackedStorage(storage, parent, borrowed, blockSize);
+        
+        byte[] map = backing.toByteArray(0, borrowedExtents.getBlockCount() * blockSize);
+        writeExtents(borrowedExtents, map, map.length);
+        backing.clearDirty();
+        
+        compactIndex();
+    }
+    
+    /**
+     * Open the file stored at the path for reading. The blocks of the file
+     * are not reused until the stream is closed, even if the file is
+     * overwritten or deleted in the meantime.
+     * @param path path
+     * @return input stream
+     * @throws IOException on read error, or if the path is not a file
+     */
+    EntryInputStream openEntry(Path path) throws IOException {
+        prepare();
+        
+        lock.readLock().lock();
+        try {
+            IndexEntry entry = statEntry(path);
+            
+            if (entry == null) {
+                throw new FileNotFoundException("File not found for path " + path.toString());
+            }
+            
+            if (entry.isDirectory()) {
+                throw new IOException("Given path is a directory, not a file");
+            }
+            
+            EntryInputStream in = getEntryInputStream(entry);
+            pin(entry.getContent());
+            in.setPinned(entry.getContent());
+            return in;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Keep the contents of a file from being freed until they are released
+     * with {@link #unpin(long)}. Either lock must be held, so that the
+     * contents cannot be replaced in the meantime.
+     * @param content content number of the contents
+     */
+    private void pin(long content) {
+        synchronized (pinned) {
+            Integer count = pinned.get(content);
+            pinned.put(content, count != null ? count + 1 : 1);
+        }
+    }
+    
+    /**
+     * Release the contents of a file that was opened with
+     * {@link #openEntry(Path)}. If the file has been replaced since, its
+     * old blocks are released once the last stream has let go of them,
+     * and this waits until they are free.
+     * 
+     * <p>Freeing the blocks takes the exclusive lock, which can't be got
+     * while the read lock is held, so this must never be called with the
+     * read lock held, such as from within a read.</p>
+     * @param content content number of the contents
+     * @throws IOException on write error
+     */
+    void unpin(long content) throws IOException {
+        if (lock.getReadHoldCount() > 0) {
+            // Would otherwise wait forever for the exclusive lock
+            throw new IllegalStateException("Can't unpin while holding the read lock");
+        }
+        
+        ExtentList extents;
+        synchronized (pinned) {
+            Integer count = pinned.get(content);
+            if (count == null) {
+                return;
+            } else if (count > 1) {
+                pinned.put(content, count - 1);
+                return;
+            }
+            
+            pinned.remove(content);
+            extents = orphaned.remove(content);
+            if (extents == null) {
+                return;
+            }
+        }
+        
+        // No longer in the index, so nobody else can pin it again, but the
+        // record that stopped referring to it may not be durable yet
+        long ticket;
+        lock.writeLock().lock();
+        try {
+            release(extents);
+            writeFreeSpaceMap();
+            ticket = commitMetadata();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        awaitMetadata(ticket);
+    }
+    
+    /**
+     * Get an output stream for a file. The file's contents are written to
+     * new blocks as they arrive, and replace the old contents of the file
+     * when the stream is closed.
+     * @param path path to write to
+     * @return output stream
+     * @throws IOException on I/O exception
+     */
+    public OutputStream getOutputStream(String path) throws IOException {
+        return new VirtualFileOutputStream(this, Path.parse(path), maxFileSize);
+    }
+    
+    /**
+     * Get an output stream for a file, which either replaces the file's
+     * contents or adds to them when the stream is closed.
+     * @param path path to write to
+     * @param append true to start with the current contents of the file
+     * @return output stream
+     * @throws IOException on I/O exception
+     */
+    public OutputStream getOutputStream(Path path, boolean append) throws IOException {
+        return new VirtualFileOutputStream(this, path, maxFileSize, append);
+    }
+    
+    public InputStream getInputStream(String path) throws IOException {
+        return new VirtualFileInputStream(this, Path.parse(path));
+    }
+    
+    public InputStream getInputStream(Path path) throws IOException {
+        return new VirtualFileInputStream(this, path);
+    }
+    
+    /**
+     * Read the file stored at the path on the I/O executor. Reads and
+     * writes of the same path happen in the order that they were requested,
+     * so a read sees every write requested before it.
+     * @param path path
+     * @return future for the contents of the file
+     * @see #read(Path)
+     */
+    public Future<byte[]> readAsync(final Path path) {
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return read(path);
+            }
+        });
+        getIOExecutor().execute(path.toString(), task);
+        return task;
+    }
+    
+    /**
+     * Write the remaining contents of the buffer to the path on the I/O
+     * executor, in order with other reads and writes of the same path. The
+     * contents are copied before this returns, so the buffer can be reused
+     * right away.
+     * @param path path
+     * @param data data to write
+     * @return future that completes once the file has been replaced
+     * @throws IOException thrown if the data is too big
+     * @see #write(Path, ByteArrayOutputStream)
+     */
+    public Future<Void> writeAsync(final Path path, ByteBuffer data) throws IOException {
+        if (data.remaining() > maxFileSize) {
+            throw new IOException("File is too big");
+        }
+        
+        final byte[] buf = new byte[data.remaining()];
+        data.duplicate().get(buf);
+        
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                EntryOutputStream out = getEntryOutputStream(path, maxFileSize);
+                out.setExpectedSize(buf.length);
+                try {
+                    out.write(buf);
+                    out.close();
+                } catch (IOException e) {
+                    out.abort();
+                    throw e;
+                } catch (RuntimeException e) {
+                    out.abort();
+                    throw e;
+                }
+                return null;
+            }
+        });
+        getIOExecutor().execute(path.toString(), task);
+        return task;
+    }
+    
+    private synchronized OrderedExecutor getIOExecutor() {
+        if (ioExecutor == null) {
+            ioExecutor = new OrderedExecutor(getSharedExecutor());
+        }
+        return ioExecutor;
+    }
+    
+    private static synchronized ExecutorService getSharedExecutor() {
+        if (sharedExecutor == null) {
+            sharedExecutor = Executors.newFixedThreadPool(IO_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SimpleVFS I/O");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sharedExecutor;
+    }
+    
+    /**
+     * Get every file in the index.
+     * @return entries of the files, to pass to {@link #relocate(int)}
+     * @throws IOException on I/O error
+     */
+    int[] getFiles() throws IOException {
+        prepareIndex();
+        
+        lock.readLock().lock();
+        try {
+            int[] files = new int[entryCount];
+            return Arrays.copyOf(files, collectFiles(IndexTree.ROOT, files, 0));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Collect the files under a directory.
+     * @param dir directory
+     * @param files array to put the files into
+     * @param count number of files in the array so far
+     * @return new number of files in the array
+     */
+    private int collectFiles(int dir, int[] files, int count) {
+        for (int entry = tree.getFirstChild(dir); entry != IndexTree.NONE; entry = tree.getNextSibling(entry)) {
+            if (tree.isDirectory(entry)) {
+                count = collectFiles(entry, files, count);
+            } else {
+                files[count++] = entry;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Move a file into the first contiguous run of free blocks that fits
+     * it, if it is fragmented or if the run comes before the file. The data
+     * is copied outside of the lock, and the file is only switched over if
+     * it has not been written to in the meantime. Files with shared blocks
+     * are left alone, as moving them would undo the sharing.
+     * @param entry entry of the file, which may have been removed since
+     * @return number of blocks moved, which is 0 if the file was not moved
+     * @throws IOException on I/O error
+     */
+    int relocate(int entry) throws IOException {
+        prepareIndex();
+        
+        long content;
+        ExtentList extents;
+        long storedSize;
+        int[] target;
+        
+        lock.writeLock().lock();
+        try {
+            if (!tree.exists(entry) || tree.isDirectory(entry)) {
+                return 0;
+            }
+            
+            content = tree.getContent(entry);
+            extents = tree.getExtents(entry);
+            storedSize = tree.getStoredSize(entry);
+            int count = extents.getBlockCount();
+            
+            if (count == 0) {
+                return 0;
+            }
+            
+            for (int block : extents.toBlocks()) {
+                if (allocator.isShared(block)) {
+                    return 0;
+                }
+            }
+            
+            int before = extents.size() > 1 ? Integer.MAX_VALUE : extents.getStart(0);
+            target = allocator.allocateRun(count, before);
+            if (target == null) {
+                return 0;
+            }
+            
+            pin(content);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        boolean moved = false;
+        long ticket = 0;
+        
+        try {
+            // Copy an extent at a time, but no more than 64 blocks at once
+            byte[] buf = new byte[Math.min(extents.getBlockCount(), 64) * blockSize];
+            long done = 0;
+            for (int i = 0; i < extents.size() && done < storedSize; i++) {
+                for (int j = 0; j < extents.getLength(i) && done < storedSize; j += 64) {
+                    int blocks = Math.min(64, extents.getLength(i) - j);
+                    int len = (int) Math.min((long) blocks * blockSize, storedSize - done);
+                    int index = extents.getOffset(i) + j;
+                    getStorage().read(getOffset(extents.getStart(i) + j), buf, 0, len);
+                    writeData(getOffset(target[index]), buf, 0, len);
+                    done += len;
+                }
+            }
+            
+            lock.writeLock().lock();
+            try {
+                // The entry number may have been reused, but never the content number
+                if (tree.exists(entry) && tree.getContent(entry) == content) {
+                    tree.setExtents(entry, ExtentList.of(target));
+                    release(content, extents);
+                    writeIndexEntry(tree.getPath(entry), entry);
+                    ticket = commitMetadata();
+                    moved = true;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            if (!moved) {
+                freeBlocks(target);
+            }
+            unpin(content);
+        }
+        
+        awaitMetadata(ticket);
+        return moved ? target.length : 0;
+    }
+    
+    /**
+     * Rewrite the index into newly allocated blocks, which are taken from
+     * the start of the image like those of any other write. The old blocks
+     * are only released once the index location block points at the new
+     * ones, so that they can't be reused while they are still the index.
+     * @throws IOException on I/O error
+     */
+    void relocateIndex() throws IOException {
+        prepareIndex();
+        
+        long ticket;
+        
+        lock.writeLock().lock();
+        try {
+            compactIndex(true);
+            ticket = commitMetadata();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        awaitMetadata(ticket);
+    }
+    
+    /**
+     * Check whether the blocks of the index reach the last used block of
+     * the image, so that relocating the index would let the image be
+     * truncated further.
+     * @return true if the index is at the end of the image
+     * @throws IOException on I/O error
+     */
+    boolean isIndexAtEnd() throws IOException {
+        prepareIndex();
+        
+        lock.readLock().lock();
+        try {
+            int last = Math.max(indexLoc, Math.max(getLastBlock(indexExtents), getLastBlock(tableExtents)));
+            return last >= allocator.getLastUsed();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Get the highest block of some extents.
+     * @param extents extents
+     * @return block number, or -1 if there are none
+     */
+    private static int getLastBlock(ExtentList extents) {
+        int last = -1;
+        for (int i = 0; i < extents.size(); i++) {
+            last = Math.max(last, extents.getStart(i) + extents.getLength(i) - 1);
+        }
+        return last;
+    }
+    
+    /**
+     * Truncate the image after the last used block.
+     * @throws IOException on I/O error
+     */
+    void trim() throws IOException {
+        prepareIndex();
+        
+        lock.writeLock().lock();
+        try {
+            long length = HEADER_SIZE + (long) (allocator.getLastUsed() + 1) * blockSize;
+            storage.truncate(length);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Measure how fragmented the files are.
+     * @return fragmentation
+     * @throws IOException on I/O error
+     */
+    public Fragmentation getFragmentation() throws IOException {
+        prepareIndex();
+        
+        lock.readLock().lock();
+        try {
+            int[] files = new int[entryCount];
+            int count = collectFiles(IndexTree.ROOT, files, 0);
+            
+            int fragmented = 0;
+            int extents = 0;
+            for (int i = 0; i < count; i++) {
+                int size = tree.getExtentCount(files[i]);
+                if (size > 1) {
+                    fragmented++;
+                }
+                extents += size;
+            }
+            
+            return new Fragmentation(count, fragmented, extents,
+                    allocator.getBlockCount() - allocator.getFreeCount(),
+                    allocator.getLastUsed());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    public void allocatePointer() throws IOException {
+        if (!allocatedPointers.tryAcquire()) {
+            throw new IOException("Out of file pointers");
+        }
+        
+        if (!totalPointers.tryAcquire()) {
+            throw new IOException("Out of global file pointers");
+        }
+    }
+
+    public void releasePointer() {
+        allocatedPointers.release();
+        totalPointers.release();
+    }
+    
+    /**
+     * Checkpoint the journal, if there is one, and flush and close the
+     * backing storage.
+     * @throws IOException on I/O error
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+            storage.flush();
+        } finally {
+            try {
+                getStorage().close();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+    
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Get the storage that file contents are read from, which for a clone
+     * reads borrowed blocks from the image that it was cloned from.
+     * @return storage
+     */
+    Storage getStorage() {
+        return backing != null ? backing : storage;
+    }
+
+    /**
+     * Get the lock that guards the index and the free space map.
+     * @return lock
+     */
+    ReentrantReadWriteLock getLock() {
+        return lock;
+    }
+
+    /**
+     * Get the tree of entries, which may only be used while the lock is held.
+     * @return tree
+     */
+    IndexTree getTree() {
+        return tree;
+    }
+
+    /**
+     * Get the allocator of blocks, which may only be used while the
+     * exclusive lock is held.
+     * @return allocator
+     */
+    BlockAllocator getAllocator() {
+        return allocator;
     }
 
 }
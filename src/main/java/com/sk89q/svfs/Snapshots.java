@@ -0,0 +1,252 @@
+package com.sk89q.svfs;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Takes, lists and deletes the snapshots of an image, and makes new images
+ * from them. A snapshot is a copy of the root that is kept in its own tree
+ * of the index, and whose files share the blocks of the originals. A clone
+ * is a new image that starts out as a copy of a snapshot, and borrows the
+ * blocks of the snapshot from the image it was made from.
+ *
+ * @author sk89q
+ */
+class Snapshots {
+
+    private final SimpleVFS vfs;
+
+    /**
+     * Create an instance for an image.
+     * @param vfs image
+     */
+    Snapshots(SimpleVFS vfs) {
+        this.vfs = vfs;
+    }
+
+    /**
+     * Check that a name can be used for a snapshot.
+     * @param name name
+     * @throws IOException if it cannot
+     */
+    private static void checkName(String name) throws IOException {
+        if (name.length() == 0 || name.indexOf('/') != -1 || name.indexOf('\0') != -1) {
+            throw new IOException("Invalid snapshot name");
+        }
+    }
+
+    /**
+     * Take a snapshot.
+     * @param name name of the snapshot
+     * @throws IOException on write error, or if the snapshot already exists
+     * @see SimpleVFS#snapshot(String)
+     */
+    void create(String name) throws IOException {
+        checkName(name);
+        vfs.prepareIndex();
+
+        ReentrantReadWriteLock lock = vfs.getLock();
+        IndexTree tree = vfs.getTree();
+        long ticket;
+
+        lock.writeLock().lock();
+        try {
+            if (tree.getChild(IndexTree.SNAPSHOTS, name) != IndexTree.NONE) {
+                throw new IOException("Snapshot already exists");
+            }
+
+            int snapshot = vfs.copyTree(tree, IndexTree.ROOT, IndexTree.SNAPSHOTS, name, -1);
+            tree.setLastModified(snapshot, System.currentTimeMillis());
+
+            vfs.appendTree(SimpleVFS.SNAPSHOT_PREFIX + name, snapshot);
+            ticket = vfs.commitMetadata();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        vfs.awaitMetadata(ticket);
+    }
+
+    /**
+     * Get the names of the snapshots.
+     * @return names, in the order that the snapshots were taken
+     * @throws IOException on read error
+     */
+    List<String> list() throws IOException {
+        vfs.prepareIndex();
+
+        ReentrantReadWriteLock lock = vfs.getLock();
+        IndexTree tree = vfs.getTree();
+
+        lock.readLock().lock();
+        try {
+            List<String> names = new ArrayList<String>();
+            for (int snapshot = tree.getFirstChild(IndexTree.SNAPSHOTS); snapshot != IndexTree.NONE;
+                    snapshot = tree.getNextSibling(snapshot)) {
+                names.add(tree.getName(snapshot));
+            }
+            return names;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Delete a snapshot.
+     * @param name name of the snapshot
+     * @throws IOException on write error, or if the snapshot does not exist
+     * @see SimpleVFS#deleteSnapshot(String)
+     */
+    void delete(String name) throws IOException {
+        vfs.prepareIndex();
+
+        ReentrantReadWriteLock lock = vfs.getLock();
+        IndexTree tree = vfs.getTree();
+        long ticket;
+
+        lock.writeLock().lock();
+        try {
+            int snapshot = tree.getChild(IndexTree.SNAPSHOTS, name);
+            if (snapshot == IndexTree.NONE) {
+                throw new FileNotFoundException("Snapshot " + name + " not found");
+            }
+
+            vfs.releaseTree(snapshot);
+            tree.remove(snapshot);
+
+            vfs.appendRemoval(SimpleVFS.SNAPSHOT_PREFIX + name);
+            ticket = vfs.commitMetadata();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        vfs.awaitMetadata(ticket);
+    }
+
+    /**
+     * Create a new image from a snapshot.
+     * @param name name of the snapshot
+     * @param file file of the new image, which must not exist yet
+     * @throws IOException on I/O error, or if the snapshot does not exist
+     * @see SimpleVFS#cloneSnapshot(String, File)
+     */
+    void cloneSnapshot(String name, File file) throws IOException {
+        vfs.prepareIndex();
+
+        if (vfs.isClone()) {
+            throw new IOException("A clone can't be cloned again");
+        }
+
+        if (file.exists()) {
+            throw new IOException("Image " + file + " already exists");
+        }
+
+        // The clone reads the blocks of the snapshot straight from the
+        // image file, so none of them may be left behind in a cache
+        vfs.getStorage().flush();
+
+        SimpleVFS clone = vfs.createSibling(file);
+        ReentrantReadWriteLock lock = vfs.getLock();
+        boolean created = false;
+
+        try {
+            lock.readLock().lock();
+            try {
+                int snapshot = vfs.getTree().getChild(IndexTree.SNAPSHOTS, name);
+                if (snapshot == IndexTree.NONE) {
+                    throw new FileNotFoundException("Snapshot " + name + " not found");
+                }
+                initializeClone(clone, snapshot);
+                created = true;
+            } finally {
+                lock.readLock().unlock();
+            }
+        } finally {
+            clone.close();
+            if (!created) {
+                clone.deleteFiles();
+            }
+        }
+    }
+
+    /**
+     * Fill a new image with a copy of a snapshot of this image, whose
+     * blocks are borrowed rather than copied. The new image takes the
+     * block size and layout of this one, so that none of its own metadata
+     * ends up in a borrowed block.
+     * @param clone new image
+     * @param snapshot root of the snapshot
+     * @throws IOException on I/O error, or if the image is not new
+     */
+    private void initializeClone(SimpleVFS clone, int snapshot) throws IOException {
+        IndexTree from = vfs.getTree();
+        clone.takeLayout(vfs);
+
+        ReentrantReadWriteLock lock = clone.getLock();
+        long ticket;
+
+        lock.writeLock().lock();
+        try {
+            if (!clone.isEmpty()) {
+                throw new IOException("Only a new image can be made into a clone");
+            }
+
+            if (vfs.countEntries(snapshot) - 1 > clone.getMaxEntryCount()) {
+                throw new IOException("Too many entries");
+            }
+
+            // Every borrowed block is used once here and shared by every
+            // copy, and the first use is dropped again once all are copied
+            BlockAllocator allocator = clone.getAllocator();
+            BitSet borrowed = new BitSet();
+            borrowBlocks(allocator, from, snapshot, borrowed);
+            for (int child = from.getFirstChild(snapshot); child != IndexTree.NONE; child = from.getNextSibling(child)) {
+                clone.copyTree(from, child, IndexTree.ROOT, from.getName(child), -1);
+            }
+            for (int block = borrowed.nextSetBit(0); block != -1; block = borrowed.nextSetBit(block + 1)) {
+                allocator.free(block);
+            }
+
+            clone.borrowFrom(vfs.getBaseFile(), borrowed);
+            ticket = clone.commitMetadata();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        clone.awaitMetadata(ticket);
+    }
+
+    /**
+     * Mark the blocks of every file under a directory of this image as used
+     * and borrowed by a clone, once for each block.
+     * @param allocator allocator of the clone
+     * @param from tree of this image
+     * @param dir directory
+     * @param borrowed blocks borrowed so far
+     * @throws IOException if a block is already used by the clone
+     */
+    private static void borrowBlocks(BlockAllocator allocator, IndexTree from, int dir, BitSet borrowed) throws IOException {
+        for (int entry = from.getFirstChild(dir); entry != IndexTree.NONE; entry = from.getNextSibling(entry)) {
+            if (from.isDirectory(entry)) {
+                borrowBlocks(allocator, from, entry, borrowed);
+            } else {
+                for (int block : from.getExtents(entry).toBlocks()) {
+                    if (borrowed.get(block)) {
+                        continue;
+                    }
+                    if (allocator.isUsed(block)) {
+                        throw new IOException("Block " + block + " can't be borrowed");
+                    }
+                    borrowed.set(block);
+                    allocator.markUsed(block);
+                }
+            }
+        }
+    }
+
+}
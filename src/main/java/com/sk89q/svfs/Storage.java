@@ -0,0 +1,58 @@
+package com.sk89q.svfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Random access backing storage for a {@link SimpleVFS} image. All reads and
+ * writes are positional, so implementations do not have a shared seek
+ * pointer that callers have to coordinate.
+ * 
+ * @author sk89q
+ */
+public interface Storage extends Closeable {
+    
+    /**
+     * Read exactly the given number of bytes at the given position.
+     * @param position offset in the storage
+     * @param buf buffer to read into
+     * @param off offset in the buffer
+     * @param len number of bytes to read
+     * @throws java.io.EOFException if the storage ends before all bytes were read
+     * @throws IOException on I/O error
+     */
+    void read(long position, byte[] buf, int off, int len) throws IOException;
+    
+    /**
+     * Write the given bytes at the given position, growing the storage
+     * if necessary.
+     * @param position offset in the storage
+     * @param buf buffer to write from
+     * @param off offset in the buffer
+     * @param len number of bytes to write
+     * @throws IOException on I/O error or if the storage cannot grow
+     */
+    void write(long position, byte[] buf, int off, int len) throws IOException;
+    
+    /**
+     * Get the current length of the storage.
+     * @return length in bytes
+     * @throws IOException on I/O error
+     */
+    long length() throws IOException;
+    
+    /**
+     * Cut the storage off at the given length, if it is longer. Storages
+     * that cannot shrink safely may keep their length.
+     * @param length length in bytes
+     * @throws IOException on I/O error
+     */
+    void truncate(long length) throws IOException;
+    
+    /**
+     * Force all written data to the underlying device.
+     * @throws IOException on I/O error
+     */
+    void flush() throws IOException;
+
+}
@@ -1,28 +1,110 @@
 package com.sk89q.svfs;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 public class VirtualFileInputStream extends InputStream {
     
+    private static final int BUFFER_SIZE = 512;
+    
     private final SimpleVFS vfs;
-    private final ByteArrayInputStream in;
+    private final EntryInputStream in;
+    private final byte[] buf;
+    private int bufPos = 0;
+    private int bufLen = 0;
+    private boolean closed = false;
     
     public VirtualFileInputStream(SimpleVFS vfs, Path path) throws IOException {
         vfs.allocatePointer();
         this.vfs = vfs;
-        byte[] buf = vfs.read(path);
-        in = new ByteArrayInputStream(buf);
+        try {
+            in = vfs.openEntry(path);
+        } catch (IOException e) {
+            vfs.releasePointer();
+            throw e;
+        }
+        buf = new byte[(int) Math.min(BUFFER_SIZE, in.getLength())];
+    }
+    
+    /**
+     * Refill the buffer from the entry.
+     * @return false if the end of the entry has been reached
+     * @throws IOException on read error
+     */
+    private boolean fill() throws IOException {
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) {
+            return false;
+        }
+        bufPos = 0;
+        bufLen = n;
+        return true;
     }
 
     @Override
     public int read() throws IOException {
-        return in.read();
+        if (bufPos == bufLen && !fill()) {
+            return -1;
+        }
+        return buf[bufPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        
+        if (len == 0) {
+            return 0;
+        }
+        
+        if (bufPos < bufLen) {
+            int n = Math.min(len, bufLen - bufPos);
+            System.arraycopy(buf, bufPos, b, off, n);
+            bufPos += n;
+            return n;
+        }
+        
+        // Large reads don't need to go through the buffer
+        if (len >= buf.length) {
+            return in.read(b, off, len);
+        }
+        
+        if (!fill()) {
+            return -1;
+        }
+        
+        return read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        
+        int buffered = (int) Math.min(n, bufLen - bufPos);
+        bufPos += buffered;
+        
+        // Whole blocks are jumped over without being read
+        return buffered + in.skip(n - buffered);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, (long) (bufLen - bufPos) + in.available());
     }
 
     @Override
     public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        bufPos = 0;
+        bufLen = 0; // So that reads go on to the closed entry and fail
+        
         try {
             in.close();
         } finally {
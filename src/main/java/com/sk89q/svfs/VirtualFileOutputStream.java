@@ -1,35 +1,78 @@
 package com.sk89q.svfs;
 
-import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 
 public class VirtualFileOutputStream extends OutputStream {
     
     private final SimpleVFS vfs;
-    private final Path path;
-    private final int maxFileSize;
-    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final EntryOutputStream out;
     
     public VirtualFileOutputStream(SimpleVFS vfs, Path path, int maxFileSize) throws IOException {
+        this(vfs, path, maxFileSize, false);
+    }
+    
+    public VirtualFileOutputStream(SimpleVFS vfs, Path path, int maxFileSize, boolean append) throws IOException {
         vfs.allocatePointer();
         this.vfs = vfs;
-        this.path = path;
-        this.maxFileSize = maxFileSize;
+        try {
+            this.out = vfs.getEntryOutputStream(path, maxFileSize);
+        } catch (IOException e) {
+            vfs.releasePointer();
+            throw e;
+        }
+        
+        if (append) {
+            try {
+                copyExisting(path);
+            } catch (IOException e) {
+                out.abort();
+                vfs.releasePointer();
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * Start the new contents with the current contents of the file, if
+     * there is one.
+     * @param path path
+     * @throws IOException on I/O error
+     */
+    private void copyExisting(Path path) throws IOException {
+        EntryInputStream in;
+        try {
+            in = vfs.openEntry(path);
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        
+        try {
+            byte[] buf = new byte[vfs.getBlockSize()];
+            int len;
+            while ((len = in.read(buf, 0, buf.length)) > 0) {
+                out.write(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
     }
 
     @Override
     public void write(int b) throws IOException {
-        if (out.size() > maxFileSize) {
-            throw new IOException("File too big, can't write more bytes");
-        }
         out.write(b);
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
     @Override
     public void close() throws IOException {
         try {
-            vfs.write(path, out);
+            out.close();
         } finally {
             vfs.releasePointer();
         }
@@ -0,0 +1,302 @@
+package com.sk89q.svfs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds any number of named {@link SimpleVFS} volumes, each in its own
+ * image in a directory, while keeping at most a fixed number of files
+ * open between all of them. The volumes can also share one
+ * {@link BlockCache}, so that the blocks that are read most, such as
+ * those of the index, stay in memory whichever volume they belong to.
+ * 
+ * <p>The container remembers which volume each clone was made from, so
+ * that the snapshot that a clone borrows its blocks from is not deleted
+ * while the clone still exists.</p>
+ * 
+ * @author sk89q
+ */
+public class VolumeContainer implements Closeable {
+    
+    private final File dir;
+    private final FileChannelPool pool;
+    private final long maxFilesystemSize;
+    private final int maxFileSize;
+    private final int maxEntryCount;
+    private final int maxFilePointers;
+    private final Map<String, SimpleVFS> volumes = new HashMap<String, SimpleVFS>();
+    private final Set<String> closing = new HashSet<String>();
+    private final Set<String> cloning = new HashSet<String>();
+    private final Map<String, String> sources = new HashMap<String, String>();
+    private BlockCache cache;
+    
+    /**
+     * Create a new container.
+     * @param dir directory to keep the images in
+     * @param maxOpen maximum number of files open at once, counting journals
+     * @param maxFilesystemSize maximum size of each image (in bytes)
+     * @param maxFileSize maximum size of individual file entries (in bytes)
+     * @param maxEntryCount maximum size of each directory index
+     * @param maxFilePointers maximum number of "open" virtual file pointers per volume
+     */
+    public VolumeContainer(File dir, int maxOpen, long maxFilesystemSize,
+            int maxFileSize, int maxEntryCount, int maxFilePointers) {
+        this.dir = dir;
+        this.pool = new FileChannelPool(maxOpen);
+        this.maxFilesystemSize = maxFilesystemSize;
+        this.maxFileSize = maxFileSize;
+        this.maxEntryCount = maxEntryCount;
+        this.maxFilePointers = maxFilePointers;
+    }
+    
+    /**
+     * Get the pool that the volumes' files are opened through.
+     * @return pool
+     */
+    public FileChannelPool getPool() {
+        return pool;
+    }
+    
+    /**
+     * Set the cache that the images of volumes opened from now on are read
+     * and written through. Volumes that are already open keep reading
+     * their images as they did.
+     * @param cache cache, which may be shared with other containers, or
+     *        null to read and write the images directly
+     */
+    public synchronized void setBlockCache(BlockCache cache) {
+        this.cache = cache;
+    }
+    
+    /**
+     * Get the cache that the images of the volumes are read and written
+     * through.
+     * @return cache, or null if there is none
+     */
+    public synchronized BlockCache getBlockCache() {
+        return cache;
+    }
+    
+    /**
+     * Get a volume, creating its image when it is first used.
+     * @param name name of the volume, such as a computer ID
+     * @return volume
+     * @throws IOException thrown if the name is not valid
+     */
+    public synchronized SimpleVFS getVolume(String name) throws IOException {
+        // Opening the image again before it has been closed would read it
+        // while it is still being written, and so would opening a clone
+        // before it has been created
+        while (closing.contains(name) || cloning.contains(name)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the volume to close");
+            }
+        }
+        
+        SimpleVFS vfs = volumes.get(name);
+        if (vfs == null) {
+            File file = getImageFile(name);
+            dir.mkdirs();
+            if (cache != null) {
+                vfs = new SimpleVFS(file, pool, cache,
+                        maxFilesystemSize, maxFileSize, maxEntryCount, maxFilePointers);
+            } else {
+                vfs = new SimpleVFS(file, pool,
+                        maxFilesystemSize, maxFileSize, maxEntryCount, maxFilePointers);
+            }
+            volumes.put(name, vfs);
+        }
+        return vfs;
+    }
+    
+    /**
+     * Create a new volume as a clone of another. A snapshot of the source
+     * volume, named after the new volume, is taken, and the new volume
+     * borrows the blocks of the snapshot instead of copying them, so it is
+     * created quickly and takes up next to no space of its own. The snapshot
+     * can't be deleted through {@link #deleteSnapshot(String, String)} for
+     * as long as the new volume exists, and is deleted again if the new
+     * volume can't be created. Other volumes can be got
+     * and closed while the new volume is created.
+     * @param source name of the volume to clone, which must not be a clone
+     * @param name name of the new volume
+     * @return new volume
+     * @throws IOException on I/O error, if a name is not valid, if the source
+     *         volume is a clone or if the new volume already exists
+     */
+    public SimpleVFS cloneVolume(String source, String name) throws IOException {
+        File file = getImageFile(name);
+        SimpleVFS vfs;
+        boolean cloned = false;
+        
+        synchronized (this) {
+            if (volumes.containsKey(name) || closing.contains(name)
+                    || cloning.contains(name) || file.exists()) {
+                throw new IOException("Volume " + name + " already exists");
+            }
+            vfs = getVolume(source);
+            cloning.add(name);
+            sources.put(name, source);
+        }
+        
+        try {
+            if (vfs.isClone()) {
+                throw new IOException("Volume " + source + " is a clone, which can't be cloned");
+            }
+            
+            vfs.snapshot(name);
+            try {
+                vfs.cloneSnapshot(name, file);
+                cloned = true;
+            } finally {
+                // The snapshot would otherwise keep its blocks for good
+                if (!cloned) {
+                    vfs.deleteSnapshot(name);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                cloning.remove(name);
+                if (!cloned) {
+                    sources.remove(name);
+                }
+                notifyAll();
+            }
+        }
+        
+        return getVolume(name);
+    }
+    
+    /**
+     * Delete a snapshot of a volume. A clone of the volume borrows the
+     * blocks of the snapshot that is named after it, so that snapshot is
+     * refused for as long as the image of the clone exists.
+     * @param volume name of the volume
+     * @param snapshot name of the snapshot
+     * @throws IOException on I/O error, if the snapshot does not exist or
+     *         if a clone was made from it
+     */
+    public void deleteSnapshot(String volume, String snapshot) throws IOException {
+        SimpleVFS vfs = getVolume(volume);
+        if (isCloneOf(snapshot, volume)) {
+            throw new IOException("Snapshot " + snapshot + " of volume " + volume + " has a clone");
+        }
+        vfs.deleteSnapshot(snapshot);
+    }
+    
+    /**
+     * Check whether a volume is a clone of another. Clones made before the
+     * container was created are found by opening their image.
+     * @param name name of the volume that may be a clone
+     * @param source name of the volume that it may be cloned from
+     * @return true if the image of the clone exists
+     * @throws IOException on read error
+     */
+    private boolean isCloneOf(String name, String source) throws IOException {
+        if (!isValidName(name)) {
+            return false;
+        }
+        
+        synchronized (this) {
+            if (cloning.contains(name)) {
+                return source.equals(sources.get(name));
+            }
+            if (!getImageFile(name).exists()) {
+                sources.remove(name);
+                return false;
+            }
+            if (sources.containsKey(name)) {
+                return source.equals(sources.get(name));
+            }
+        }
+        
+        File parent = getVolume(name).getParentImage();
+        if (parent == null || !parent.getAbsoluteFile().equals(getImageFile(source).getAbsoluteFile())) {
+            return false;
+        }
+        
+        synchronized (this) {
+            sources.put(name, source);
+        }
+        return true;
+    }
+    
+    /**
+     * Returns whether a name can be used for a volume.
+     * @param name name
+     * @return true if valid
+     */
+    private static boolean isValidName(String name) {
+        return name.matches("^[A-Za-z0-9_\\-]+$");
+    }
+    
+    /**
+     * Get the image file of a volume, which may not exist yet.
+     * @param name name of the volume
+     * @return file
+     * @throws IOException thrown if the name is not valid
+     */
+    public File getImageFile(String name) throws IOException {
+        if (!isValidName(name)) {
+            throw new IOException("Invalid volume name");
+        }
+        return new File(dir, name + ".img");
+    }
+    
+    /**
+     * Close a volume. Getting it again opens it again. Other volumes can be
+     * got and closed while it closes, as closing forces the image to disk.
+     * @param name name of the volume
+     * @throws IOException on I/O error
+     */
+    public void closeVolume(String name) throws IOException {
+        SimpleVFS vfs;
+        synchronized (this) {
+            vfs = volumes.remove(name);
+            if (vfs == null) {
+                return;
+            }
+            closing.add(name);
+        }
+        
+        try {
+            vfs.close();
+        } finally {
+            synchronized (this) {
+                closing.remove(name);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Close every volume and the files that they have open.
+     * @throws IOException on I/O error
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        IOException error = null;
+        for (SimpleVFS vfs : volumes.values()) {
+            try {
+                vfs.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        volumes.clear();
+        pool.close();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+}
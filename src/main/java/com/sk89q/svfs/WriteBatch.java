@@ -0,0 +1,85 @@
+package com.sk89q.svfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list of writes to make to a storage, in order. A storage that is a
+ * {@link GatheringStorage} gets the whole list at once, so that writes that
+ * follow on from each other can be made together.
+ * 
+ * <p>The buffers are not copied, so they must not change until the batch
+ * has been written.</p>
+ * 
+ * @author sk89q
+ */
+class WriteBatch {
+    
+    private final List<Segment> segments = new ArrayList<Segment>();
+    
+    /**
+     * Add a write to the end of the batch.
+     * @param position position in the storage
+     * @param b buffer
+     * @param off offset in the buffer
+     * @param len number of bytes
+     */
+    void add(long position, byte[] b, int off, int len) {
+        segments.add(new Segment(position, b, off, len));
+    }
+    
+    /**
+     * Get the number of writes in the batch.
+     * @return number of writes
+     */
+    int size() {
+        return segments.size();
+    }
+    
+    long getPosition(int i) {
+        return segments.get(i).position;
+    }
+    
+    byte[] getBuffer(int i) {
+        return segments.get(i).buf;
+    }
+    
+    int getOffset(int i) {
+        return segments.get(i).off;
+    }
+    
+    int getLength(int i) {
+        return segments.get(i).len;
+    }
+    
+    /**
+     * Make every write of the batch to a storage, in order.
+     * @param storage storage
+     * @throws IOException on write error
+     */
+    void writeTo(Storage storage) throws IOException {
+        if (storage instanceof GatheringStorage) {
+            ((GatheringStorage) storage).write(this);
+        } else {
+            for (Segment segment : segments) {
+                storage.write(segment.position, segment.buf, segment.off, segment.len);
+            }
+        }
+    }
+    
+    private static class Segment {
+        private final long position;
+        private final byte[] buf;
+        private final int off;
+        private final int len;
+        
+        private Segment(long position, byte[] buf, int off, int len) {
+            this.position = position;
+            this.buf = buf;
+            this.off = off;
+            this.len = len;
+        }
+    }
+
+}
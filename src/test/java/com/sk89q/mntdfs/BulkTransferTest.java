@@ -0,0 +1,192 @@
+package com.sk89q.mntdfs;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sk89q.mntfs.BulkTransfer;
+import com.sk89q.mntfs.ResourceSupervisor;
+import com.sk89q.mntfs.WritableMount;
+import com.sk89q.svfs.SimpleVFS;
+import com.sk89q.svfs.VolumeContainer;
+
+public class BulkTransferTest {
+
+    private static final int MAX_FILE_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    private ResourceSupervisor supervisor;
+    private VolumeContainer volumes;
+
+    @Before
+    public void setUp() throws Exception {
+        supervisor = new ResourceSupervisor(16);
+        supervisor.setMaxFileSize(1024 * 1024);
+        volumes = new VolumeContainer(new File(tempFolder.getRoot(), "volumes"), 16,
+                4 * 1024 * 1024, MAX_FILE_SIZE, 256, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        volumes.close();
+    }
+
+    private static byte[] contents(int seed, int len) {
+        byte[] data = new byte[len];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int pos = 0;
+            while (pos < data.length) {
+                pos += in.read(data, pos, data.length - pos);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * Make a directory tree with 3 files and 3 directories, one of them empty.
+     */
+    private File makeTree(String name, int seed) throws IOException {
+        File root = tempFolder.newFolder(name);
+        File deeper = new File(root, "sub/deeper");
+        deeper.mkdirs();
+        new File(root, "empty").mkdir();
+        writeFile(new File(root, "a.txt"), contents(seed, 100));
+        writeFile(new File(root, "sub/b.bin"), contents(seed + 1, 20000));
+        writeFile(new File(deeper, "c.dat"), contents(seed + 2, 0));
+        return root;
+    }
+
+    private static void assertSameTree(File expected, File actual) throws IOException {
+        String[] names = expected.list();
+        String[] actualNames = actual.list();
+        Arrays.sort(names);
+        Arrays.sort(actualNames);
+        assertEquals(Arrays.asList(names), Arrays.asList(actualNames));
+
+        for (String name : names) {
+            File file = new File(expected, name);
+            if (file.isDirectory()) {
+                assertTrue(new File(actual, name).isDirectory());
+                assertSameTree(file, new File(actual, name));
+            } else {
+                assertArrayEquals(readFile(file), readFile(new File(actual, name)));
+            }
+        }
+    }
+
+    @Test
+    public void testImportAndExport() throws IOException {
+        Map<String, WritableMount> sources = new LinkedHashMap<String, WritableMount>();
+        File[] trees = new File[5];
+        for (int i = 0; i < trees.length; i++) {
+            trees[i] = makeTree("source" + i, i * 10);
+            sources.put("computer" + i, new WritableMount(supervisor, trees[i]));
+        }
+
+        BulkTransfer transfer = new BulkTransfer(volumes, 3);
+        BulkTransfer.Report report = transfer.importTrees(sources);
+        assertTrue(report.getFailures().isEmpty());
+        assertEquals(5, report.getTrees());
+        assertEquals(15, report.getFiles());
+        assertEquals(15, report.getDirectories());
+        assertEquals(5 * 20100, report.getBytes());
+
+        SimpleVFS vfs = volumes.getVolume("computer2");
+        assertArrayEquals(contents(21, 20000), vfs.read(com.sk89q.svfs.Path.parse("sub/b.bin")));
+        volumes.closeVolume("computer2");
+
+        Map<String, WritableMount> targets = new LinkedHashMap<String, WritableMount>();
+        File[] copies = new File[trees.length];
+        for (int i = 0; i < copies.length; i++) {
+            copies[i] = tempFolder.newFolder("copy" + i);
+            targets.put("computer" + i, new WritableMount(supervisor, copies[i]));
+        }
+
+        report = transfer.exportTrees(targets);
+        assertTrue(report.getFailures().isEmpty());
+        assertEquals(15, report.getFiles());
+        assertEquals(15, report.getDirectories());
+        for (int i = 0; i < trees.length; i++) {
+            assertSameTree(trees[i], copies[i]);
+        }
+    }
+
+    @Test
+    public void testFailedImportDeletesImage() throws IOException {
+        File bad = makeTree("bad", 0);
+        writeFile(new File(bad, "sub/large.bin"), contents(5, MAX_FILE_SIZE + 1));
+
+        Map<String, WritableMount> sources = new LinkedHashMap<String, WritableMount>();
+        sources.put("good", new WritableMount(supervisor, makeTree("good", 10)));
+        sources.put("bad", new WritableMount(supervisor, bad));
+
+        BulkTransfer.Report report = new BulkTransfer(volumes, 2).importTrees(sources);
+        assertEquals(2, report.getTrees());
+        assertEquals(Arrays.asList("bad"), Arrays.asList(report.getFailures().keySet().toArray()));
+        assertTrue(volumes.getImageFile("good").exists());
+        assertFalse(volumes.getImageFile("bad").exists());
+    }
+
+    @Test
+    public void testExistingVolumesLeftAlone() throws IOException {
+        SimpleVFS vfs = volumes.getVolume("existing");
+        OutputStream out = vfs.getOutputStream("kept");
+        out.write(contents(1, 500));
+        out.close();
+        volumes.closeVolume("existing");
+
+        Map<String, WritableMount> mounts = new LinkedHashMap<String, WritableMount>();
+        mounts.put("existing", new WritableMount(supervisor, makeTree("source", 0)));
+        BulkTransfer transfer = new BulkTransfer(volumes, 1);
+        BulkTransfer.Report report = transfer.importTrees(mounts);
+        assertTrue(report.getFailures().get("existing") instanceof IOException);
+
+        vfs = volumes.getVolume("existing");
+        assertArrayEquals(contents(1, 500), vfs.read(com.sk89q.svfs.Path.parse("kept")));
+        assertFalse(vfs.exists(com.sk89q.svfs.Path.parse("a.txt")));
+        volumes.closeVolume("existing");
+
+        // Exporting a volume that was never made fails without making it
+        mounts.clear();
+        mounts.put("missing", new WritableMount(supervisor, tempFolder.newFolder("target")));
+        report = transfer.exportTrees(mounts);
+        assertTrue(report.getFailures().get("missing") instanceof FileNotFoundException);
+        assertFalse(volumes.getImageFile("missing").exists());
+    }
+
+}
@@ -0,0 +1,338 @@
+package com.sk89q.mntdfs;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sk89q.mntfs.Path;
+import com.sk89q.mntfs.ResourceSupervisor;
+import com.sk89q.mntfs.SimpleVFSMount;
+import com.sk89q.svfs.SimpleVFS;
+
+public class SimpleVFSMountTest {
+
+    private static final int MAX_OPEN = 1;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    private File image;
+    private SimpleVFS vfs;
+    private SimpleVFSMount mount;
+
+    @Before
+    public void setUp() throws Exception {
+        image = new File(tempFolder.getRoot(), "drive.img");
+        open();
+
+        DataOutputStream out;
+
+        out = new DataOutputStream(mount.getOutputStream(Path.parse("accounts.lst"), false));
+        out.writeInt(1234567890);
+        out.close();
+
+        out = new DataOutputStream(mount.getOutputStream(Path.parse("receivable.txt"), false));
+        out.writeShort(0);
+        out.close();
+
+        mount.mkdirs(Path.parse("files"));
+
+        out = new DataOutputStream(mount.getOutputStream(Path.parse("files/papers.dat"), false));
+        out.writeByte(0);
+        out.close();
+
+        mount.mkdirs(Path.parse("to_delete/subfolder"));
+
+        out = new DataOutputStream(mount.getOutputStream(Path.parse("to_delete/file1.txt"), false));
+        out.writeByte(0);
+        out.close();
+
+        out = new DataOutputStream(mount.getOutputStream(Path.parse("to_delete/delete_me.txt"), false));
+        out.writeByte(0);
+        out.close();
+
+        out = new DataOutputStream(mount.getOutputStream(Path.parse("to_delete/subfolder/subfile.txt"), false));
+        out.writeByte(0);
+        out.close();
+
+        mount.mkdirs(Path.parse("temp"));
+
+        out = new DataOutputStream(mount.getOutputStream(Path.parse("temp/temp1.txt"), false));
+        out.writeInt(1234567890);
+        out.close();
+
+        out = new DataOutputStream(mount.getOutputStream(Path.parse("temp/temp2.txt"), false));
+        out.writeInt(1234567890);
+        out.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        vfs.close();
+    }
+
+    private void open() throws IOException {
+        vfs = new SimpleVFS(image, 1024 * 1024, 64 * 1024, 1000, 10);
+        ResourceSupervisor supervisor = new ResourceSupervisor(MAX_OPEN);
+        supervisor.setMaxFileSize(1024); // bytes
+        mount = new SimpleVFSMount(supervisor, vfs);
+    }
+
+    private void reopen() throws IOException {
+        vfs.close();
+        open();
+    }
+
+    @Test
+    public void testIsWritable() throws IOException {
+        assertTrue(mount.isWritable(Path.root()));
+        assertTrue(mount.isWritable(Path.parse("test")));
+        assertTrue(mount.isWritable(Path.parse("accounts.lst")));
+        assertTrue(mount.isWritable(Path.parse("files")));
+    }
+
+    @Test
+    public void testList() throws IOException {
+        Path[] rootList;
+        Path[] expected;
+
+        rootList = mount.list(Path.root());
+        expected = new Path[] {
+                Path.parse("accounts.lst"),
+                Path.parse("receivable.txt"),
+                Path.parse("files"),
+                Path.parse("to_delete"),
+                Path.parse("temp"),
+            };
+
+        Arrays.sort(rootList);
+        Arrays.sort(expected);
+
+        assertArrayEquals(expected, rootList);
+
+        rootList = mount.list(Path.parse("files"));
+        expected = new Path[] {
+                Path.parse("files/papers.dat"),
+            };
+
+        Arrays.sort(rootList);
+        Arrays.sort(expected);
+
+        assertArrayEquals(expected, rootList);
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testListMissing1() throws IOException {
+        mount.list(Path.parse("missing"));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testListMissing2() throws IOException {
+        mount.list(Path.parse("files/missing"));
+    }
+
+    @Test
+    public void testExists() throws IOException {
+        assertTrue(mount.exists(Path.parse("/accounts.lst")));
+        assertTrue(mount.exists(Path.parse("accounts.lst/")));
+        assertFalse(mount.exists(Path.parse("/missing.dat")));
+        assertFalse(mount.exists(Path.parse("/accounts.lst/missing.dat")));
+        assertTrue(mount.exists(Path.parse("receivable.txt")));
+        assertTrue(mount.exists(Path.parse("files")));
+        assertTrue(mount.exists(Path.parse("files/papers.dat")));
+        assertFalse(mount.isDirectory(Path.parse("/files/missing/subfolder")));
+        assertFalse(mount.exists(Path.parse("files/missing.dat")));
+    }
+
+    @Test
+    public void testIsDirectory() throws IOException {
+        assertFalse(mount.isDirectory(Path.parse("/accounts.lst")));
+        assertFalse(mount.isDirectory(Path.parse("/receivable.txt")));
+        assertTrue(mount.isDirectory(Path.parse("/")));
+        assertTrue(mount.isDirectory(Path.parse("/files")));
+        assertFalse(mount.isDirectory(Path.parse("/files/missing/subfolder")));
+        assertFalse(mount.isDirectory(Path.parse("missing")));
+    }
+
+    @Test
+    public void testSize() throws IOException {
+        assertEquals(mount.getSize(Path.parse("accounts.lst")), 4);
+        assertEquals(mount.getSize(Path.parse("receivable.txt")), 2);
+        assertEquals(mount.getSize(Path.parse("files/papers.dat")), 1);
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testSizeMissing() throws IOException {
+        mount.getSize(Path.parse("missing.txt"));
+    }
+
+    @Test
+    public void testMkdirs() throws IOException {
+        String pathName = "records/names/by/id";
+        assertFalse(mount.isDirectory(Path.parse(pathName)));
+        mount.mkdirs(Path.parse(pathName));
+        assertTrue(mount.isDirectory(Path.parse(pathName)));
+
+        pathName = "files";
+        assertTrue(mount.isDirectory(Path.parse(pathName)));
+        mount.mkdirs(Path.parse(pathName));
+        assertTrue(mount.isDirectory(Path.parse(pathName)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMkdirsOnFile1() throws IOException {
+        mount.mkdirs(Path.parse("accounts.lst"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMkdirsOnFile2() throws IOException {
+        mount.mkdirs(Path.parse("accounts.lst/folder"));
+    }
+
+    @Test
+    public void testDelete() throws IOException {
+        mount.delete(Path.parse("to_delete/delete_me.txt"));
+
+        assertFalse(mount.exists(Path.parse("to_delete/delete_me.txt")));
+        assertTrue(mount.exists(Path.parse("to_delete/file1.txt")));
+        assertTrue(mount.exists(Path.parse("to_delete/subfolder/subfile.txt")));
+
+        mount.delete(Path.parse("to_delete"));
+
+        assertFalse(mount.exists(Path.parse("to_delete/file1.txt")));
+        assertFalse(mount.exists(Path.parse("to_delete/subfolder/subfile.txt")));
+        assertTrue(mount.exists(Path.parse("accounts.lst")));
+
+        reopen();
+
+        assertFalse(mount.exists(Path.parse("to_delete")));
+        assertFalse(mount.exists(Path.parse("to_delete/subfolder/subfile.txt")));
+        assertTrue(mount.exists(Path.parse("accounts.lst")));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testDeleteMissing1() throws IOException {
+        mount.delete(Path.parse("files/missing"));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testDeleteMissing2() throws IOException {
+        mount.delete(Path.parse("missing"));
+    }
+
+    @Test
+    public void testMove() throws IOException {
+        mount.move(Path.parse("temp/temp1.txt"), Path.parse("temp/temp1_moved.txt"));
+
+        assertFalse(mount.exists(Path.parse("temp/temp1.txt")));
+        assertTrue(mount.exists(Path.parse("temp/temp1_moved.txt")));
+
+        mount.move(Path.parse("to_delete"), Path.parse("files/moved"));
+        reopen();
+
+        assertFalse(mount.exists(Path.parse("to_delete")));
+        assertTrue(mount.exists(Path.parse("files/moved/subfolder/subfile.txt")));
+        assertEquals(mount.getSize(Path.parse("temp/temp1_moved.txt")), 4);
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testMoveMissing() throws IOException {
+        mount.move(Path.parse("missing"), Path.parse("missing2"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMoveToExisting() throws IOException {
+        mount.move(Path.parse("accounts.lst"), Path.parse("receivable.txt"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMoveIntoItself() throws IOException {
+        mount.move(Path.parse("to_delete"), Path.parse("to_delete/subfolder/inside"));
+    }
+
+    @Test
+    public void testCopy() throws IOException {
+        mount.copy(Path.parse("temp/temp2.txt"), Path.parse("temp/temp2_copied.txt"));
+
+        assertTrue(mount.exists(Path.parse("temp/temp2.txt")));
+        assertTrue(mount.exists(Path.parse("temp/temp2_copied.txt")));
+
+        // Changing the copy leaves the original alone
+        DataOutputStream out = new DataOutputStream(
+                mount.getOutputStream(Path.parse("temp/temp2_copied.txt"), false));
+        out.writeByte(1);
+        out.close();
+        reopen();
+
+        assertEquals(mount.getSize(Path.parse("temp/temp2.txt")), 4);
+        assertEquals(mount.getSize(Path.parse("temp/temp2_copied.txt")), 1);
+    }
+
+    @Test
+    public void testGetInputStream() throws IOException {
+        InputStream in = mount.getInputStream(Path.parse("accounts.lst"));
+        DataInputStream dataIn = new DataInputStream(in);
+        assertEquals(dataIn.readInt(), 1234567890);
+        assertEquals(dataIn.read(), -1);
+        in.close();
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testGetInputStreamMissing() throws IOException {
+        mount.getInputStream(Path.parse("missing"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testGetInputStreamDirectory() throws IOException {
+        mount.getInputStream(Path.parse("files"));
+    }
+
+    @Test
+    public void testGetOutputStream() throws IOException {
+        OutputStream out = mount.getOutputStream(Path.parse("temp/out.txt"), false);
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(415167);
+        out.close();
+
+        InputStream in = mount.getInputStream(Path.parse("temp/out.txt"));
+        DataInputStream dataIn = new DataInputStream(in);
+        assertEquals(dataIn.readInt(), 415167);
+        assertEquals(dataIn.read(), -1);
+        in.close();
+
+        out = mount.getOutputStream(Path.parse("temp/out.txt"), true);
+        dataOut = new DataOutputStream(out);
+        dataOut.writeInt(65278);
+        out.close();
+
+        in = mount.getInputStream(Path.parse("temp/out.txt"));
+        dataIn = new DataInputStream(in);
+        assertEquals(dataIn.readInt(), 415167);
+        assertEquals(dataIn.readInt(), 65278);
+        assertEquals(dataIn.read(), -1);
+        in.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testGetOutputStreamTooBig() throws IOException {
+        OutputStream out = mount.getOutputStream(Path.parse("temp/big.txt"), false);
+        try {
+            out.write(new byte[1025]);
+        } finally {
+            out.close();
+        }
+    }
+
+}
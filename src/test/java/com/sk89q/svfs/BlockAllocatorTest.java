@@ -0,0 +1,119 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockAllocatorTest extends ImageFixture {
+
+    private static final int BLOCK_COUNT = 100;
+
+    private BlockAllocator allocator;
+
+    @Before
+    public void setUp() throws Exception {
+        allocator = new BlockAllocator(new byte[16], BLOCK_COUNT);
+    }
+
+    @Test
+    public void testAllocateAndFree() throws IOException {
+        // Block 0 holds the free space map
+        assertEquals(BLOCK_COUNT - 1, allocator.getFreeCount());
+
+        int[] blocks = allocator.allocate(10);
+        for (int i = 0; i < blocks.length; i++) {
+            assertEquals(i + 1, blocks[i]);
+            assertTrue(allocator.isUsed(blocks[i]));
+        }
+        assertEquals(BLOCK_COUNT - 11, allocator.getFreeCount());
+
+        assertTrue(allocator.free(5));
+        assertFalse(allocator.isUsed(5));
+        assertFalse(allocator.free(5));
+        assertEquals(BLOCK_COUNT - 10, allocator.getFreeCount());
+        assertEquals(5, allocator.allocate());
+        assertEquals(BLOCK_COUNT - 11, allocator.getFreeCount());
+    }
+
+    @Test
+    public void testAllocateRunSkipsHoles() throws IOException {
+        allocator.allocate(10);
+        allocator.free(3);
+        allocator.free(7);
+
+        // No run of two fits in the holes, so the run comes after them
+        int[] run = allocator.allocate(2);
+        assertEquals(11, run[0]);
+        assertEquals(12, run[1]);
+        assertEquals(3, allocator.allocate());
+    }
+
+    @Test(expected = IOException.class)
+    public void testOutOfSpace() throws IOException {
+        allocator.allocate(BLOCK_COUNT);
+    }
+
+    @Test
+    public void testSharedBlockFreedByLastReference() throws IOException {
+        int block = allocator.allocate();
+        allocator.share(block);
+        allocator.share(block);
+        assertTrue(allocator.isShared(block));
+
+        assertFalse(allocator.free(block));
+        assertFalse(allocator.free(block));
+        assertTrue(allocator.isUsed(block));
+        assertFalse(allocator.isShared(block));
+
+        assertTrue(allocator.free(block));
+        assertFalse(allocator.isUsed(block));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShareFreeBlock() {
+        allocator.share(5);
+    }
+
+    @Test
+    public void testMapRoundTrip() throws IOException {
+        allocator.allocate(20);
+        allocator.free(4);
+        allocator.free(17);
+
+        BlockAllocator copy = new BlockAllocator(allocator.toByteArray(), BLOCK_COUNT);
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            assertEquals(allocator.isUsed(i), copy.isUsed(i));
+        }
+        assertEquals(allocator.getFreeCount(), copy.getFreeCount());
+    }
+
+    @Test
+    public void testFreedBlocksSurviveReopen() throws IOException {
+        SimpleVFS vfs = open();
+        for (int i = 0; i < 4; i++) {
+            write(vfs, "file" + i, contents(i, 10000));
+        }
+        // Shrinking a file frees the blocks past its new end
+        write(vfs, "file1", contents(1, 100));
+        vfs.close();
+        long length = image.length();
+
+        // Takes the blocks that were freed, without touching the others
+        vfs = open();
+        write(vfs, "file4", contents(4, 8000));
+        vfs.close();
+        assertEquals(length, image.length());
+
+        vfs = open();
+        assertArrayEquals(contents(1, 100), vfs.read(Path.parse("file1")));
+        for (int i : new int[] { 0, 2, 3 }) {
+            assertArrayEquals(contents(i, 10000), vfs.read(Path.parse("file" + i)));
+        }
+        assertArrayEquals(contents(4, 8000), vfs.read(Path.parse("file4")));
+        vfs.close();
+    }
+
+}
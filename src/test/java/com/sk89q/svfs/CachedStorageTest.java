@@ -0,0 +1,134 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachedStorageTest extends ImageFixture {
+
+    private static final int BLOCK_COUNT = 32;
+    private static final int SIZE = BLOCK_COUNT * SimpleVFS.DEFAULT_BLOCK_SIZE;
+    private static final int FILE_COUNT = 32;
+
+    private BlockCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        // Small enough that writing the data evicts dirty blocks
+        cache = new BlockCache(8 * SimpleVFS.DEFAULT_BLOCK_SIZE);
+    }
+
+    private static byte[] read(Storage storage, int len) throws IOException {
+        byte[] data = new byte[len];
+        storage.read(SimpleVFS.HEADER_SIZE, data, 0, len);
+        return data;
+    }
+
+    private static byte[] contents(int i) {
+        return contents(i, 1000 + i * 300);
+    }
+
+    private static void writeFiles(SimpleVFS vfs) throws IOException {
+        for (int i = 0; i < FILE_COUNT; i++) {
+            write(vfs, "file" + i, contents(i));
+        }
+    }
+
+    @Test
+    public void testWriteThroughCache() throws IOException {
+        Storage storage = new CachedStorage(cache, new FileStorage(image));
+        // Unaligned pieces, so that blocks are read back in before they are written
+        byte[] data = contents(1, SIZE);
+        for (int off = 0; off < SIZE; off += 1000) {
+            storage.write(SimpleVFS.HEADER_SIZE + off, data, off, Math.min(1000, SIZE - off));
+        }
+        storage.close();
+
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals(0, cache.getSize());
+
+        storage = new FileStorage(image);
+        assertArrayEquals(data, read(storage, SIZE));
+        storage.close();
+    }
+
+    @Test
+    public void testReadThroughCache() throws IOException {
+        Storage storage = new FileStorage(image);
+        byte[] data = contents(1, SIZE);
+        storage.write(SimpleVFS.HEADER_SIZE, data, 0, SIZE);
+        storage.close();
+
+        cache = new BlockCache(1024 * 1024);
+        storage = new CachedStorage(cache, new FileStorage(image));
+        assertArrayEquals(data, read(storage, SIZE));
+        long misses = cache.getMisses();
+
+        // Every block of the image is one block of the cache
+        assertArrayEquals(data, read(storage, SIZE));
+        assertEquals(misses, cache.getMisses());
+        storage.close();
+    }
+
+    @Test
+    public void testBlocksAlignedToImage() throws IOException {
+        CachedStorage storage = new CachedStorage(cache, new FileStorage(image));
+        byte[] block = new byte[SimpleVFS.DEFAULT_BLOCK_SIZE];
+        Arrays.fill(block, (byte) 7);
+        storage.write(SimpleVFS.HEADER_SIZE, block, 0, block.length);
+        long misses = cache.getMisses();
+
+        byte[] read = new byte[block.length];
+        storage.read(SimpleVFS.HEADER_SIZE, read, 0, read.length);
+        assertArrayEquals(block, read);
+        assertEquals(misses, cache.getMisses());
+        assertEquals(block.length, cache.getSize());
+        storage.close();
+    }
+
+    @Test
+    public void testSharedByVolumes() throws IOException {
+        cache = new BlockCache(1024 * 1024);
+        VolumeContainer volumes = new VolumeContainer(tempFolder.getRoot(), 4, 1024 * 1024, 64 * 1024, 256, 4);
+        volumes.setBlockCache(cache);
+        writeFiles(volumes.getVolume("first"));
+        writeFiles(volumes.getVolume("second"));
+        assertTrue(cache.getSize() > 0);
+        volumes.close();
+        assertEquals(0, cache.getSize());
+
+        volumes = new VolumeContainer(tempFolder.getRoot(), 4, 1024 * 1024, 64 * 1024, 256, 4);
+        volumes.setBlockCache(cache);
+        for (String name : new String[] { "first", "second" }) {
+            SimpleVFS vfs = volumes.getVolume(name);
+            for (int i = 0; i < FILE_COUNT; i++) {
+                assertArrayEquals(contents(i), vfs.read(Path.parse("file" + i)));
+            }
+        }
+        long misses = cache.getMisses();
+        for (int i = 0; i < FILE_COUNT; i++) {
+            assertArrayEquals(contents(i), volumes.getVolume("first").read(Path.parse("file" + i)));
+        }
+        assertEquals(misses, cache.getMisses());
+        volumes.close();
+    }
+
+    @Test
+    public void testCloneOfCachedVolume() throws IOException {
+        VolumeContainer volumes = new VolumeContainer(tempFolder.getRoot(), 4, 1024 * 1024, 64 * 1024, 256, 4);
+        volumes.setBlockCache(new BlockCache(1024 * 1024));
+        writeFiles(volumes.getVolume("source"));
+
+        // The clone reads borrowed blocks from the image file itself
+        SimpleVFS clone = volumes.cloneVolume("source", "clone");
+        for (int i = 0; i < FILE_COUNT; i++) {
+            assertArrayEquals(contents(i), clone.read(Path.parse("file" + i)));
+        }
+        volumes.close();
+    }
+
+}
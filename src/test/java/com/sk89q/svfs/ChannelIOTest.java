@@ -0,0 +1,235 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChannelIOTest extends ImageFixture {
+
+    private RandomAccessFile file;
+    private RecordingChannel channel;
+
+    /**
+     * Passes everything on to a real channel, and records the position and
+     * length of every positional write.
+     */
+    private static class RecordingChannel extends FileChannel {
+        private final FileChannel channel;
+        private final List<Long> positions = new ArrayList<Long>();
+        private final List<Integer> lengths = new ArrayList<Integer>();
+        private final List<Boolean> direct = new ArrayList<Boolean>();
+
+        RecordingChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            positions.add(position);
+            lengths.add(src.remaining());
+            direct.add(src.isDirect());
+            return channel.write(src, position);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = new RandomAccessFile(image, "rw");
+        channel = new RecordingChannel(file.getChannel());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.close();
+        file.close();
+    }
+
+    private byte[] read(long position, int len) throws IOException {
+        byte[] data = new byte[len];
+        ChannelIO.read(channel, position, data, 0, len);
+        return data;
+    }
+
+    @Test
+    public void testAdjacentWritesGathered() throws IOException {
+        byte[] data = contents(1, 12288);
+        WriteBatch batch = new WriteBatch();
+        batch.add(100, data, 0, 4096);
+        batch.add(4196, data, 4096, 4096);
+        batch.add(8292, data, 8192, 4096);
+        ChannelIO.write(channel, batch);
+
+        assertEquals(Arrays.asList(100L), channel.positions);
+        assertEquals(Arrays.asList(12288), channel.lengths);
+        assertArrayEquals(data, read(100, data.length));
+    }
+
+    @Test
+    public void testGapFlushes() throws IOException {
+        byte[] a = contents(1, 4096);
+        byte[] b = contents(2, 4096);
+        byte[] c = contents(3, 100);
+        WriteBatch batch = new WriteBatch();
+        batch.add(0, a, 0, a.length);
+        batch.add(10000, b, 0, b.length);
+        batch.add(14096, c, 0, c.length);
+        ChannelIO.write(channel, batch);
+
+        assertEquals(Arrays.asList(0L, 10000L), channel.positions);
+        assertEquals(Arrays.asList(4096, 4196), channel.lengths);
+        assertArrayEquals(a, read(0, a.length));
+        assertArrayEquals(new byte[10000 - 4096], read(4096, 10000 - 4096));
+        assertArrayEquals(b, read(10000, b.length));
+        assertArrayEquals(c, read(14096, c.length));
+    }
+
+    @Test
+    public void testOverlappingWritesKeepOrder() throws IOException {
+        byte[] a = contents(1, 8000);
+        byte[] b = contents(2, 2000);
+        byte[] c = contents(3, 500);
+        WriteBatch batch = new WriteBatch();
+        batch.add(0, a, 0, 4000);
+        batch.add(4000, a, 4000, 4000);
+        batch.add(3000, b, 0, b.length);
+        batch.add(5000, c, 0, c.length);
+        ChannelIO.write(channel, batch);
+
+        byte[] expected = a.clone();
+        System.arraycopy(b, 0, expected, 3000, b.length);
+        System.arraycopy(c, 0, expected, 5000, c.length);
+        assertArrayEquals(expected, read(0, expected.length));
+        assertEquals(Arrays.asList(0L, 3000L), channel.positions);
+    }
+
+    @Test
+    public void testBatchLargerThanBuffer() throws IOException {
+        int len = ChannelIO.BUFFER_SIZE * 2 + 1000;
+        byte[] data = contents(1, len);
+        WriteBatch batch = new WriteBatch();
+        for (int off = 0; off < len; off += 100000) {
+            batch.add(off, data, off, Math.min(100000, len - off));
+        }
+        ChannelIO.write(channel, batch);
+
+        assertEquals(Arrays.asList(0L, (long) ChannelIO.BUFFER_SIZE, ChannelIO.BUFFER_SIZE * 2L),
+                channel.positions);
+        assertEquals(Arrays.asList(ChannelIO.BUFFER_SIZE, ChannelIO.BUFFER_SIZE, 1000), channel.lengths);
+        assertArrayEquals(data, read(0, len));
+    }
+
+    @Test
+    public void testSmallWritesMadeFromHeap() throws IOException {
+        byte[] data = contents(1, 16 * 1024 + 1);
+        ChannelIO.write(channel, 0, data, 0, 16 * 1024);
+        ChannelIO.write(channel, 100000, data, 0, data.length);
+
+        // A batch of one write takes the same path
+        WriteBatch batch = new WriteBatch();
+        batch.add(200000, data, 1, 16 * 1024);
+        ChannelIO.write(channel, batch);
+
+        assertEquals(Arrays.asList(false, true, false), channel.direct);
+        assertEquals(Arrays.asList(16 * 1024, data.length, 16 * 1024), channel.lengths);
+        assertArrayEquals(Arrays.copyOf(data, 16 * 1024), read(0, 16 * 1024));
+        assertArrayEquals(data, read(100000, data.length));
+        assertArrayEquals(Arrays.copyOfRange(data, 1, data.length), read(200000, 16 * 1024));
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class CompressionTest extends ImageFixture {
+
+    private static final int THRESHOLD = 4096;
+
+    @Override
+    protected SimpleVFS open() throws IOException {
+        SimpleVFS vfs = super.open();
+        vfs.setCompressionThreshold(THRESHOLD);
+        return vfs;
+    }
+
+    /**
+     * Make contents that deflate well.
+     */
+    private static byte[] text(int len) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < len; i++) {
+            builder.append("line ").append(i % 100).append('\n');
+        }
+        return Arrays.copyOf(builder.toString().getBytes(), len);
+    }
+
+    @Test
+    public void testBelowThresholdStoredRaw() throws IOException {
+        SimpleVFS vfs = open();
+        write(vfs, "small", text(100));
+        int used = usedBlocks(vfs);
+
+        write(vfs, "file", text(3000));
+        assertEquals(used + 3, usedBlocks(vfs));
+        assertEquals(3000, vfs.getSize(Path.parse("file")));
+        assertArrayEquals(text(3000), vfs.read(Path.parse("file")));
+        vfs.close();
+    }
+
+    @Test
+    public void testAboveThresholdCompressed() throws IOException {
+        SimpleVFS vfs = open();
+        write(vfs, "small", text(100));
+        int used = usedBlocks(vfs);
+
+        write(vfs, "file", text(50000));
+        assertTrue(usedBlocks(vfs) - used < 10);
+        assertEquals(50000, vfs.getSize(Path.parse("file")));
+        assertArrayEquals(text(50000), vfs.read(Path.parse("file")));
+
+        // Data that does not deflate still reads back
+        write(vfs, "random", contents(1, 20000));
+        assertEquals(20000, vfs.getSize(Path.parse("random")));
+        vfs.close();
+
+        // Whether a file is compressed is recorded with it
+        vfs = super.open();
+        assertEquals(50000, vfs.getSize(Path.parse("file")));
+        assertArrayEquals(text(50000), vfs.read(Path.parse("file")));
+        assertArrayEquals(contents(1, 20000), vfs.read(Path.parse("random")));
+        vfs.close();
+    }
+
+    @Test
+    public void testSkip() throws IOException {
+        byte[] data = text(50000);
+        SimpleVFS vfs = open();
+        write(vfs, "file", data);
+
+        InputStream in = vfs.getInputStream("file");
+        try {
+            assertEquals(1000, in.skip(1000));
+            byte[] buf = new byte[500];
+            new DataInputStream(in).readFully(buf);
+            assertArrayEquals(Arrays.copyOfRange(data, 1000, 1500), buf);
+
+            assertEquals(30000, in.skip(30000));
+            assertEquals(data[31500] & 0xFF, in.read());
+            assertEquals(data.length - 31501, in.skip(data.length));
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+        vfs.close();
+    }
+
+    @Test
+    public void testSeekRefused() throws IOException {
+        SimpleVFS vfs = open();
+        write(vfs, "compressed", text(50000));
+        write(vfs, "raw", text(3000));
+
+        EntryInputStream in = vfs.openEntry(Path.parse("compressed"));
+        try {
+            assertEquals(50000, in.getLength());
+            in.seek(100);
+            fail();
+        } catch (IOException e) {
+        } finally {
+            in.close();
+        }
+
+        in = vfs.openEntry(Path.parse("raw"));
+        try {
+            in.seek(100);
+            assertEquals(text(3000)[100] & 0xFF, in.read());
+        } finally {
+            in.close();
+        }
+        vfs.close();
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class DeduplicationTest extends ImageFixture {
+
+    private static final int FILE_BLOCKS = 8;
+    private static final int FILE_SIZE = FILE_BLOCKS * SimpleVFS.DEFAULT_BLOCK_SIZE;
+
+    @Override
+    protected SimpleVFS open() throws IOException {
+        SimpleVFS vfs = super.open();
+        vfs.setDeduplicating(true);
+        return vfs;
+    }
+
+    @Test
+    public void testIdenticalFilesShareBlocks() throws IOException {
+        SimpleVFS vfs = open();
+        write(vfs, "a", contents(1, FILE_SIZE));
+        long length = image.length();
+        write(vfs, "b", contents(1, FILE_SIZE));
+        assertTrue(image.length() < length + SimpleVFS.DEFAULT_BLOCK_SIZE);
+        vfs.close();
+
+        vfs = open();
+        assertArrayEquals(contents(1, FILE_SIZE), vfs.read(Path.parse("a")));
+        assertArrayEquals(contents(1, FILE_SIZE), vfs.read(Path.parse("b")));
+        vfs.close();
+    }
+
+    @Test
+    public void testRewriteKeepsSharedBlocks() throws IOException {
+        SimpleVFS vfs = open();
+        write(vfs, "a", contents(1, FILE_SIZE));
+        write(vfs, "b", contents(1, FILE_SIZE));
+        vfs.close();
+
+        // The shared references are rebuilt from the index on open
+        vfs = open();
+        write(vfs, "a", new byte[0]);
+
+        // Would take the shared blocks if they had been freed
+        write(vfs, "c", contents(2, FILE_SIZE));
+        vfs.close();
+
+        vfs = open();
+        assertArrayEquals(new byte[0], vfs.read(Path.parse("a")));
+        assertArrayEquals(contents(1, FILE_SIZE), vfs.read(Path.parse("b")));
+        assertArrayEquals(contents(2, FILE_SIZE), vfs.read(Path.parse("c")));
+        vfs.close();
+    }
+
+    @Test
+    public void testRewriteLeavesSharedBlocks() throws IOException {
+        SimpleVFS vfs = open();
+        write(vfs, "a", contents(1, FILE_SIZE));
+        write(vfs, "b", contents(1, FILE_SIZE));
+        write(vfs, "a", contents(2, FILE_SIZE));
+        vfs.close();
+
+        vfs = open();
+        assertArrayEquals(contents(2, FILE_SIZE), vfs.read(Path.parse("a")));
+        assertArrayEquals(contents(1, FILE_SIZE), vfs.read(Path.parse("b")));
+        vfs.close();
+    }
+
+    @Test
+    public void testRewriteEveryCopyFreesBlocks() throws IOException {
+        SimpleVFS vfs = open();
+        write(vfs, "a", contents(1, FILE_SIZE));
+        write(vfs, "b", contents(1, FILE_SIZE));
+        write(vfs, "c", contents(1, FILE_SIZE));
+        vfs.close();
+
+        vfs = open();
+        write(vfs, "a", new byte[0]);
+        write(vfs, "b", new byte[0]);
+        long length = image.length();
+        write(vfs, "d", contents(2, FILE_SIZE));
+        assertTrue(image.length() >= length + FILE_SIZE);
+
+        // The last copy gives the blocks back
+        write(vfs, "c", new byte[0]);
+        length = image.length();
+        write(vfs, "e", contents(3, FILE_SIZE));
+        assertTrue(image.length() < length + SimpleVFS.DEFAULT_BLOCK_SIZE);
+        vfs.close();
+
+        vfs = open();
+        assertArrayEquals(contents(2, FILE_SIZE), vfs.read(Path.parse("d")));
+        assertArrayEquals(contents(3, FILE_SIZE), vfs.read(Path.parse("e")));
+        vfs.close();
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class DefragmenterTest extends ImageFixture {
+
+    private static void defragment(SimpleVFS vfs) throws IOException {
+        Defragmenter defragmenter = new Defragmenter(vfs);
+        while (defragmenter.step(1000)) {
+        }
+    }
+
+    /**
+     * Leave holes at the front of the image and the index past them.
+     */
+    private static void fragment(SimpleVFS vfs) throws IOException {
+        for (int i = 0; i < 20; i++) {
+            write(vfs, "file" + i, contents(i, 3000 + i * 100));
+        }
+        for (int i = 0; i < 20; i += 2) {
+            vfs.delete(Path.parse("file" + i));
+        }
+        for (int i = 20; i < 40; i++) {
+            write(vfs, "file" + i, contents(i, 200));
+        }
+    }
+
+    private static void assertContents(SimpleVFS vfs) throws IOException {
+        for (int i = 1; i < 20; i += 2) {
+            assertArrayEquals(contents(i, 3000 + i * 100), vfs.read(Path.parse("file" + i)));
+        }
+        for (int i = 20; i < 40; i++) {
+            assertArrayEquals(contents(i, 200), vfs.read(Path.parse("file" + i)));
+        }
+    }
+
+    private byte[] readImage() throws IOException {
+        FileStorage storage = new FileStorage(image);
+        try {
+            byte[] data = new byte[(int) storage.length()];
+            storage.read(0, data, 0, data.length);
+            return data;
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void testDefragmentWithoutJournal() throws IOException {
+        SimpleVFS vfs = open();
+        fragment(vfs);
+        long length = image.length();
+        defragment(vfs);
+        assertContents(vfs);
+        assertTrue(image.length() < length);
+        vfs.close();
+
+        vfs = open();
+        assertContents(vfs);
+        vfs.close();
+    }
+
+    @Test
+    public void testRelocateIndexWithoutJournal() throws IOException {
+        SimpleVFS vfs = open();
+        fragment(vfs);
+        vfs.relocateIndex();
+        assertContents(vfs);
+        vfs.close();
+
+        vfs = open();
+        assertContents(vfs);
+        vfs.close();
+    }
+
+    @Test
+    public void testCrashWhileRelocatingIndex() throws IOException {
+        SimpleVFS vfs = open();
+        for (int i = 0; i < 40; i++) {
+            write(vfs, "file" + i, contents(i, 200));
+        }
+        vfs.close();
+
+        // Stop writing just before the index location block is switched
+        final long indexLoc = SimpleVFS.HEADER_SIZE + SimpleVFS.DEFAULT_BLOCK_SIZE;
+        FileStorage storage = new FileStorage(image) {
+            @Override
+            public void write(long position, byte[] buf, int off, int len) throws IOException {
+                if (position == indexLoc) {
+                    throw new IOException("Crashed");
+                }
+                super.write(position, buf, off, len);
+            }
+        };
+        vfs = open(storage);
+        try {
+            vfs.relocateIndex();
+            fail("Index location block was written");
+        } catch (IOException e) {
+        }
+        storage.close();
+
+        vfs = open();
+        for (int i = 0; i < 40; i++) {
+            assertArrayEquals(contents(i, 200), vfs.read(Path.parse("file" + i)));
+        }
+        vfs.close();
+    }
+
+    @Test
+    public void testIdlePassLeavesIndex() throws IOException {
+        SimpleVFS vfs = open();
+        fragment(vfs);
+        defragment(vfs);
+        write(vfs, "last", contents(98, 5000));
+        defragment(vfs);
+
+        // Nothing is left to move, and a file comes after the index
+        write(vfs, "last2", contents(99, 200));
+        assertFalse(vfs.isIndexAtEnd());
+        byte[] before = readImage();
+
+        Defragmenter defragmenter = new Defragmenter(vfs);
+        assertFalse(defragmenter.step(1000));
+        assertEquals(0, defragmenter.getBlocksMoved());
+        assertArrayEquals(before, readImage());
+        vfs.close();
+    }
+
+}
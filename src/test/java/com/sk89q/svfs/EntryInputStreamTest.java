@@ -0,0 +1,230 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EntryInputStreamTest extends ImageFixture {
+
+    private SimpleVFS vfs;
+    private final List<Integer> reads = new ArrayList<Integer>();
+
+    @Before
+    public void setUp() throws Exception {
+        vfs = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        vfs.close();
+    }
+
+    private static byte[] readFully(InputStream in, int len) throws IOException {
+        byte[] data = new byte[len];
+        int pos = 0;
+        int n;
+        while (pos < len && (n = in.read(data, pos, len - pos)) != -1) {
+            pos += n;
+        }
+        assertEquals(-1, in.read());
+        return data;
+    }
+
+    /**
+     * Reopen the image on a storage that records the length of every read.
+     */
+    private void reopenRecording() throws IOException {
+        vfs.close();
+        vfs = open(new FileStorage(image) {
+            @Override
+            public void read(long position, byte[] buf, int off, int len) throws IOException {
+                reads.add(len);
+                super.read(position, buf, off, len);
+            }
+        });
+    }
+
+    private int totalRead() {
+        int total = 0;
+        for (int len : reads) {
+            total += len;
+        }
+        return total;
+    }
+
+    /**
+     * Write a file into the holes left by shrinking other files, so that
+     * its blocks are split over several extents.
+     */
+    private byte[] writeFragmented(String path, int len) throws IOException {
+        for (int i = 0; i < 10; i++) {
+            write(vfs, "filler" + i, contents(100 + i, 3000));
+        }
+        for (int i = 1; i < 10; i += 2) {
+            write(vfs, "filler" + i, contents(100 + i, 10));
+        }
+        byte[] data = contents(1, len);
+        write(vfs, path, data);
+        assertTrue(vfs.getFragmentation().getFragmentedFileCount() > 0);
+        return data;
+    }
+
+    private static byte[] read(InputStream in, int len) throws IOException {
+        byte[] data = new byte[len];
+        int pos = 0;
+        while (pos < len) {
+            pos += in.read(data, pos, len - pos);
+        }
+        return data;
+    }
+
+    @Test
+    public void testSeekWithinBuffer() throws IOException {
+        byte[] data = writeFragmented("file", 20000);
+        reopenRecording();
+
+        EntryInputStream in = vfs.openEntry(Path.parse("file"));
+        try {
+            assertArrayEquals(Arrays.copyOf(data, 10), read(in, 10));
+
+            // The first block is buffered, so going back and forth in it is free
+            reads.clear();
+            in.seek(500);
+            assertArrayEquals(Arrays.copyOfRange(data, 500, 510), read(in, 10));
+            in.seek(5);
+            assertArrayEquals(Arrays.copyOfRange(data, 5, 15), read(in, 10));
+            in.seek(SimpleVFS.DEFAULT_BLOCK_SIZE - 10);
+            assertArrayEquals(Arrays.copyOfRange(data, SimpleVFS.DEFAULT_BLOCK_SIZE - 10,
+                    SimpleVFS.DEFAULT_BLOCK_SIZE), read(in, 10));
+            assertTrue(reads.isEmpty());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testSeekOutsideBuffer() throws IOException {
+        byte[] data = writeFragmented("file", 20000);
+        reopenRecording();
+
+        EntryInputStream in = vfs.openEntry(Path.parse("file"));
+        try {
+            for (int i = 0; i < 50; i++) {
+                in.read();
+            }
+            assertArrayEquals(Arrays.copyOfRange(data, 50, 3000), read(in, 2950));
+
+            // Seeking away starts the window over at one block
+            reads.clear();
+            in.seek(15000);
+            assertArrayEquals(Arrays.copyOfRange(data, 15000, 15010), read(in, 10));
+            assertEquals(SimpleVFS.DEFAULT_BLOCK_SIZE, totalRead());
+
+            reads.clear();
+            in.seek(100);
+            assertArrayEquals(Arrays.copyOfRange(data, 100, 110), read(in, 10));
+            assertEquals(SimpleVFS.DEFAULT_BLOCK_SIZE, totalRead());
+
+            in.seek(data.length);
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testWindowGrows() throws IOException {
+        byte[] data = contents(1, 20000);
+        write(vfs, "file", data);
+        reopenRecording();
+
+        EntryInputStream in = vfs.openEntry(Path.parse("file"));
+        reads.clear();
+        try {
+            byte[] read = new byte[data.length];
+            for (int pos = 0; pos < data.length; pos += 100) {
+                assertEquals(100, in.read(read, pos, 100));
+            }
+            assertArrayEquals(data, read);
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+
+        // Every window is twice the last, and nothing is read twice
+        assertEquals(Arrays.asList(1024, 2048, 4096, 8192, 20000 - 15360), reads);
+    }
+
+    @Test
+    public void testReadsSpanExtents() throws IOException {
+        byte[] data = writeFragmented("file", 20000);
+
+        // Small reads that run over the ends of extents
+        InputStream in = vfs.getInputStream("file");
+        try {
+            byte[] read = new byte[data.length];
+            int pos = 0;
+            int n;
+            while ((n = in.read(read, pos, Math.min(7, data.length - pos))) > 0) {
+                pos += n;
+            }
+            assertEquals(data.length, pos);
+            assertArrayEquals(data, read);
+        } finally {
+            in.close();
+        }
+
+        // One read of the whole file, which skips the buffer
+        EntryInputStream entry = vfs.openEntry(Path.parse("file"));
+        try {
+            assertArrayEquals(data, readFully(entry, data.length));
+            entry.seek(2000);
+            assertArrayEquals(Arrays.copyOfRange(data, 2000, 20000), readFully(entry, 18000));
+        } finally {
+            entry.close();
+        }
+    }
+
+    @Test
+    public void testCloseTwiceWhileRewritten() throws IOException {
+        byte[] old = contents(1, 10000);
+        write(vfs, "file", old);
+
+        EntryInputStream first = vfs.openEntry(Path.parse("file"));
+        EntryInputStream second = vfs.openEntry(Path.parse("file"));
+
+        // The old blocks stay pinned by both streams
+        write(vfs, "file", contents(2, 10000));
+        first.close();
+        first.close();
+
+        // Would take the old blocks if they had been freed
+        for (int i = 0; i < 8; i++) {
+            write(vfs, "other" + i, contents(3 + i, 10000));
+        }
+
+        assertArrayEquals(old, readFully(second, old.length));
+        second.close();
+
+        assertArrayEquals(contents(2, 10000), vfs.read(Path.parse("file")));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadAfterClose() throws IOException {
+        write(vfs, "file", contents(1, 10000));
+
+        InputStream in = vfs.getInputStream("file");
+        in.read();
+        in.close();
+        in.read();
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EntryOutputStreamTest extends ImageFixture {
+
+    private FailingStorage storage;
+    private SimpleVFS vfs;
+
+    @Before
+    public void setUp() throws Exception {
+        storage = new FailingStorage(image);
+        vfs = new SimpleVFS(image, storage, 4 * 1024 * 1024, 1024 * 1024, 256, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storage.failing = false;
+        vfs.close();
+    }
+
+    private static ByteArrayOutputStream buffer(int seed, int len) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(contents(seed, len), 0, len);
+        return out;
+    }
+
+    private void assertFailedWriteFreesBlocks(int len) throws IOException {
+        vfs.write(Path.parse("a"), buffer(1, 4096));
+        int used = usedBlocks(vfs);
+
+        storage.failing = true;
+        try {
+            vfs.write(Path.parse("b"), buffer(2, len));
+            fail("Write succeeded");
+        } catch (IllegalStateException e) {
+        }
+        storage.failing = false;
+
+        assertEquals(used, usedBlocks(vfs));
+        assertFalse(vfs.exists(Path.parse("b")));
+    }
+
+    @Test
+    public void testFailedWriteFreesBlocks() throws IOException {
+        // Larger than a batch, so the first batch is written before the end
+        assertFailedWriteFreesBlocks(ChannelIO.BUFFER_SIZE * 2);
+    }
+
+    @Test
+    public void testFailedCloseFreesBlocks() throws IOException {
+        assertFailedWriteFreesBlocks(32 * 1024);
+    }
+
+    @Test
+    public void testFailedAsyncWriteFreesBlocks() throws Exception {
+        vfs.write(Path.parse("a"), buffer(1, 4096));
+        int used = usedBlocks(vfs);
+
+        storage.failing = true;
+        try {
+            vfs.writeAsync(Path.parse("b"), ByteBuffer.wrap(contents(2, 32 * 1024))).get();
+            fail("Write succeeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        storage.failing = false;
+
+        assertEquals(used, usedBlocks(vfs));
+        assertFalse(vfs.exists(Path.parse("b")));
+    }
+
+    /**
+     * Storage that fails every write while told to.
+     */
+    private static class FailingStorage extends FileStorage {
+        private volatile boolean failing;
+
+        FailingStorage(File file) throws IOException {
+            super(file);
+        }
+
+        @Override
+        public void write(long position, byte[] buf, int off, int len) throws IOException {
+            check();
+            super.write(position, buf, off, len);
+        }
+
+        @Override
+        public void write(WriteBatch batch) throws IOException {
+            check();
+            super.write(batch);
+        }
+
+        private void check() {
+            if (failing) {
+                throw new IllegalStateException("Failing on purpose");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ExtentListTest {
+
+    private static final int[] BLOCKS = { 4, 5, 6, 10, 2, 3, 70000 };
+
+    @Test
+    public void testMergesConsecutiveBlocks() {
+        ExtentList extents = ExtentList.of(BLOCKS);
+        assertEquals(4, extents.size());
+        assertEquals(BLOCKS.length, extents.getBlockCount());
+
+        assertEquals(4, extents.getStart(0));
+        assertEquals(3, extents.getLength(0));
+        assertEquals(10, extents.getStart(1));
+        assertEquals(1, extents.getLength(1));
+        assertEquals(3, extents.getOffset(1));
+        assertEquals(2, extents.getStart(2));
+        assertEquals(2, extents.getLength(2));
+        assertEquals(4, extents.getOffset(2));
+    }
+
+    @Test
+    public void testFindsEveryBlock() {
+        ExtentList extents = ExtentList.of(BLOCKS);
+        for (int i = 0; i < BLOCKS.length; i++) {
+            assertEquals(BLOCKS[i], extents.getBlock(i));
+        }
+        assertTrue(Arrays.equals(BLOCKS, extents.toBlocks()));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testFindPastEnd() {
+        ExtentList.of(BLOCKS).find(BLOCKS.length);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ExtentList extents = ExtentList.of(BLOCKS);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        extents.write(new DataOutputStream(bytes));
+        assertEquals(extents.getSerializedSize(), bytes.size());
+
+        ExtentList read = ExtentList.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertTrue(Arrays.equals(BLOCKS, read.toBlocks()));
+        assertEquals(extents.size(), read.size());
+    }
+
+    @Test
+    public void testEmptyRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ExtentList.EMPTY.write(new DataOutputStream(bytes));
+
+        ExtentList read = ExtentList.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(0, read.size());
+        assertEquals(0, read.getBlockCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptLength() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeInt(5);
+        out.writeInt(0);
+        ExtentList.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileChannelPoolTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    private FileChannelPool pool;
+    private File a;
+    private File b;
+    private File c;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new FileChannelPool(2);
+        a = new File(tempFolder.getRoot(), "a");
+        b = new File(tempFolder.getRoot(), "b");
+        c = new File(tempFolder.getRoot(), "c");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+    }
+
+    private void use(File file) throws IOException {
+        pool.release(pool.acquire(file));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        use(a);
+        use(b);
+        use(a);
+        use(c);
+        assertEquals(2, pool.getOpenCount());
+        assertEquals(1, pool.getEvicted());
+
+        // b was evicted, so a is still open
+        use(a);
+        assertEquals(3, pool.getOpened());
+        use(b);
+        assertEquals(4, pool.getOpened());
+    }
+
+    @Test
+    public void testBorrowedFileNotEvicted() throws IOException {
+        FileChannelPool.Handle handle = pool.acquire(a);
+        use(b);
+        use(c);
+        assertTrue(handle.getChannel().isOpen());
+        pool.release(handle);
+    }
+
+    @Test
+    public void testWaitsWhileAllBorrowed() throws Exception {
+        FileChannelPool.Handle first = pool.acquire(a);
+        FileChannelPool.Handle second = pool.acquire(b);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final IOException[] error = new IOException[1];
+
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    use(c);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+                acquired.countDown();
+            }
+        };
+        thread.start();
+
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        pool.release(first);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertNull(error[0]);
+        assertFalse(pool.getOpenCount() > 2);
+        pool.release(second);
+    }
+
+    @Test
+    public void testInterruptedWhileWaiting() throws Exception {
+        FileChannelPool.Handle first = pool.acquire(a);
+        FileChannelPool.Handle second = pool.acquire(b);
+        Thread.currentThread().interrupt();
+        try {
+            pool.acquire(c);
+            fail("Acquired while every file was borrowed");
+        } catch (InterruptedIOException e) {
+            assertTrue(Thread.interrupted());
+        }
+        pool.release(first);
+        pool.release(second);
+    }
+
+    @Test
+    public void testReopensAfterEviction() throws IOException {
+        PooledStorage storage = new PooledStorage(pool, a);
+        storage.write(0, new byte[] { 1, 2, 3 }, 0, 3);
+        use(b);
+        use(c);
+        assertEquals(1, pool.getEvicted());
+
+        byte[] data = new byte[3];
+        storage.read(0, data, 0, 3);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, data);
+        assertEquals(4, pool.getOpened());
+        storage.close();
+    }
+
+    @Test
+    public void testReopensClosedChannel() throws IOException {
+        FileChannelPool.Handle handle = pool.acquire(a);
+        handle.getChannel().close();
+        pool.release(handle);
+
+        FileChannelPool.Handle reopened = pool.acquire(a);
+        assertNotSame(handle, reopened);
+        assertTrue(reopened.getChannel().isOpen());
+        pool.release(reopened);
+    }
+
+}
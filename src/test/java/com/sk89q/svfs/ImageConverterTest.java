@@ -0,0 +1,157 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ImageConverterTest extends ImageFixture {
+
+    private static final int BLOCK_SIZE = 64;
+    private static final int PAYLOAD = BLOCK_SIZE - 6;
+    private static final long TIME_A = 1300000000000L;
+    private static final long TIME_B = 1300000001000L;
+    private static final long TIME_DOCS = 1200000000000L;
+
+    /**
+     * Write an entry as a version 1 block chain, with the length and the
+     * next block in front of every block.
+     */
+    private static void writeChain(RandomAccessFile file, int[] blocks, byte[] data) throws IOException {
+        for (int i = 0; i < blocks.length; i++) {
+            file.seek(SimpleVFS.HEADER_SIZE + (long) blocks[i] * BLOCK_SIZE);
+            file.writeInt(data.length);
+            file.writeShort(i + 1 < blocks.length ? blocks[i + 1] : 0);
+            int off = i * PAYLOAD;
+            file.write(data, off, Math.min(PAYLOAD, data.length - off));
+        }
+    }
+
+    private void writeVersion1Image(byte[] a, byte[] b) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(bytes);
+        index.writeShort(3);
+        index.writeUTF("docs/a.txt");
+        index.writeShort(5);
+        index.writeInt(a.length);
+        index.writeLong(TIME_A);
+        index.writeUTF("b");
+        index.writeShort(3);
+        index.writeInt(b.length);
+        index.writeLong(TIME_B);
+        index.writeUTF("docs");
+        index.writeShort(0);
+        index.writeInt(0);
+        index.writeLong(TIME_DOCS);
+
+        RandomAccessFile file = new RandomAccessFile(image, "rw");
+        try {
+            file.write(new byte[] { 0, 'S', 'V', 'F', 'S' });
+            file.writeShort(ImageConverter.LEGACY_VERSION);
+            file.writeShort(BLOCK_SIZE);
+            file.writeShort(1);
+            writeChain(file, new int[] { 1, 2 }, bytes.toByteArray());
+            writeChain(file, new int[] { 3 }, b);
+            // Out of order, as chains of old images often were
+            writeChain(file, new int[] { 5, 9, 4, 6, 7 }, a);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void testUpgradeVersion1() throws IOException {
+        byte[] a = contents(1, PAYLOAD * 4 + 10);
+        byte[] b = contents(2, 20);
+        writeVersion1Image(a, b);
+
+        assertTrue(ImageConverter.needsUpgrade(image));
+        assertTrue(ImageConverter.upgrade(image, 1024 * 1024));
+        assertFalse(ImageConverter.needsUpgrade(image));
+
+        SimpleVFS vfs = open();
+        assertTrue(vfs.isDirectory(Path.parse("docs")));
+        assertArrayEquals(a, vfs.read(Path.parse("docs/a.txt")));
+        assertArrayEquals(b, vfs.read(Path.parse("b")));
+
+        write(vfs, "docs/c.txt", contents(3, 3000));
+        vfs.close();
+
+        vfs = open();
+        assertEquals(Arrays.asList("a.txt", "c.txt"), vfs.list(Path.parse("docs")));
+        assertEquals(TIME_A, vfs.getLastModified(Path.parse("docs/a.txt")));
+        assertEquals(TIME_B, vfs.getLastModified(Path.parse("b")));
+        assertEquals(TIME_DOCS, vfs.getLastModified(Path.parse("docs")));
+        assertArrayEquals(a, vfs.read(Path.parse("docs/a.txt")));
+        assertArrayEquals(contents(3, 3000), vfs.read(Path.parse("docs/c.txt")));
+        vfs.close();
+    }
+
+    @Test
+    public void testFailedUpgradeLeavesImage() throws IOException {
+        // The index claims more data than the chain of the file holds
+        byte[] b = contents(2, 20);
+        writeVersion1Image(contents(1, PAYLOAD * 4 + 10), b);
+        RandomAccessFile file = new RandomAccessFile(image, "rw");
+        try {
+            file.seek(SimpleVFS.HEADER_SIZE + 3L * BLOCK_SIZE);
+            file.writeInt(PAYLOAD * 2);
+        } finally {
+            file.close();
+        }
+        long length = image.length();
+
+        try {
+            ImageConverter.upgrade(image, 1024 * 1024);
+            fail("Upgraded a broken image");
+        } catch (IOException e) {
+        }
+
+        assertTrue(ImageConverter.needsUpgrade(image));
+        assertEquals(length, image.length());
+        assertFalse(new File(image.getPath() + ".upgrade").exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void testVersion1NotOpened() throws IOException {
+        writeVersion1Image(contents(1, PAYLOAD * 4 + 10), contents(2, 20));
+
+        SimpleVFS vfs = open();
+        try {
+            vfs.read(Path.parse("b"));
+        } finally {
+            vfs.close();
+        }
+    }
+
+    @Test
+    public void testFragmentedFileSurvivesReopen() throws IOException {
+        SimpleVFS vfs = open();
+        for (int i = 0; i < 6; i++) {
+            write(vfs, "small" + i, contents(i, 2000));
+        }
+        // Shrinking files leaves holes of one block behind them
+        write(vfs, "small1", contents(1, 10));
+        write(vfs, "small3", contents(3, 10));
+
+        // Too large for any one hole, so it is split over several extents
+        write(vfs, "large", contents(10, 20000));
+        assertTrue(vfs.getFragmentation().getFragmentedFileCount() > 0);
+        vfs.close();
+
+        vfs = open();
+        assertArrayEquals(contents(10, 20000), vfs.read(Path.parse("large")));
+        assertArrayEquals(contents(1, 10), vfs.read(Path.parse("small1")));
+        for (int i : new int[] { 0, 2, 4, 5 }) {
+            assertArrayEquals(contents(i, 2000), vfs.read(Path.parse("small" + i)));
+        }
+        vfs.close();
+    }
+
+}
@@ -0,0 +1,147 @@
+package com.sk89q.svfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Base for tests that work on an image in a temporary folder.
+ */
+public abstract class ImageFixture {
+
+    protected static final long OLD_TIME = 1300000000000L;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    protected File image;
+
+    @Before
+    public void setUpImage() throws Exception {
+        image = new File(tempFolder.getRoot(), "drive.img");
+    }
+
+    /**
+     * Open the image with the settings that most tests use.
+     * @return image
+     * @throws IOException on I/O error
+     */
+    protected SimpleVFS open() throws IOException {
+        return open(new FileStorage(image));
+    }
+
+    /**
+     * Open the image on top of the given storage.
+     * @param storage storage of the image
+     * @return image
+     * @throws IOException on I/O error
+     */
+    protected SimpleVFS open(Storage storage) throws IOException {
+        return new SimpleVFS(image, storage, 1024 * 1024, 64 * 1024, 256, 4);
+    }
+
+    protected static byte[] contents(int seed, int len) {
+        byte[] data = new byte[len];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    protected static void write(SimpleVFS vfs, String path, byte[] data) throws IOException {
+        OutputStream out = vfs.getOutputStream(path);
+        out.write(data);
+        out.close();
+    }
+
+    protected static int usedBlocks(SimpleVFS vfs) throws IOException {
+        return vfs.getFragmentation().getUsedBlocks();
+    }
+
+    /**
+     * Write an entry in the layout of versions 2 and 3, whose extents have
+     * 16-bit block numbers, as a record if the version has a log. The
+     * contents take up a single run.
+     */
+    private static void writeOldEntry(DataOutputStream out, int version, String path,
+            boolean directory, int size, int start, int blocks) throws IOException {
+        if (version == 3) {
+            out.writeByte(1);
+        }
+        out.writeUTF(path);
+        out.writeByte(directory ? 1 : 0);
+        out.writeInt(size);
+        out.writeLong(OLD_TIME);
+        out.writeShort(blocks > 0 ? 1 : 0);
+        if (blocks > 0) {
+            out.writeShort(start);
+            out.writeShort(blocks);
+        }
+    }
+
+    /**
+     * Write an image in the layout of version 2 or 3, with 1 KB blocks, that
+     * holds a directory docs with a.txt in it, and a file b. Version 2 keeps
+     * them in a snapshot, while version 3 appends b to the log after it.
+     * @param version 2 or 3
+     * @param a contents of docs/a.txt
+     * @param b contents of b
+     * @throws IOException on I/O error
+     */
+    protected void writeOldImage(int version, byte[] a, byte[] b) throws IOException {
+        int blockSize = SimpleVFS.DEFAULT_BLOCK_SIZE;
+        int aBlocks = (a.length + blockSize - 1) / blockSize;
+        int bBlocks = (b.length + blockSize - 1) / blockSize;
+
+        // Block 0 holds the free space map, 1 the index header, 2 the index
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(bytes);
+        if (version == 2) {
+            index.writeShort(3);
+        }
+        writeOldEntry(index, version, "docs", true, 0, 0, 0);
+        writeOldEntry(index, version, "docs/a.txt", false, a.length, 3, aBlocks);
+        int snapshotLen = index.size();
+        writeOldEntry(index, version, "b", false, b.length, 3 + aBlocks, bBlocks);
+        if (version == 2) {
+            snapshotLen = index.size();
+        }
+
+        RandomAccessFile file = new RandomAccessFile(image, "rw");
+        try {
+            file.write(new byte[] { 0, 'S', 'V', 'F', 'S' });
+            file.writeShort(version);
+            file.writeShort(blockSize);
+            file.writeShort(1);
+
+            file.seek(SimpleVFS.HEADER_SIZE + blockSize);
+            file.writeInt(index.size());
+            if (version == 3) {
+                file.writeInt(snapshotLen);
+            }
+            file.writeShort(1);
+            file.writeShort(2);
+            file.writeShort(1);
+            if (version == 3) {
+                file.writeInt(0);
+                file.writeShort(0);
+            }
+
+            file.seek(SimpleVFS.HEADER_SIZE + 2 * blockSize);
+            file.write(bytes.toByteArray());
+            file.seek(SimpleVFS.HEADER_SIZE + 3 * blockSize);
+            file.write(a);
+            file.seek(SimpleVFS.HEADER_SIZE + (long) (3 + aBlocks) * blockSize);
+            file.write(b);
+            file.setLength(SimpleVFS.HEADER_SIZE + (long) (3 + aBlocks + bBlocks) * blockSize);
+        } finally {
+            file.close();
+        }
+    }
+
+}
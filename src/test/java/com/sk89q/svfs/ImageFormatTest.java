@@ -0,0 +1,242 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+public class ImageFormatTest extends ImageFixture {
+
+    private static final int BLOCK_SIZE_OFFSET = 7;
+    private static final int INDEX_LOC_OFFSET = 9;
+
+    private int readHeaderShort(int offset) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(image, "r");
+        try {
+            file.seek(offset);
+            return file.readUnsignedShort();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Read the index location block of the image, which starts with the
+     * length of the index log and of its snapshot.
+     */
+    private DataInputStream readIndexHeader(int blockSize) throws IOException {
+        int indexLoc = readHeaderShort(INDEX_LOC_OFFSET);
+        byte[] block = new byte[blockSize];
+        RandomAccessFile file = new RandomAccessFile(image, "r");
+        try {
+            file.seek(SimpleVFS.HEADER_SIZE + (long) indexLoc * blockSize);
+            file.readFully(block);
+        } finally {
+            file.close();
+        }
+        return new DataInputStream(new ByteArrayInputStream(block));
+    }
+
+    private ExtentList readIndexExtents(int blockSize) throws IOException {
+        DataInputStream in = readIndexHeader(blockSize);
+        in.readInt();
+        in.readInt();
+        return ExtentList.read(in);
+    }
+
+    /**
+     * Check whether the free space map on disk has a block marked used.
+     */
+    private boolean isMarkedUsed(int block) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(image, "r");
+        try {
+            file.seek(SimpleVFS.HEADER_SIZE + block / 8);
+            return (file.readUnsignedByte() & (1 << (block % 8))) != 0;
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void testBlockSize() throws IOException {
+        SimpleVFS vfs = open();
+        vfs.setBlockSize(4096);
+        write(vfs, "file", contents(1, 10000));
+        assertEquals(4096, vfs.getBlockSize());
+        try {
+            vfs.setBlockSize(1024);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        vfs.close();
+        assertEquals(4096, readHeaderShort(BLOCK_SIZE_OFFSET));
+
+        // The image keeps its block size whatever is set when reopening it
+        vfs = open();
+        vfs.setBlockSize(512);
+        assertArrayEquals(contents(1, 10000), vfs.read(Path.parse("file")));
+        assertEquals(4096, vfs.getBlockSize());
+        assertEquals(SimpleVFS.HEADER_SIZE + 2 * 4096L, vfs.getOffset(2));
+        vfs.close();
+    }
+
+    @Test
+    public void testInvalidBlockSizes() throws IOException {
+        SimpleVFS vfs = open();
+        int[] sizes = { 0, 128, 1000, 3072, 131072 };
+        for (int size : sizes) {
+            try {
+                vfs.setBlockSize(size);
+                fail("Accepted " + size);
+            } catch (IllegalArgumentException e) {
+            }
+        }
+        vfs.close();
+    }
+
+    @Test
+    public void testMaxBlockSizeStoredAsZero() throws IOException {
+        SimpleVFS vfs = open();
+        vfs.setBlockSize(SimpleVFS.MAX_BLOCK_SIZE);
+        write(vfs, "a", contents(1, 50000));
+        write(vfs, "b", contents(2, 60000));
+        vfs.close();
+        assertEquals(0, readHeaderShort(BLOCK_SIZE_OFFSET));
+
+        vfs = open();
+        assertArrayEquals(contents(1, 50000), vfs.read(Path.parse("a")));
+        assertEquals(SimpleVFS.MAX_BLOCK_SIZE, vfs.getBlockSize());
+        assertArrayEquals(contents(2, 60000), vfs.read(Path.parse("b")));
+        vfs.close();
+    }
+
+    @Test
+    public void testFreeSpaceMapSpansBlocks() throws IOException {
+        // 256 byte blocks of map cover 2048 blocks each, so 2 MB needs 4
+        SimpleVFS vfs = new SimpleVFS(image, new FileStorage(image), 2 * 1024 * 1024, 64 * 1024, 256, 4);
+        vfs.setBlockSize(256);
+        for (int i = 0; i < 50; i++) {
+            write(vfs, "file" + i, contents(i, 20000));
+        }
+        int lastUsed = vfs.getFragmentation().getLastUsedBlock();
+        assertTrue(lastUsed > 2048);
+        vfs.close();
+        assertEquals(4, readHeaderShort(INDEX_LOC_OFFSET));
+        assertTrue(isMarkedUsed(lastUsed));
+
+        // Free blocks that are covered by the second block of the map
+        vfs = new SimpleVFS(image, new FileStorage(image), 2 * 1024 * 1024, 64 * 1024, 256, 4);
+        for (int i = 40; i < 50; i++) {
+            write(vfs, "file" + i, contents(i, 10));
+        }
+        int used = usedBlocks(vfs);
+        vfs.close();
+        assertFalse(isMarkedUsed(lastUsed));
+
+        vfs = new SimpleVFS(image, new FileStorage(image), 2 * 1024 * 1024, 64 * 1024, 256, 4);
+        assertEquals(used, usedBlocks(vfs));
+        long length = image.length();
+        for (int i = 40; i < 50; i++) {
+            write(vfs, "file" + i, contents(100 + i, 20000));
+        }
+        // The files go back into the freed blocks, and only the index grows
+        assertTrue(image.length() < length + 20000);
+        for (int i = 0; i < 50; i++) {
+            assertArrayEquals(contents(i < 40 ? i : 100 + i, 20000), vfs.read(Path.parse("file" + i)));
+        }
+        vfs.close();
+    }
+
+    @Test
+    public void testRelocateIndexIntoFreshRun() throws IOException {
+        SimpleVFS vfs = open();
+        for (int i = 0; i < 30; i++) {
+            write(vfs, "file" + i, contents(i, 3000));
+        }
+        // Records appended between the files leave the log in pieces
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 30; i++) {
+                vfs.setLastModified(Path.parse("file" + i), round * 1000 + i);
+            }
+            write(vfs, "spacer" + round, contents(50 + round, 5000));
+        }
+        for (int i = 0; i < 10; i++) {
+            write(vfs, "file" + i, contents(i, 10));
+        }
+        vfs.close();
+
+        int blockSize = SimpleVFS.DEFAULT_BLOCK_SIZE;
+        ExtentList before = readIndexExtents(blockSize);
+
+        vfs = open();
+        vfs.relocateIndex();
+        vfs.close();
+
+        ExtentList after = readIndexExtents(blockSize);
+        assertEquals(1, after.size());
+        assertTrue(after.getStart(0) < before.getStart(0));
+        for (int block : after.toBlocks()) {
+            for (int old : before.toBlocks()) {
+                assertTrue(block != old);
+            }
+        }
+
+        vfs = open();
+        for (int i = 0; i < 30; i++) {
+            assertArrayEquals(contents(i, i < 10 ? 10 : 3000), vfs.read(Path.parse("file" + i)));
+            if (i >= 10) {
+                assertEquals(2000 + i, vfs.getLastModified(Path.parse("file" + i)));
+            }
+        }
+        vfs.close();
+    }
+
+    private void assertUpgraded(int version) throws IOException {
+        byte[] a = contents(1, 3000);
+        byte[] b = contents(2, 500);
+        writeOldImage(version, a, b);
+
+        SimpleVFS vfs = open();
+        assertArrayEquals(a, vfs.read(Path.parse("docs/a.txt")));
+        write(vfs, "c", contents(3, 2000));
+        vfs.close();
+
+        assertEquals(SimpleVFS.VERSION, readHeaderShort(5));
+        assertEquals(SimpleVFS.DEFAULT_BLOCK_SIZE, readHeaderShort(BLOCK_SIZE_OFFSET));
+        assertEquals(1, readHeaderShort(INDEX_LOC_OFFSET));
+
+        // The index header now has 32-bit extents, the map size and no parent
+        DataInputStream in = readIndexHeader(SimpleVFS.DEFAULT_BLOCK_SIZE);
+        int indexLen = in.readInt();
+        assertEquals(indexLen, in.readInt());
+        int indexBlocks = ExtentList.read(in).getBlockCount();
+        assertEquals((indexLen + SimpleVFS.DEFAULT_BLOCK_SIZE - 1) / SimpleVFS.DEFAULT_BLOCK_SIZE, indexBlocks);
+        assertTrue(in.readInt() > 0);
+        ExtentList.read(in);
+        assertEquals(1, in.readInt());
+        assertEquals("", in.readUTF());
+
+        vfs = open();
+        assertTrue(vfs.isDirectory(Path.parse("docs")));
+        assertArrayEquals(a, vfs.read(Path.parse("docs/a.txt")));
+        assertArrayEquals(b, vfs.read(Path.parse("b")));
+        assertArrayEquals(contents(3, 2000), vfs.read(Path.parse("c")));
+        assertEquals(OLD_TIME, vfs.getLastModified(Path.parse("docs/a.txt")));
+        vfs.close();
+    }
+
+    @Test
+    public void testUpgradeVersion2() throws IOException {
+        assertUpgraded(2);
+    }
+
+    @Test
+    public void testUpgradeVersion3() throws IOException {
+        assertUpgraded(3);
+    }
+
+}
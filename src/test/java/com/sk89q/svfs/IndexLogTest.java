@@ -0,0 +1,175 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class IndexLogTest extends ImageFixture {
+
+    private static final int FILE_COUNT = 20;
+    private static final int FILE_SIZE = 2000;
+
+    private int readVersion() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(image, "r");
+        try {
+            file.seek(5);
+            return file.readUnsignedShort();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Read the length of the index log and of the snapshot at its start
+     * from the index location block of the image.
+     */
+    private long[] readIndexLengths() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(image, "r");
+        try {
+            file.seek(7);
+            int blockSize = file.readUnsignedShort();
+            if (blockSize == 0) {
+                blockSize = SimpleVFS.MAX_BLOCK_SIZE;
+            }
+            int indexLoc = file.readUnsignedShort();
+            file.seek(SimpleVFS.HEADER_SIZE + (long) indexLoc * blockSize);
+            return new long[] { file.readInt() & 0xFFFFFFFFL, file.readInt() & 0xFFFFFFFFL };
+        } finally {
+            file.close();
+        }
+    }
+
+    private void writeFiles(SimpleVFS vfs) throws IOException {
+        for (int i = 0; i < FILE_COUNT; i++) {
+            write(vfs, "file" + i, contents(i, FILE_SIZE));
+        }
+    }
+
+    @Test
+    public void testAppendedRecordsSurviveReopen() throws IOException {
+        SimpleVFS vfs = open();
+        writeFiles(vfs);
+        vfs.close();
+        long[] before = readIndexLengths();
+
+        vfs = open();
+        vfs.mkdir(Path.parse("dir"));
+        write(vfs, "dir/nested", contents(100, 300));
+        write(vfs, "file3", contents(103, FILE_SIZE * 2));
+        vfs.delete(Path.parse("file5"));
+        vfs.close();
+
+        // The changes are records appended to the log rather than a new snapshot
+        long[] lengths = readIndexLengths();
+        assertEquals(before[1], lengths[1]);
+        assertTrue(lengths[0] > before[0]);
+
+        vfs = open();
+        assertTrue(vfs.isDirectory(Path.parse("dir")));
+        assertEquals(Arrays.asList("nested"), vfs.list(Path.parse("dir")));
+        assertArrayEquals(contents(100, 300), vfs.read(Path.parse("dir/nested")));
+        assertArrayEquals(contents(103, FILE_SIZE * 2), vfs.read(Path.parse("file3")));
+        assertFalse(vfs.exists(Path.parse("file5")));
+        for (int i = 0; i < FILE_COUNT; i++) {
+            if (i != 3 && i != 5) {
+                assertArrayEquals(contents(i, FILE_SIZE), vfs.read(Path.parse("file" + i)));
+            }
+        }
+        vfs.close();
+    }
+
+    @Test
+    public void testCompactsOnceLogOutgrowsSnapshot() throws IOException {
+        SimpleVFS vfs = open();
+        writeFiles(vfs);
+
+        int compactions = 0;
+        long lastSnapshotLen = readIndexLengths()[1];
+        for (int round = 0; round < 500; round++) {
+            int i = round % FILE_COUNT;
+            write(vfs, "file" + i, contents(round, FILE_SIZE));
+
+            long[] lengths = readIndexLengths();
+            assertTrue(lengths[0] - lengths[1] <= Math.max(lengths[1], 4096));
+            if (lengths[0] == lengths[1] && lengths[1] != lastSnapshotLen) {
+                compactions++;
+            }
+            lastSnapshotLen = lengths[1];
+        }
+        vfs.close();
+        assertTrue(compactions > 0);
+
+        vfs = open();
+        for (int i = 0; i < FILE_COUNT; i++) {
+            assertArrayEquals(contents(480 + i, FILE_SIZE), vfs.read(Path.parse("file" + i)));
+        }
+        vfs.close();
+    }
+
+    @Test
+    public void testVersion2ImageCompactedOnFirstWrite() throws IOException {
+        byte[] a = contents(1, 3000);
+        byte[] b = contents(2, 500);
+        writeOldImage(2, a, b);
+
+        SimpleVFS vfs = open();
+        assertArrayEquals(a, vfs.read(Path.parse("docs/a.txt")));
+        assertArrayEquals(b, vfs.read(Path.parse("b")));
+        assertEquals(2, readVersion());
+
+        write(vfs, "docs/c.txt", contents(3, 2500));
+        vfs.close();
+
+        // The first record rewrote the whole index as a snapshot
+        assertEquals(SimpleVFS.VERSION, readVersion());
+        long[] lengths = readIndexLengths();
+        assertTrue(lengths[0] > 0);
+        assertEquals(lengths[0], lengths[1]);
+
+        vfs = open();
+        assertTrue(vfs.isDirectory(Path.parse("docs")));
+        assertEquals(Arrays.asList("a.txt", "c.txt"), vfs.list(Path.parse("docs")));
+        assertArrayEquals(a, vfs.read(Path.parse("docs/a.txt")));
+        assertArrayEquals(b, vfs.read(Path.parse("b")));
+        assertArrayEquals(contents(3, 2500), vfs.read(Path.parse("docs/c.txt")));
+        assertEquals(OLD_TIME, vfs.getLastModified(Path.parse("b")));
+
+        // Later changes are appended again
+        write(vfs, "b", contents(4, 700));
+        vfs.close();
+        lengths = readIndexLengths();
+        assertTrue(lengths[0] > lengths[1]);
+
+        vfs = open();
+        assertArrayEquals(contents(4, 700), vfs.read(Path.parse("b")));
+        assertArrayEquals(a, vfs.read(Path.parse("docs/a.txt")));
+        vfs.close();
+    }
+
+    @Test
+    public void testVersion3LogReadPastSnapshot() throws IOException {
+        byte[] a = contents(1, 3000);
+        byte[] b = contents(2, 500);
+        writeOldImage(3, a, b);
+
+        SimpleVFS vfs = open();
+        assertEquals(Arrays.asList("docs", "b"), vfs.list(new Path(new String[0])));
+        assertArrayEquals(a, vfs.read(Path.parse("docs/a.txt")));
+        assertArrayEquals(b, vfs.read(Path.parse("b")));
+
+        vfs.delete(Path.parse("docs/a.txt"));
+        vfs.close();
+        assertEquals(SimpleVFS.VERSION, readVersion());
+
+        vfs = open();
+        assertFalse(vfs.exists(Path.parse("docs/a.txt")));
+        assertTrue(vfs.isDirectory(Path.parse("docs")));
+        assertArrayEquals(b, vfs.read(Path.parse("b")));
+        vfs.close();
+    }
+
+}
@@ -0,0 +1,198 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IndexTreeTest {
+
+    private static List<String> names(IndexTree tree, int dir) {
+        List<String> names = new ArrayList<String>();
+        for (int entry = tree.getFirstChild(dir); entry != IndexTree.NONE; entry = tree.getNextSibling(entry)) {
+            assertEquals(dir, tree.getParent(entry));
+            names.add(tree.getName(entry));
+        }
+        return names;
+    }
+
+    @Test
+    public void testChurnKeepsLookupsAndOrder() {
+        IndexTree tree = new IndexTree();
+        Map<String, Integer> model = new LinkedHashMap<String, Integer>();
+        Random random = new Random(22);
+
+        for (int op = 0; op < 20000; op++) {
+            String name = "f" + random.nextInt(300);
+            Integer existing = model.get(name);
+            if (existing == null) {
+                model.put(name, tree.addFile(IndexTree.ROOT, name, op));
+            } else if (random.nextBoolean()) {
+                assertEquals(1, tree.remove(existing));
+                model.remove(name);
+            }
+
+            if (op % 500 == 0) {
+                assertEquals(new ArrayList<String>(model.keySet()), names(tree, IndexTree.ROOT));
+                for (int i = 0; i < 300; i++) {
+                    Integer entry = model.get("f" + i);
+                    assertEquals(entry != null ? entry : IndexTree.NONE, tree.getChild(IndexTree.ROOT, "f" + i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReplacedEntryGoesLast() {
+        IndexTree tree = new IndexTree();
+        tree.addFile(IndexTree.ROOT, "a", 0);
+        int b = tree.addFile(IndexTree.ROOT, "b", 0);
+        tree.addFile(IndexTree.ROOT, "c", 0);
+
+        tree.remove(b);
+        int replaced = tree.addFile(IndexTree.ROOT, "b", 0);
+        assertEquals(b, replaced);
+        assertEquals(Arrays.asList("a", "c", "b"), names(tree, IndexTree.ROOT));
+        assertEquals(replaced, tree.getChild(IndexTree.ROOT, "b"));
+    }
+
+    @Test
+    public void testNewContentsGetNewNumber() {
+        IndexTree tree = new IndexTree();
+        int file = tree.addFile(IndexTree.ROOT, "file", 0);
+
+        tree.setContents(file, ExtentList.of(new int[] { 5, 6, 9 }), null, 2500, 2500, false);
+        long content = tree.getContent(file);
+        assertTrue(content != 0);
+        assertTrue(Arrays.equals(new int[] { 5, 6, 9 }, tree.getExtents(file).toBlocks()));
+        assertEquals(2, tree.getExtentCount(file));
+        assertNull(tree.getInlineData(file));
+
+        tree.setContents(file, ExtentList.EMPTY, new byte[] { 1, 2, 3 }, 3, 3, false);
+        assertTrue(tree.getContent(file) != content);
+        assertEquals(0, tree.getExtents(file).size());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, tree.getInlineData(file)));
+
+        content = tree.getContent(file);
+        tree.setContents(file, ExtentList.of(new int[] { 7 }), null, 9000, 800, true);
+        tree.setExtents(file, ExtentList.of(new int[] { 3 }));
+        assertTrue(tree.getContent(file) != content);
+        assertEquals(9000, tree.getSize(file));
+        assertEquals(800, tree.getStoredSize(file));
+        assertTrue(tree.isCompressed(file));
+        assertEquals(3, tree.getExtents(file).getStart(0));
+    }
+
+    @Test
+    public void testGrowsPastInitialTable() {
+        IndexTree tree = new IndexTree();
+        int[] dirs = new int[4];
+        for (int d = 0; d < dirs.length; d++) {
+            dirs[d] = tree.addDirectory(IndexTree.ROOT, "dir" + d, 0);
+        }
+
+        // The same names in every directory, and far more than fit at first
+        for (int i = 0; i < 5000; i++) {
+            for (int dir : dirs) {
+                int file = tree.addFile(dir, "file" + i, i);
+                tree.setContents(file, ExtentList.of(new int[] { i }), null, i, i, false);
+            }
+        }
+
+        for (int d = 0; d < dirs.length; d++) {
+            assertEquals(dirs[d], tree.getChild(IndexTree.ROOT, "dir" + d));
+            for (int i = 0; i < 5000; i++) {
+                int file = tree.getChild(dirs[d], "file" + i);
+                assertEquals(dirs[d], tree.getParent(file));
+                assertEquals(i, tree.getExtents(file).getStart(0));
+            }
+            assertEquals(IndexTree.NONE, tree.getChild(dirs[d], "file5000"));
+        }
+        assertEquals("dir2/file77", tree.getPath(tree.getChild(dirs[2], "file77")));
+    }
+
+    @Test
+    public void testRemoveTakesSubtree() {
+        IndexTree tree = new IndexTree();
+        int dir = tree.addDirectory(IndexTree.ROOT, "dir", 0);
+        int sub = tree.addDirectory(dir, "sub", 0);
+        int file = tree.addFile(sub, "file", 0);
+        tree.addFile(dir, "other", 0);
+        int kept = tree.addFile(IndexTree.ROOT, "kept", 0);
+
+        assertEquals(4, tree.remove(dir));
+        assertFalse(tree.exists(dir));
+        assertFalse(tree.exists(file));
+        assertTrue(tree.exists(kept));
+        assertEquals(IndexTree.NONE, tree.getChild(IndexTree.ROOT, "dir"));
+        assertEquals(Arrays.asList("kept"), names(tree, IndexTree.ROOT));
+
+        // Removed entries may come back under other names, but not their children
+        int reused = tree.addDirectory(IndexTree.ROOT, "dir", 0);
+        assertEquals(IndexTree.NONE, tree.getChild(reused, "sub"));
+        assertEquals(IndexTree.NONE, tree.getFirstChild(reused));
+    }
+
+    @Test
+    public void testMove() {
+        IndexTree tree = new IndexTree();
+        int a = tree.addDirectory(IndexTree.ROOT, "a", 0);
+        int b = tree.addDirectory(IndexTree.ROOT, "b", 0);
+        int file = tree.addFile(a, "file", 0);
+        tree.addFile(b, "first", 0);
+
+        tree.move(file, b, "renamed");
+        assertEquals(IndexTree.NONE, tree.getChild(a, "file"));
+        assertEquals(file, tree.getChild(b, "renamed"));
+        assertEquals(Arrays.asList("first", "renamed"), names(tree, b));
+        assertEquals("b/renamed", tree.getPath(file));
+
+        tree.move(a, IndexTree.SNAPSHOTS, "a");
+        assertEquals(IndexTree.NONE, tree.getChild(IndexTree.ROOT, "a"));
+        assertEquals(a, tree.getChild(IndexTree.SNAPSHOTS, "a"));
+    }
+
+    @Test
+    public void testCompactsSharedArrays() {
+        IndexTree tree = new IndexTree();
+        int[] files = new int[50];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = tree.addFile(IndexTree.ROOT, "file" + i, 0);
+        }
+
+        // Rewriting the same files leaves old values behind many times over
+        Random random = new Random(7);
+        byte[][] expected = new byte[files.length][];
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < files.length; i++) {
+                if (i % 2 == 0) {
+                    expected[i] = new byte[random.nextInt(200)];
+                    random.nextBytes(expected[i]);
+                    tree.setContents(files[i], ExtentList.EMPTY, expected[i], expected[i].length,
+                            expected[i].length, false);
+                } else {
+                    tree.setContents(files[i], ExtentList.of(new int[] { round, round + 2, round + 3 }),
+                            null, 3000, 3000, false);
+                }
+            }
+            int moved = files[round % files.length];
+            tree.move(moved, IndexTree.ROOT, "file" + (round % files.length));
+        }
+
+        for (int i = 0; i < files.length; i++) {
+            assertEquals("file" + i, tree.getName(files[i]));
+            if (i % 2 == 0) {
+                assertTrue(Arrays.equals(expected[i], tree.getInlineData(files[i])));
+            } else {
+                assertTrue(Arrays.equals(new int[] { 199, 201, 202 }, tree.getExtents(files[i]).toBlocks()));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class InlineDataTest extends ImageFixture {
+
+    private static final int SMALL = SimpleVFS.DEFAULT_INLINE_THRESHOLD;
+    private static final int LARGE = 5000;
+
+    @Test
+    public void testSmallFilesTakeNoBlocks() throws IOException {
+        SimpleVFS vfs = open();
+        vfs.mkdir(Path.parse("dir"));
+        int used = usedBlocks(vfs);
+        write(vfs, "dir/empty", new byte[0]);
+        write(vfs, "dir/small", contents(1, SMALL));
+        assertEquals(used, usedBlocks(vfs));
+
+        write(vfs, "dir/over", contents(2, SMALL + 1));
+        assertEquals(used + 1, usedBlocks(vfs));
+        vfs.close();
+
+        vfs = open();
+        assertArrayEquals(new byte[0], vfs.read(Path.parse("dir/empty")));
+        assertArrayEquals(contents(1, SMALL), vfs.read(Path.parse("dir/small")));
+        assertArrayEquals(contents(2, SMALL + 1), vfs.read(Path.parse("dir/over")));
+        vfs.close();
+    }
+
+    @Test
+    public void testInlineToBlocks() throws IOException {
+        SimpleVFS vfs = open();
+        write(vfs, "file", contents(1, SMALL));
+        int used = usedBlocks(vfs);
+        vfs.close();
+
+        vfs = open();
+        write(vfs, "file", contents(2, LARGE));
+        assertTrue(usedBlocks(vfs) > used);
+        vfs.close();
+
+        vfs = open();
+        assertEquals(LARGE, vfs.read(Path.parse("file")).length);
+        assertArrayEquals(contents(2, LARGE), vfs.read(Path.parse("file")));
+        vfs.close();
+    }
+
+    @Test
+    public void testBlocksToInline() throws IOException {
+        SimpleVFS vfs = open();
+        write(vfs, "file", new byte[0]);
+        int used = usedBlocks(vfs);
+        write(vfs, "file", contents(1, LARGE));
+        vfs.close();
+
+        vfs = open();
+        write(vfs, "file", contents(2, SMALL));
+        assertEquals(used, usedBlocks(vfs));
+
+        // Would take the old blocks if they are still referenced
+        write(vfs, "other", contents(3, LARGE));
+        vfs.close();
+
+        vfs = open();
+        assertArrayEquals(contents(2, SMALL), vfs.read(Path.parse("file")));
+        assertArrayEquals(contents(3, LARGE), vfs.read(Path.parse("other")));
+        vfs.close();
+    }
+
+    @Test
+    public void testInliningDisabled() throws IOException {
+        SimpleVFS vfs = open();
+        write(vfs, "empty", new byte[0]);
+        vfs.setInlineThreshold(-1);
+        int used = usedBlocks(vfs);
+        write(vfs, "file", contents(1, 10));
+        assertEquals(used + 1, usedBlocks(vfs));
+        vfs.close();
+
+        vfs = open();
+        assertArrayEquals(contents(1, 10), vfs.read(Path.parse("file")));
+        vfs.close();
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class JournalTest extends ImageFixture {
+
+    private File journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        journalFile = new File(tempFolder.getRoot(), "drive.img.journal");
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] read(Storage storage, long position, int len) throws IOException {
+        byte[] data = new byte[len];
+        storage.read(position, data, 0, len);
+        return data;
+    }
+
+    /**
+     * Append two transactions to a journal without applying them, as if
+     * the process died before the journal was forced.
+     */
+    private void appendUnapplied(byte[] first, byte[] second) throws IOException {
+        FileStorage storage = new FileStorage(image);
+        storage.write(0, new byte[4096], 0, 4096);
+        storage.close();
+
+        Journal journal = new Journal(new FileStorage(journalFile), new FileStorage(image));
+        Journal.Transaction tx = new Journal.Transaction();
+        tx.write(100, first, 0, first.length);
+        journal.append(tx);
+        tx = new Journal.Transaction();
+        tx.write(2000, second, 0, second.length);
+        journal.append(tx);
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        appendUnapplied(contents(1, 500), contents(2, 500));
+
+        FileStorage storage = new FileStorage(image);
+        Journal journal = new Journal(new FileStorage(journalFile), storage);
+        journal.replay();
+        assertArrayEquals(contents(1, 500), read(storage, 100, 500));
+        assertArrayEquals(contents(2, 500), read(storage, 2000, 500));
+        assertEquals(0, journalFile.length());
+        journal.close();
+        storage.close();
+    }
+
+    @Test
+    public void testReplayStopsAtTornRecord() throws IOException {
+        appendUnapplied(contents(1, 500), contents(2, 500));
+
+        RandomAccessFile log = new RandomAccessFile(journalFile, "rw");
+        log.setLength(log.length() - 10);
+        log.close();
+
+        FileStorage storage = new FileStorage(image);
+        Journal journal = new Journal(new FileStorage(journalFile), storage);
+        journal.replay();
+        assertArrayEquals(contents(1, 500), read(storage, 100, 500));
+        assertArrayEquals(new byte[500], read(storage, 2000, 500));
+        assertEquals(0, journalFile.length());
+        journal.close();
+        storage.close();
+    }
+
+    @Test
+    public void testReplayStopsAtBadChecksum() throws IOException {
+        appendUnapplied(contents(1, 500), contents(2, 500));
+
+        // Flip a byte of the second payload
+        RandomAccessFile log = new RandomAccessFile(journalFile, "rw");
+        log.seek(log.length() - 20);
+        int b = log.read();
+        log.seek(log.length() - 20);
+        log.write(b ^ 1);
+        log.close();
+
+        FileStorage storage = new FileStorage(image);
+        Journal journal = new Journal(new FileStorage(journalFile), storage);
+        journal.replay();
+        assertArrayEquals(contents(1, 500), read(storage, 100, 500));
+        assertArrayEquals(new byte[500], read(storage, 2000, 500));
+        journal.close();
+        storage.close();
+    }
+
+    @Test
+    public void testReopenAfterCrash() throws IOException {
+        SimpleVFS vfs = new SimpleVFS(image, 1024 * 1024, 64 * 1024, 256, 4);
+        for (int i = 0; i < 4; i++) {
+            write(vfs, "file" + i, contents(i, 5000));
+        }
+        write(vfs, "file1", contents(1, 100));
+        assertTrue(journalFile.length() > 0);
+
+        // Copy the files while the VFS is still open, as a crash would
+        // leave them, with half a record at the end of the journal
+        File crashed = new File(tempFolder.getRoot(), "crashed.img");
+        File crashedJournal = new File(tempFolder.getRoot(), "crashed.img.journal");
+        copy(image, crashed);
+        copy(journalFile, crashedJournal);
+        FileStorage log = new FileStorage(crashedJournal);
+        log.write(log.length(), new byte[] { 2, 0, 0, 1, 0 }, 0, 5);
+        log.close();
+        vfs.close();
+
+        vfs = new SimpleVFS(crashed, 1024 * 1024, 64 * 1024, 256, 4);
+        assertArrayEquals(contents(1, 100), vfs.read(Path.parse("file1")));
+        for (int i : new int[] { 0, 2, 3 }) {
+            assertArrayEquals(contents(i, 5000), vfs.read(Path.parse("file" + i)));
+        }
+        vfs.close();
+        assertEquals(0, crashedJournal.length());
+
+        vfs = new SimpleVFS(crashed, 1024 * 1024, 64 * 1024, 256, 4);
+        assertArrayEquals(contents(3, 5000), vfs.read(Path.parse("file3")));
+        vfs.close();
+    }
+
+    @Test
+    public void testReservedBlocksFreeAfterCrash() throws IOException {
+        SimpleVFS vfs = new SimpleVFS(image, 1024 * 1024, 64 * 1024, 256, 4);
+        EntryOutputStream unfinished = vfs.getEntryOutputStream(Path.parse("a"), 64 * 1024);
+        unfinished.setExpectedSize(64 * 1024);
+        unfinished.write(contents(1, 4096));
+
+        // Writes out the map with the blocks of the first stream reserved
+        write(vfs, "b", contents(2, 5000));
+
+        File crashed = new File(tempFolder.getRoot(), "crashed.img");
+        copy(image, crashed);
+        copy(journalFile, new File(tempFolder.getRoot(), "crashed.img.journal"));
+        unfinished.abort();
+        int used = usedBlocks(vfs);
+        vfs.close();
+
+        vfs = new SimpleVFS(crashed, 1024 * 1024, 64 * 1024, 256, 4);
+        assertFalse(vfs.exists(Path.parse("a")));
+        assertEquals(used, usedBlocks(vfs));
+
+        // The map on disk is corrected by the next change
+        vfs.delete(Path.parse("b"));
+        used = usedBlocks(vfs);
+        vfs.close();
+        vfs = new SimpleVFS(crashed, 1024 * 1024, 64 * 1024, 256, 4);
+        assertEquals(used, usedBlocks(vfs));
+        vfs.close();
+    }
+
+}
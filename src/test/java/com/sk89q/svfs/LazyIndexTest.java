@@ -0,0 +1,192 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class LazyIndexTest extends ImageFixture {
+
+    private static final int FILE_COUNT = 200;
+    private static final int FILE_SIZE = 1500;
+    // Every one of these has the same hash
+    private static final String[] COLLIDING = { "AaAa", "BBBB", "AaBB" };
+
+    /**
+     * Counts the bytes read from the storage below it.
+     */
+    private static class CountingStorage implements Storage {
+        private final Storage storage;
+        private long bytesRead;
+
+        CountingStorage(Storage storage) {
+            this.storage = storage;
+        }
+
+        @Override
+        public void read(long position, byte[] buf, int off, int len) throws IOException {
+            bytesRead += len;
+            storage.read(position, buf, off, len);
+        }
+
+        @Override
+        public void write(long position, byte[] buf, int off, int len) throws IOException {
+            storage.write(position, buf, off, len);
+        }
+
+        @Override
+        public long length() throws IOException {
+            return storage.length();
+        }
+
+        @Override
+        public void truncate(long length) throws IOException {
+            storage.truncate(length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            storage.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            storage.close();
+        }
+    }
+
+    /**
+     * Write an image whose index is a snapshot with a lookup table, holding
+     * the numbered files and the colliding ones, followed by a record for
+     * the file tail in the log.
+     */
+    private void writeImage() throws IOException {
+        SimpleVFS vfs = open();
+        vfs.mkdir(Path.parse("dir"));
+        for (int i = 0; i < FILE_COUNT; i++) {
+            write(vfs, "dir/file" + i, contents(i, FILE_SIZE));
+        }
+        for (int i = 0; i < COLLIDING.length; i++) {
+            write(vfs, COLLIDING[i], contents(1000 + i, FILE_SIZE));
+        }
+        vfs.relocateIndex();
+        write(vfs, "tail", contents(2000, FILE_SIZE));
+        vfs.close();
+    }
+
+    private SimpleVFS openLazily(Storage storage) throws IOException {
+        SimpleVFS vfs = open(storage);
+        vfs.setLazyIndex(true);
+        return vfs;
+    }
+
+    private static byte[] read(InputStream in, int len) throws IOException {
+        byte[] data = new byte[len];
+        new DataInputStream(in).readFully(data);
+        return data;
+    }
+
+    @Test
+    public void testLooksUpThroughTable() throws IOException {
+        writeImage();
+
+        CountingStorage storage = new CountingStorage(new FileStorage(image));
+        SimpleVFS vfs = open(storage);
+        assertTrue(vfs.exists(Path.parse("dir/file77")));
+        long fullLoad = storage.bytesRead;
+        vfs.close();
+
+        storage = new CountingStorage(new FileStorage(image));
+        vfs = openLazily(storage);
+        assertArrayEquals(contents(2000, FILE_SIZE), vfs.read(Path.parse("tail")));
+
+        // One lookup probes the table and decodes one record, not the index
+        storage.bytesRead = 0;
+        assertTrue(vfs.exists(Path.parse("dir/file77")));
+        assertTrue(storage.bytesRead < fullLoad / 4);
+
+        storage.bytesRead = 0;
+        assertTrue(vfs.isDirectory(Path.parse("dir")));
+        assertEquals(FILE_SIZE, vfs.getSize(Path.parse("dir/file150")));
+        assertTrue(storage.bytesRead < fullLoad / 4);
+
+        for (int i = 0; i < FILE_COUNT; i++) {
+            assertArrayEquals(contents(i, FILE_SIZE), vfs.read(Path.parse("dir/file" + i)));
+        }
+        vfs.close();
+    }
+
+    @Test
+    public void testCollidingPathsLookedUp() throws IOException {
+        for (int i = 1; i < COLLIDING.length; i++) {
+            assertEquals(IndexTable.hash(COLLIDING[0]), IndexTable.hash(COLLIDING[i]));
+        }
+        assertEquals(IndexTable.hash(COLLIDING[0]), IndexTable.hash("BBAa"));
+        writeImage();
+
+        SimpleVFS vfs = openLazily(new FileStorage(image));
+        for (int i = 0; i < COLLIDING.length; i++) {
+            assertArrayEquals(contents(1000 + i, FILE_SIZE), vfs.read(Path.parse(COLLIDING[i])));
+        }
+
+        // Probes past every entry with the same hash before giving up
+        assertFalse(vfs.exists(Path.parse("BBAa")));
+        vfs.close();
+    }
+
+    @Test
+    public void testAbsentNames() throws IOException {
+        writeImage();
+
+        SimpleVFS vfs = openLazily(new FileStorage(image));
+        assertFalse(vfs.exists(Path.parse("missing")));
+        assertFalse(vfs.exists(Path.parse("dir/file" + FILE_COUNT)));
+        assertFalse(vfs.exists(Path.parse("nodir/file1")));
+        assertFalse(vfs.isDirectory(Path.parse("missing")));
+        try {
+            vfs.read(Path.parse("dir/missing"));
+            fail();
+        } catch (FileNotFoundException e) {
+        }
+        assertArrayEquals(contents(1, FILE_SIZE), vfs.read(Path.parse("dir/file1")));
+        vfs.close();
+    }
+
+    @Test
+    public void testFullLoadKeepsPinnedStream() throws IOException {
+        writeImage();
+
+        SimpleVFS vfs = openLazily(new FileStorage(image));
+        byte[] expected = contents(3, FILE_SIZE);
+        InputStream in = vfs.getInputStream("dir/file3");
+        assertArrayEquals(Arrays.copyOf(expected, 100), read(in, 100));
+
+        // Writing loads the whole index, and the stream has to keep the old
+        // blocks from being reused by the writes that follow
+        write(vfs, "dir/file3", contents(503, FILE_SIZE));
+        for (int i = 0; i < 5; i++) {
+            write(vfs, "new" + i, contents(600 + i, FILE_SIZE));
+        }
+
+        assertArrayEquals(Arrays.copyOfRange(expected, 100, FILE_SIZE), read(in, FILE_SIZE - 100));
+
+        // Closing the stream releases the old blocks
+        int used = usedBlocks(vfs);
+        in.close();
+        assertEquals(used - 2, usedBlocks(vfs));
+        vfs.close();
+
+        vfs = open();
+        assertArrayEquals(contents(503, FILE_SIZE), vfs.read(Path.parse("dir/file3")));
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(contents(600 + i, FILE_SIZE), vfs.read(Path.parse("new" + i)));
+        }
+        vfs.close();
+    }
+
+}
@@ -0,0 +1,158 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OrderedExecutorTest {
+
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+    }
+
+    private static FutureTask<Void> record(final List<Integer> log, final int value) {
+        return new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (log) {
+                    log.add(value);
+                }
+            }
+        }, null);
+    }
+
+    private static FutureTask<Void> await(final CountDownLatch latch) {
+        return new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                latch.await();
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testSameKeyRunsInOrder() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor(pool);
+        List<Integer> log = new ArrayList<Integer>();
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+        for (int i = 0; i < 200; i++) {
+            FutureTask<Void> task = record(log, i);
+            tasks.add(task);
+            executor.execute("a", task);
+        }
+        for (FutureTask<Void> task : tasks) {
+            task.get(5, TimeUnit.SECONDS);
+        }
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 200; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, log);
+    }
+
+    @Test
+    public void testOtherKeysNotBlocked() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor(pool);
+        CountDownLatch latch = new CountDownLatch(1);
+        FutureTask<Void> blocked = await(latch);
+        List<Integer> log = Collections.synchronizedList(new ArrayList<Integer>());
+        FutureTask<Void> queued = record(log, 1);
+        FutureTask<Void> other = record(log, 2);
+
+        executor.execute("a", blocked);
+        executor.execute("a", queued);
+        executor.execute("b", other);
+
+        other.get(5, TimeUnit.SECONDS);
+        assertFalse(queued.isDone());
+        latch.countDown();
+        queued.get(5, TimeUnit.SECONDS);
+        assertEquals(2, log.size());
+    }
+
+    @Test
+    public void testRejectedTaskCancelsQueue() throws Exception {
+        final boolean[] rejecting = new boolean[1];
+        final List<Runnable> started = new ArrayList<Runnable>();
+        OrderedExecutor executor = new OrderedExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (rejecting[0]) {
+                    throw new RejectedExecutionException();
+                }
+                started.add(command);
+            }
+        });
+
+        List<Integer> log = new ArrayList<Integer>();
+        FutureTask<Void> first = record(log, 1);
+        FutureTask<Void> second = record(log, 2);
+        FutureTask<Void> third = record(log, 3);
+        executor.execute("a", first);
+        executor.execute("a", second);
+        executor.execute("a", third);
+        assertEquals(1, started.size());
+
+        // The executor shuts down while the first task runs
+        rejecting[0] = true;
+        started.get(0).run();
+        assertTrue(first.isDone());
+        assertTrue(second.isCancelled());
+        assertTrue(third.isCancelled());
+        assertEquals(Collections.singletonList(1), log);
+
+        // The key can be used again
+        rejecting[0] = false;
+        executor.execute("a", record(log, 4));
+        assertEquals(2, started.size());
+    }
+
+    @Test
+    public void testRejectedFirstTask() {
+        OrderedExecutor executor = new OrderedExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        });
+
+        FutureTask<Void> task = record(new ArrayList<Integer>(), 1);
+        try {
+            executor.execute("a", task);
+            fail("Task was not rejected");
+        } catch (RejectedExecutionException e) {
+        }
+
+        // The key is not left marked as running
+        try {
+            executor.execute("a", record(new ArrayList<Integer>(), 2));
+            fail("Task was queued behind a rejected one");
+        } catch (RejectedExecutionException e) {
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.sk89q.svfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotTest extends ImageFixture {
+
+    private VolumeContainer volumes;
+
+    @Before
+    public void setUp() throws Exception {
+        volumes = new VolumeContainer(tempFolder.getRoot(), 8, 1024 * 1024, 64 * 1024, 256, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        volumes.close();
+    }
+
+    @Test
+    public void testCloneVolume() throws IOException {
+        write(volumes.getVolume("source"), "file", contents(1, 5000));
+
+        SimpleVFS clone = volumes.cloneVolume("source", "clone");
+        assertTrue(clone.isClone());
+        assertArrayEquals(contents(1, 5000), clone.read(Path.parse("file")));
+        assertEquals(1, volumes.getVolume("source").getSnapshots().size());
+    }
+
+    @Test
+    public void testCloneOfCloneLeavesNoSnapshot() throws IOException {
+        write(volumes.getVolume("source"), "file", contents(1, 5000));
+        volumes.cloneVolume("source", "clone");
+
+        try {
+            volumes.cloneVolume("clone", "second");
+            fail("Cloned a clone");
+        } catch (IOException e) {
+        }
+
+        assertTrue(volumes.getVolume("clone").getSnapshots().isEmpty());
+        assertFalse(volumes.getImageFile("second").exists());
+    }
+
+    @Test
+    public void testCloneKeepsContentsOfSnapshot() throws IOException {
+        SimpleVFS source = volumes.getVolume("source");
+        write(source, "file", contents(1, 5000));
+        SimpleVFS clone = volumes.cloneVolume("source", "clone");
+
+        // The snapshot holds on to the old blocks, so these can't reuse them
+        write(source, "file", contents(2, 5000));
+        for (int i = 0; i < 4; i++) {
+            write(source, "other" + i, contents(3 + i, 5000));
+        }
+        write(clone, "added", contents(10, 5000));
+
+        assertArrayEquals(contents(1, 5000), clone.read(Path.parse("file")));
+        assertArrayEquals(contents(2, 5000), source.read(Path.parse("file")));
+        assertFalse(source.exists(Path.parse("added")));
+        assertFalse(clone.exists(Path.parse("other0")));
+    }
+
+    @Test
+    public void testCloneAfterReopen() throws IOException {
+        SimpleVFS source = volumes.getVolume("source");
+        write(source, "file", contents(1, 5000));
+        SimpleVFS clone = volumes.cloneVolume("source", "clone");
+        write(clone, "added", contents(10, 5000));
+        write(source, "file", contents(2, 5000));
+        volumes.close();
+
+        volumes = new VolumeContainer(tempFolder.getRoot(), 8, 1024 * 1024, 64 * 1024, 256, 4);
+        clone = volumes.getVolume("clone");
+        assertTrue(clone.isClone());
+        assertArrayEquals(contents(1, 5000), clone.read(Path.parse("file")));
+        assertArrayEquals(contents(10, 5000), clone.read(Path.parse("added")));
+
+        source = volumes.getVolume("source");
+        assertEquals(1, source.getSnapshots().size());
+        assertArrayEquals(contents(2, 5000), source.read(Path.parse("file")));
+
+        write(clone, "file", contents(3, 5000));
+        volumes.close();
+
+        volumes = new VolumeContainer(tempFolder.getRoot(), 8, 1024 * 1024, 64 * 1024, 256, 4);
+        assertArrayEquals(contents(3, 5000), volumes.getVolume("clone").read(Path.parse("file")));
+        assertArrayEquals(contents(2, 5000), volumes.getVolume("source").read(Path.parse("file")));
+    }
+
+    @Test
+    public void testSnapshotOfCloneIsKept() throws IOException {
+        SimpleVFS source = volumes.getVolume("source");
+        write(source, "file", contents(1, 5000));
+        volumes.cloneVolume("source", "clone");
+        source.snapshot("other");
+
+        try {
+            volumes.deleteSnapshot("source", "clone");
+            fail("Deleted the snapshot of a clone");
+        } catch (IOException e) {
+        }
+
+        volumes.deleteSnapshot("source", "other");
+        assertEquals(1, source.getSnapshots().size());
+        assertArrayEquals(contents(1, 5000), volumes.getVolume("clone").read(Path.parse("file")));
+    }
+
+    @Test
+    public void testSnapshotOfCloneIsKeptAfterReopen() throws IOException {
+        write(volumes.getVolume("source"), "file", contents(1, 5000));
+        volumes.cloneVolume("source", "clone");
+        volumes.close();
+
+        // The link is found again from the image of the clone
+        volumes = new VolumeContainer(tempFolder.getRoot(), 8, 1024 * 1024, 64 * 1024, 256, 4);
+        try {
+            volumes.deleteSnapshot("source", "clone");
+            fail("Deleted the snapshot of a clone");
+        } catch (IOException e) {
+        }
+
+        volumes.closeVolume("clone");
+        assertTrue(volumes.getImageFile("clone").delete());
+        volumes.deleteSnapshot("source", "clone");
+        assertTrue(volumes.getVolume("source").getSnapshots().isEmpty());
+    }
+
+    @Test
+    public void testSnapshotNamedAfterOtherVolumeCanBeDeleted() throws IOException {
+        write(volumes.getVolume("source"), "file", contents(1, 5000));
+        write(volumes.getVolume("plain"), "file", contents(2, 5000));
+        volumes.getVolume("source").snapshot("plain");
+
+        volumes.deleteSnapshot("source", "plain");
+        assertTrue(volumes.getVolume("source").getSnapshots().isEmpty());
+    }
+
+}